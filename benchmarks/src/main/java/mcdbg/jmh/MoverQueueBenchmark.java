@@ -0,0 +1,187 @@
+package mcdbg.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import mcdbg.Actuator;
+import mcdbg.Mover;
+import mcdbg.MoverLog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks of the mover's queue machinery: enqueue throughput with one
+ * and several producers, enqueue-to-execute latency, waitForCompletion()
+ * round trips and resetQueue() while producers are busy. <br/>
+ * Logging is off and the actuator does nothing, so what is measured is the
+ * queueing, not the robot. {@link mcdbg.MoverBenchmark} runs much the same
+ * benchmarks without JMH, for when there is no build to hand. <br/>
+ * Run with: java -jar benchmarks/target/benchmarks.jar MoverQueueBenchmark
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MoverQueueBenchmark {
+	/** Longest a producer blocks on a full queue before giving up */
+	private static final long BLOCK_TIMEOUT = 5000;
+
+	/**
+	 * A running mover with nothing attached, shared by every thread of a
+	 * benchmark
+	 */
+	@State(Scope.Benchmark)
+	public static class Shared {
+		Mover mover;
+
+		@Setup(Level.Trial)
+		public void start() {
+			mover = newMover();
+		}
+
+		/** Don't let one iteration's backlog run into the next */
+		@TearDown(Level.Iteration)
+		public void settle() throws InterruptedException {
+			mover.waitForAll();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws InterruptedException {
+			stopMover(mover);
+		}
+	}
+
+	/**
+	 * A running mover shared by the threads of one group, so the reset
+	 * benchmark's resetter and producers work on the same queue
+	 */
+	@State(Scope.Group)
+	public static class Grouped {
+		Mover mover;
+
+		@Setup(Level.Trial)
+		public void start() {
+			mover = newMover();
+		}
+
+		/** Every ticket must still finish, whether run or discarded */
+		@TearDown(Level.Iteration)
+		public void settle() throws InterruptedException {
+			mover.waitForAll();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws InterruptedException {
+			stopMover(mover);
+		}
+	}
+
+	/** Each producer's own counter, to vary what it queues */
+	@State(Scope.Thread)
+	public static class Producer {
+		int i;
+	}
+
+	private static Mover newMover() {
+		Mover mover = new Mover();
+		mover.setLog(MoverLog.silent());
+		mover.setActuator(Actuator.NONE);
+		// So the throughput is the rate the mover sustains, not how fast a
+		// full queue turns producers away
+		mover.setOverflowPolicy(Mover.OverflowPolicy.BLOCK, BLOCK_TIMEOUT);
+		mover.start();
+		return mover;
+	}
+
+	private static void stopMover(Mover mover) throws InterruptedException {
+		mover.kill();
+		mover.awaitTermination();
+	}
+
+	private static long enqueue(Mover mover, Producer producer) {
+		int i = producer.i++ & 127;
+		return mover.move(i, -i);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(1)
+	public long enqueueOneProducer(Shared shared, Producer producer) {
+		return enqueue(shared.mover, producer);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(2)
+	public long enqueueTwoProducers(Shared shared, Producer producer) {
+		return enqueue(shared.mover, producer);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Threads(4)
+	public long enqueueFourProducers(Shared shared, Producer producer) {
+		return enqueue(shared.mover, producer);
+	}
+
+	/**
+	 * Queues a movement on an idle mover and waits for that movement to
+	 * finish, which it does as soon as it has been started
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(1)
+	public Object enqueueToExecute(Shared shared, Producer producer)
+			throws InterruptedException {
+		return shared.mover.waitUntil(enqueue(shared.mover, producer));
+	}
+
+	/**
+	 * Queues a movement on an idle mover and waits for the queue to empty
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Threads(1)
+	public void waitForCompletionRoundTrip(Shared shared, Producer producer,
+			Blackhole blackhole) throws InterruptedException {
+		blackhole.consume(enqueue(shared.mover, producer));
+		shared.mover.waitForCompletion();
+	}
+
+	/** Resets the queue over and over while the group's producers fill it */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Group("resetUnderContention")
+	@GroupThreads(1)
+	public void reset(Grouped grouped) throws InterruptedException {
+		grouped.mover.resetQueue();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@Group("resetUnderContention")
+	@GroupThreads(3)
+	public long produce(Grouped grouped, Producer producer) {
+		return enqueue(grouped.mover, producer);
+	}
+}
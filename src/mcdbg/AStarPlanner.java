@@ -0,0 +1,305 @@
+package mcdbg;
+
+import java.util.Arrays;
+
+/**
+ * A* path planning over a {@link PitchGrid}. <br/>
+ * All search state lives in flat arrays indexed by cell, and the open set is
+ * a binary heap of cell indices, so planning allocates nothing. Arrays are not
+ * cleared between searches; instead every cell is stamped with the search that
+ * last touched it. <br/>
+ * Moves are 8-connected, without cutting the corners of blocked cells. The
+ * raw cell path is then smoothed into as few straight segments as the grid's
+ * line of sight allows. <br/>
+ * A planner is not thread-safe; use one per planning thread.
+ */
+public class AStarPlanner {
+	/** Cost of moving to an orthogonal neighbour */
+	static final int STRAIGHT = 10;
+	/** Cost of moving to a diagonal neighbour, roughly 10 * sqrt(2) */
+	static final int DIAGONAL = 14;
+	/**
+	 * Cost multiplier for moving through blocked cells, which is only allowed
+	 * when escaping from a start position inside an obstacle or wall
+	 */
+	static final int BLOCKED_PENALTY = 5;
+
+	private final PitchGrid grid;
+	private final int cols;
+	private final int rows;
+
+	private final int[] g;
+	private final int[] parent;
+	private final long[] key;
+	/** Position of each cell in the heap plus one, or 0 if not in the heap */
+	private final int[] heapIndex;
+	private final boolean[] closed;
+	/** The search that last touched each cell */
+	private final int[] stamp;
+	private int search = 0;
+
+	private final int[] heap;
+	private int heapSize = 0;
+
+	/** Raw cell path, goal first */
+	private final int[] cells;
+
+	private int lastExpanded = 0;
+
+	/**
+	 * @param grid
+	 *            The grid to plan over. Obstacles may change between plans,
+	 *            but not during one.
+	 */
+	public AStarPlanner(PitchGrid grid) {
+		this.grid = grid;
+		cols = grid.getColumns();
+		rows = grid.getRows();
+		int size = grid.size();
+		g = new int[size];
+		parent = new int[size];
+		key = new long[size];
+		heapIndex = new int[size];
+		closed = new boolean[size];
+		stamp = new int[size];
+		heap = new int[size];
+		cells = new int[size];
+	}
+
+	/**
+	 * @return The grid this planner plans over
+	 */
+	public PitchGrid getGrid() {
+		return grid;
+	}
+
+	/**
+	 * @return The number of cells expanded by the last plan
+	 */
+	public int getLastExpanded() {
+		return lastExpanded;
+	}
+
+	/**
+	 * Plans a path between two points
+	 *
+	 * @param startX
+	 * @param startY
+	 * @param goalX
+	 * @param goalY
+	 * @param out
+	 *            Receives the waypoints to drive through, not including the
+	 *            start and ending exactly at the goal
+	 * @return true if a path was found, false if the goal is blocked or
+	 *         unreachable
+	 */
+	public boolean plan(double startX, double startY, double goalX,
+			double goalY, Path out) {
+		out.clear();
+		lastExpanded = 0;
+		int start = grid.cellAt(startX, startY);
+		int goal = grid.cellAt(goalX, goalY);
+		if (grid.isBlocked(goal))
+			return false;
+
+		if (++search == 0) {
+			// The stamp wrapped round, so old stamps could look current
+			Arrays.fill(stamp, 0);
+			search = 1;
+		}
+		heapSize = 0;
+		int goalCol = goal % cols, goalRow = goal / cols;
+
+		touch(start);
+		g[start] = 0;
+		parent[start] = -1;
+		push(start, heuristic(start, goalCol, goalRow), 0);
+
+		while (heapSize > 0) {
+			int cell = pop();
+			if (cell == goal) {
+				smooth(goal, goalX, goalY, out);
+				return true;
+			}
+			closed[cell] = true;
+			++lastExpanded;
+			expand(cell, goalCol, goalRow);
+		}
+		return false;
+	}
+
+	/**
+	 * Relaxes every neighbour of a cell
+	 */
+	private void expand(int cell, int goalCol, int goalRow) {
+		int col = cell % cols, row = cell / cols;
+		boolean fromBlocked = grid.isBlocked(cell);
+		for (int dRow = -1; dRow <= 1; ++dRow) {
+			int nRow = row + dRow;
+			if (nRow < 0 || nRow >= rows)
+				continue;
+			for (int dCol = -1; dCol <= 1; ++dCol) {
+				if (dRow == 0 && dCol == 0)
+					continue;
+				int nCol = col + dCol;
+				if (nCol < 0 || nCol >= cols)
+					continue;
+				int next = nRow * cols + nCol;
+				int cost = (dRow != 0 && dCol != 0) ? DIAGONAL : STRAIGHT;
+				if (grid.isBlocked(next)) {
+					// Only allowed while escaping from inside an obstacle
+					if (!fromBlocked)
+						continue;
+					cost *= BLOCKED_PENALTY;
+				} else if (dRow != 0 && dCol != 0 && !fromBlocked
+						&& (grid.isBlocked(row * cols + nCol) || grid
+								.isBlocked(nRow * cols + col))) {
+					// Don't cut the corner of a blocked cell
+					continue;
+				}
+				relax(cell, next, g[cell] + cost, goalCol, goalRow);
+			}
+		}
+	}
+
+	private void relax(int from, int next, int cost, int goalCol, int goalRow) {
+		if (stamp[next] != search) {
+			touch(next);
+		} else if (closed[next] || cost >= g[next]) {
+			return;
+		}
+		g[next] = cost;
+		parent[next] = from;
+		long f = cost + heuristic(next, goalCol, goalRow);
+		if (heapIndex[next] == 0)
+			push(next, f, cost);
+		else
+			decrease(next, f, cost);
+	}
+
+	/**
+	 * Resets a cell's search state the first time this search reaches it
+	 */
+	private void touch(int cell) {
+		stamp[cell] = search;
+		g[cell] = Integer.MAX_VALUE;
+		closed[cell] = false;
+		heapIndex[cell] = 0;
+	}
+
+	/**
+	 * Octile distance to the goal, which never overestimates on this grid
+	 */
+	private int heuristic(int cell, int goalCol, int goalRow) {
+		int dx = Math.abs(cell % cols - goalCol);
+		int dy = Math.abs(cell / cols - goalRow);
+		return STRAIGHT * Math.max(dx, dy) + (DIAGONAL - STRAIGHT)
+				* Math.min(dx, dy);
+	}
+
+	/**
+	 * Builds the heap ordering key: lowest f first, breaking ties towards the
+	 * cell with the highest g, which is nearer the goal
+	 */
+	private static long makeKey(long f, int g) {
+		return (f << 32) - g;
+	}
+
+	private void push(int cell, long f, int cost) {
+		key[cell] = makeKey(f, cost);
+		heap[heapSize] = cell;
+		heapIndex[cell] = heapSize + 1;
+		siftUp(heapSize++);
+	}
+
+	private void decrease(int cell, long f, int cost) {
+		key[cell] = makeKey(f, cost);
+		siftUp(heapIndex[cell] - 1);
+	}
+
+	private int pop() {
+		int top = heap[0];
+		heapIndex[top] = 0;
+		if (--heapSize > 0) {
+			heap[0] = heap[heapSize];
+			heapIndex[heap[0]] = 1;
+			siftDown(0);
+		}
+		return top;
+	}
+
+	private void siftUp(int i) {
+		int cell = heap[i];
+		long k = key[cell];
+		while (i > 0) {
+			int up = (i - 1) >>> 1;
+			int other = heap[up];
+			if (key[other] <= k)
+				break;
+			heap[i] = other;
+			heapIndex[other] = i + 1;
+			i = up;
+		}
+		heap[i] = cell;
+		heapIndex[cell] = i + 1;
+	}
+
+	private void siftDown(int i) {
+		int cell = heap[i];
+		long k = key[cell];
+		int half = heapSize >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < heapSize && key[heap[right]] < key[heap[child]])
+				child = right;
+			if (k <= key[heap[child]])
+				break;
+			heap[i] = heap[child];
+			heapIndex[heap[i]] = i + 1;
+			i = child;
+		}
+		heap[i] = cell;
+		heapIndex[cell] = i + 1;
+	}
+
+	/**
+	 * Follows the parents back from the goal, then keeps only the cells where
+	 * the path has to turn to stay in line of sight
+	 */
+	private void smooth(int goal, double goalX, double goalY, Path out) {
+		int count = 0;
+		for (int cell = goal; cell != -1; cell = parent[cell])
+			cells[count++] = cell;
+		smoothCells(grid, cells, count, goalX, goalY, out);
+	}
+
+	/**
+	 * Turns a raw cell path into waypoints by string pulling: from each
+	 * waypoint, head for the furthest cell still in line of sight
+	 *
+	 * @param grid
+	 *            The grid the path was planned over
+	 * @param cells
+	 *            The cells of the path, goal first and start last
+	 * @param count
+	 *            The number of cells in the path
+	 * @param goalX
+	 * @param goalY
+	 * @param out
+	 *            Receives the waypoints, not including the start and ending
+	 *            exactly at the goal
+	 */
+	static void smoothCells(PitchGrid grid, int[] cells, int count,
+			double goalX, double goalY, Path out) {
+		int cols = grid.getColumns();
+		int anchor = cells[count - 1];
+		for (int i = count - 2; i > 0; --i) {
+			if (!grid.lineOfSight(anchor, cells[i - 1])) {
+				anchor = cells[i];
+				out.add(grid.centreX(anchor % cols), grid.centreY(anchor / cols));
+			}
+		}
+		out.add(goalX, goalY);
+	}
+}
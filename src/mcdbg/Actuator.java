@@ -0,0 +1,92 @@
+package mcdbg;
+
+/**
+ * Carries out a {@link Mover}'s commands on a robot. <br/>
+ * The mover calls these from whichever thread is running its movements, one
+ * at a time, so an implementation only needs to be thread safe if it is
+ * shared or also used elsewhere. Calls should return quickly: the mover does
+ * its own waiting.
+ *
+ * @see Mover#setActuator(Actuator)
+ * @see SimulatedRobot
+ */
+public interface Actuator {
+	/** Does nothing, for movers with no robot attached */
+	Actuator NONE = new Actuator() {
+		@Override
+		public void move(double speedX, double speedY) {
+		}
+
+		@Override
+		public void move(double angle) {
+		}
+
+		@Override
+		public void moveTowards(double x, double y) {
+		}
+
+		@Override
+		public long rotate(double angleRad) {
+			// As long as the old hard-coded wait
+			return 5 * (long) Math.toDegrees(angleRad);
+		}
+
+		@Override
+		public void stop() {
+		}
+
+		@Override
+		public void kick() {
+		}
+	};
+
+	/**
+	 * Sets the robot moving as seen from its own position, until told
+	 * otherwise
+	 *
+	 * @param speedX
+	 *            Speed right (for positive values) or left (for negative
+	 *            ones), between -100 and 100
+	 * @param speedY
+	 *            Speed forward (for positive values) or backward (for negative
+	 *            ones), between -100 and 100
+	 */
+	void move(double speedX, double speedY);
+
+	/**
+	 * Sets the robot moving at full speed, until told otherwise
+	 *
+	 * @param angle
+	 *            Clockwise angle from the front of the robot, in radians
+	 */
+	void move(double angle);
+
+	/**
+	 * Sets the robot heading for a point of the video feed, until told
+	 * otherwise. Called once per tick of the mover's control loop.
+	 *
+	 * @param x
+	 * @param y
+	 */
+	void moveTowards(double x, double y);
+
+	/**
+	 * Starts the robot turning on the spot
+	 *
+	 * @param angleRad
+	 *            Clockwise angle to turn, in radians
+	 * @return The time the turn will take, in milliseconds, which the mover
+	 *         waits out before its next movement
+	 */
+	long rotate(double angleRad);
+
+	/**
+	 * Stops the robot
+	 */
+	void stop();
+
+	/**
+	 * Kicks
+	 */
+	void kick();
+}
@@ -0,0 +1,97 @@
+package mcdbg;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Checks that queueing and running movements on a warmed-up mover allocates
+ * nothing, using the per-thread allocation counters of HotSpot's ThreadMXBean.
+ * <br/>
+ * Pass a log level (e.g. DEBUG) as the first argument to include the cost of
+ * logging; by default logging is off. Exits with status 1 if either thread
+ * allocates more than {@link #MAX_BYTES_PER_MOVEMENT} per movement, which
+ * leaves room for a stray one-off allocation by the JIT but not for anything
+ * allocated per movement.
+ */
+public class AllocationCheck {
+	private static final int BATCH_SIZE = 512;
+	/**
+	 * Enough for the JIT to have finished with the mover's loop: with fewer,
+	 * a late compilation sometimes lands in the measurement
+	 */
+	private static final int WARMUP_BATCHES = 400;
+	private static final int MEASURED_BATCHES = 200;
+	/** Most bytes either thread may allocate per movement measured */
+	private static final double MAX_BYTES_PER_MOVEMENT = 0.01;
+	/**
+	 * Calls of the allocation counters before measuring: they allocate once
+	 * themselves when the JIT compiles them
+	 */
+	private static final int COUNTER_WARMUP_CALLS = 20000;
+
+	public static void main(String[] args) throws InterruptedException {
+		java.lang.management.ThreadMXBean bean = ManagementFactory
+				.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			System.out.println("Per-thread allocation counters unavailable");
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		Mover mover = new Mover();
+		// Logging is measured separately by turning it back on
+		MoverLog log = MoverLog.silent();
+		if (args.length > 0)
+			log.setLevel(MoverLog.Level.valueOf(args[0]));
+		mover.setLog(log);
+		mover.start();
+		runBatches(mover, WARMUP_BATCHES);
+
+		long producerId = Thread.currentThread().getId();
+		for (int i = 0; i < COUNTER_WARMUP_CALLS; ++i) {
+			threads.getThreadAllocatedBytes(producerId);
+			threads.getThreadAllocatedBytes(mover.getId());
+		}
+		long producerBefore = threads.getThreadAllocatedBytes(producerId);
+		long moverBefore = threads.getThreadAllocatedBytes(mover.getId());
+		runBatches(mover, MEASURED_BATCHES);
+		long producerBytes = threads.getThreadAllocatedBytes(producerId)
+				- producerBefore;
+		long moverBytes = threads.getThreadAllocatedBytes(mover.getId())
+				- moverBefore;
+
+		mover.kill();
+		mover.join();
+
+		long jobs = (long) BATCH_SIZE * MEASURED_BATCHES;
+		System.out.println("Log level: " + log.getLevel());
+		System.out.println("Movements queued: " + jobs);
+		System.out.println("Producer allocated " + producerBytes + " bytes ("
+				+ ((double) producerBytes / jobs) + " per movement)");
+		System.out.println("Mover allocated " + moverBytes + " bytes ("
+				+ ((double) moverBytes / jobs) + " per movement)");
+		boolean passed = (double) producerBytes / jobs <= MAX_BYTES_PER_MOVEMENT
+				&& (double) moverBytes / jobs <= MAX_BYTES_PER_MOVEMENT;
+		System.out.println((passed ? "PASS" : "FAIL") + " (limit "
+				+ MAX_BYTES_PER_MOVEMENT + " bytes per movement)");
+		if (!passed)
+			System.exit(1);
+	}
+
+	/**
+	 * Queues batches of instant movements, waiting for each batch to drain so
+	 * configs are recycled rather than the queue filling up
+	 */
+	private static void runBatches(Mover mover, int batches)
+			throws InterruptedException {
+		for (int i = 0; i < batches; ++i) {
+			for (int j = 0; j < BATCH_SIZE; ++j) {
+				if ((j & 1) == 0)
+					mover.move(j, -j);
+				else
+					mover.stopRobot();
+			}
+			mover.waitForAll();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package mcdbg;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a mover takes to stop a running movement once it has
+ * been cancelled, from the call to cancel until the movement's ticket
+ * finishes, and checks that every cancellation was seen within
+ * {@link #BOUND_MILLIS}. <br/>
+ * Runs against a {@link SimulatedRobot} so the moveTo control loops are
+ * closed. Exits with status 1 if any cancellation was slower than the bound
+ * or any movement finished with the wrong outcome. <br/>
+ * Usage: CancellationLatency [trials]
+ */
+public class CancellationLatency {
+	private static final int DEFAULT_TRIALS = 100;
+	/**
+	 * Cancellation wakes the mover straight out of its pauses, so it should
+	 * take far less than one 42 ms control loop tick
+	 */
+	private static final long BOUND_MILLIS = 5;
+	private static final long VISION_PERIOD = 20;
+
+	private static final String[] KINDS = { "delay", "moveTo", "moveToAStar" };
+
+	public static void main(String[] args) throws InterruptedException {
+		int trials = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_TRIALS;
+		Mover mover = new Mover();
+		mover.setLog(MoverLog.silent());
+		SimulatedRobot robot = new SimulatedRobot(40, 40, 0);
+		mover.setActuator(robot);
+		SimulatedRobot.Vision vision = robot.startVision(mover.getWorld(),
+				VISION_PERIOD);
+		mover.start();
+
+		Random random = new Random(42);
+		boolean ok = true;
+		for (int kind = 0; kind < KINDS.length; ++kind) {
+			LatencyHistogram latency = new LatencyHistogram(
+					TimeUnit.SECONDS.toNanos(10));
+			int wrong = 0;
+			for (int i = 0; i < trials; ++i) {
+				// Far enough away that the movement can't finish first
+				WorldModel.Position at = robot.getPosition();
+				double x = at.x < 320 ? 600 : 40, y = at.y < 240 ? 440 : 40;
+				long ticket = kind == 0 ? mover.delay(10000)
+						: kind == 1 ? mover.moveTo(x, y) : mover.moveToAStar(
+								x, y, false, false);
+				// Cancel at a random point in the movement
+				Thread.sleep(5 + random.nextInt(60));
+				long before = System.nanoTime();
+				long cancelled = mover.cancelCurrent();
+				MoveOutcome outcome = mover.waitUntil(ticket);
+				latency.record(System.nanoTime() - before);
+				if (cancelled != ticket || outcome != MoveOutcome.CANCELLED)
+					++wrong;
+				mover.waitUntil(mover.stopRobot());
+			}
+			long worst = TimeUnit.NANOSECONDS.toMillis(latency.getMax());
+			boolean passed = wrong == 0 && worst < BOUND_MILLIS;
+			ok &= passed;
+			System.out.println("Cancel a running " + KINDS[kind] + ": "
+					+ (passed ? "PASS" : "FAIL") + " (" + wrong
+					+ " wrong outcomes)");
+			System.out.println("  ns: " + latency.snapshot());
+		}
+
+		ok &= checkQueued(mover);
+		vision.cancel();
+		mover.kill();
+		mover.awaitTermination();
+		if (!ok)
+			System.exit(1);
+	}
+
+	/**
+	 * Checks that cancelling queued movements skips exactly the ones asked
+	 * for
+	 */
+	private static boolean checkQueued(Mover mover) throws InterruptedException {
+		long first = mover.delay(200);
+		long second = mover.delay(200);
+		long third = mover.delay(200);
+		long fourth = mover.delay(10);
+		long fifth = mover.delay(10);
+		Thread.sleep(20);
+		long before = System.nanoTime();
+		mover.cancelThrough(second);
+		mover.cancel(fourth);
+		MoveOutcome firstOutcome = mover.waitUntil(first);
+		long latency = System.nanoTime() - before;
+		mover.waitForAll();
+		boolean passed = firstOutcome == MoveOutcome.CANCELLED
+				&& mover.getOutcome(second) == MoveOutcome.CANCELLED
+				&& mover.getOutcome(third) == MoveOutcome.COMPLETED
+				&& mover.getOutcome(fourth) == MoveOutcome.CANCELLED
+				&& mover.getOutcome(fifth) == MoveOutcome.COMPLETED
+				&& latency < TimeUnit.MILLISECONDS.toNanos(BOUND_MILLIS);
+		System.out.println("Cancel queued movements: "
+				+ (passed ? "PASS" : "FAIL") + " (" + firstOutcome + " "
+				+ mover.getOutcome(second) + " " + mover.getOutcome(third)
+				+ " " + mover.getOutcome(fourth) + " "
+				+ mover.getOutcome(fifth) + ", running one stopped in "
+				+ latency + " ns)");
+		return passed;
+	}
+}
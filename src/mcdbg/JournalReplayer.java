@@ -0,0 +1,188 @@
+package mcdbg;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds the movements recorded in a {@link MoverJournal} back into a
+ * {@link Mover}, keeping their original spacing in time or speeding it up.
+ * <br/>
+ * Only the ENQUEUED records are replayed; what the mover then does with them
+ * is up to the mover. Urgent stops and kicks are queued as urgent again, and
+ * movements that can be given a time to live are given the one they had.
+ * Other kinds only ever get the replaying mover's defaults.
+ * <br/>
+ * Usage: JournalReplayer dump|replay|throughput journal [speed]. dump prints
+ * every record, replay queues the movements on a new mover at the given
+ * speed (1 by default, 0 for as fast as possible) and throughput queues them
+ * as fast as possible and reports how quickly they were taken and run.
+ */
+public class JournalReplayer {
+	private final List<MoverJournal.Record> commands;
+
+	/**
+	 * @param records
+	 *            Records read from a journal. Anything but ENQUEUED records is
+	 *            ignored.
+	 */
+	public JournalReplayer(List<MoverJournal.Record> records) {
+		commands = new ArrayList<MoverJournal.Record>();
+		for (MoverJournal.Record record : records)
+			if (record.type == MoverJournal.RecordType.ENQUEUED)
+				commands.add(record);
+		// Producers on different threads may have claimed their slots in a
+		// slightly different order to the one they queued in
+		Collections.sort(commands, new Comparator<MoverJournal.Record>() {
+			@Override
+			public int compare(MoverJournal.Record a, MoverJournal.Record b) {
+				return Long.compare(a.nanoTime, b.nanoTime);
+			}
+		});
+	}
+
+	/**
+	 * @param file
+	 *            The journal to read
+	 * @return A replayer for the movements in the journal
+	 * @throws IOException
+	 *             If the journal can't be read
+	 */
+	public static JournalReplayer load(File file) throws IOException {
+		return new JournalReplayer(MoverJournal.read(file));
+	}
+
+	/**
+	 * @return The number of movements to replay
+	 */
+	public int size() {
+		return commands.size();
+	}
+
+	/**
+	 * @return The time between the first and last movements being queued
+	 *         originally, in nanoseconds
+	 */
+	public long getDurationNanos() {
+		if (commands.isEmpty())
+			return 0;
+		return commands.get(commands.size() - 1).nanoTime
+				- commands.get(0).nanoTime;
+	}
+
+	/**
+	 * Queues every movement on a mover, spaced out as they were originally
+	 *
+	 * @param mover
+	 *            The mover to queue the movements on
+	 * @param speed
+	 *            How many times faster than the original to replay, such as 1
+	 *            for real time. 0, a negative number or infinity queues every
+	 *            movement as fast as possible.
+	 * @return The ticket of the last movement queued, or {@link Mover#REJECTED}
+	 *         if there was nothing to replay or it was rejected
+	 * @throws InterruptedException
+	 *             If the replaying thread is interrupted
+	 */
+	public long replay(Mover mover, double speed) throws InterruptedException {
+		boolean paced = speed > 0 && !Double.isInfinite(speed);
+		long ticket = Mover.REJECTED;
+		if (commands.isEmpty())
+			return ticket;
+		long first = commands.get(0).nanoTime;
+		long start = System.nanoTime();
+		for (MoverJournal.Record command : commands) {
+			if (paced) {
+				long deadline = start
+						+ (long) ((command.nanoTime - first) / speed);
+				long remaining;
+				while ((remaining = deadline - System.nanoTime()) > 0)
+					LockSupport.parkNanos(this, remaining);
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			ticket = submit(mover, command);
+		}
+		return ticket;
+	}
+
+	/**
+	 * Queues one recorded movement on a mover
+	 *
+	 * @param mover
+	 *            The mover to queue the movement on
+	 * @param command
+	 *            The movement
+	 * @return The movement's ticket
+	 */
+	private static long submit(Mover mover, MoverJournal.Record command) {
+		long ttl = command.timeToLiveMillis;
+		switch (command.mode) {
+		case STOP:
+			return command.urgent ? mover.stopRobotNow() : mover.stopRobot();
+		case KICK:
+			return command.urgent ? mover.kickNow() : mover.kick();
+		case DELAY:
+			return mover.delay(command.milliseconds);
+		case MOVE_VECTOR:
+			return mover.move(command.x, command.y, ttl);
+		case MOVE_ANGLE:
+			return mover.move(command.angle);
+		case MOVE_TO:
+			return mover.moveTo(command.x, command.y, ttl);
+		case MOVE_TO_STOP:
+			return mover.moveToAndStop(command.x, command.y);
+		case MOVE_TO_ASTAR:
+			return mover.moveToAStar(command.x, command.y, command.avoidBall,
+					command.avoidEnemy, ttl);
+		case MOVE_TOWARDS:
+			return mover.moveTowards(command.x, command.y, ttl);
+		case ROTATE:
+			return mover.rotate(command.angle);
+		default:
+			throw new IllegalArgumentException("Unknown mode: "
+					+ command.mode);
+		}
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: JournalReplayer dump|replay|throughput"
+					+ " journal [speed]");
+			System.exit(1);
+		}
+		File file = new File(args[1]);
+		if (args[0].equals("dump")) {
+			for (MoverJournal.Record record : MoverJournal.read(file))
+				System.out.println(record);
+			return;
+		}
+
+		JournalReplayer replayer = load(file);
+		double speed = args[0].equals("throughput") ? 0
+				: args.length > 2 ? Double.parseDouble(args[2]) : 1;
+		Mover mover = new Mover();
+		mover.start();
+
+		long before = System.nanoTime();
+		long last = replayer.replay(mover, speed);
+		long queued = System.nanoTime() - before;
+		mover.waitForAll();
+		long elapsed = System.nanoTime() - before;
+		mover.kill();
+		mover.awaitTermination();
+
+		System.out.println("Replayed " + replayer.size() + " movements"
+				+ " (last ticket " + last + ", originally over "
+				+ (replayer.getDurationNanos() / 1000000) + " ms)");
+		System.out.println("Queued in " + (queued / 1000000) + " ms ("
+				+ (long) (replayer.size() / (queued / 1e9)) + " per second)");
+		System.out.println("Finished in " + (elapsed / 1000000) + " ms");
+		System.out.println(mover.getMetrics().snapshot());
+	}
+}
@@ -0,0 +1,211 @@
+package mcdbg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket histogram of non-negative values, such as latencies in
+ * nanoseconds or queue depths. <br/>
+ * Buckets are laid out like HdrHistogram's: exact below 32, then 16 buckets
+ * per power of two, so any value is recorded to within about 6%. The buckets
+ * are allocated up front, so recording never allocates, and any number of
+ * threads may record at once. <br/>
+ * Reading while other threads record gives a view that may be a few samples
+ * out, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+	/** Values below this each get their own bucket */
+	private static final int LINEAR_BUCKETS = 32;
+	/** Number of bits of a value's magnitude that pick its bucket */
+	private static final int LINEAR_BITS = 5;
+	/** Number of buckets per power of two above the linear range */
+	private static final int SUB_BUCKETS = 16;
+
+	private final long highestTrackableValue;
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong total = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * @param highestTrackableValue
+	 *            The largest value to tell apart from others. Larger values
+	 *            are counted in the top bucket, though the maximum is still
+	 *            tracked exactly.
+	 */
+	public LatencyHistogram(long highestTrackableValue) {
+		if (highestTrackableValue < 1)
+			throw new IllegalArgumentException(
+					"Highest trackable value must be positive");
+		this.highestTrackableValue = highestTrackableValue;
+		counts = new AtomicLongArray(bucketOf(highestTrackableValue) + 1);
+	}
+
+	/**
+	 * @return The index of the bucket a value falls in
+	 */
+	private static int bucketOf(long value) {
+		if (value < LINEAR_BUCKETS)
+			return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - 4)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (magnitude - LINEAR_BITS) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The largest value that falls in a bucket
+	 */
+	private static long highestValueIn(int bucket) {
+		if (bucket < LINEAR_BUCKETS)
+			return bucket;
+		int above = bucket - LINEAR_BUCKETS;
+		int magnitude = above / SUB_BUCKETS + LINEAR_BITS;
+		long sub = above % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (magnitude - 4)) - 1;
+	}
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 *
+	 * @param value
+	 *            The value to record
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(bucketOf(Math.min(value, highestTrackableValue)));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value))
+				break;
+		}
+	}
+
+	/**
+	 * Clears every recorded value. Values recorded during the reset may or
+	 * may not survive it.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); ++i)
+			counts.set(i, 0);
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	/**
+	 * @return The number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return The largest value recorded, or 0 if there are none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return The mean of the values recorded, or 0 if there are none
+	 */
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile to find, from 0 to 100
+	 * @return A value at least as large as the given percentage of recorded
+	 *         values and within a bucket of it, or 0 if there are none
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < counts.length(); ++i)
+			n += counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValueIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return A summary of the values recorded so far
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+
+	/**
+	 * An unchanging summary of a histogram at one point in time
+	 */
+	public static class Snapshot {
+		private final long count;
+		private final double mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long p999;
+		private final long max;
+
+		private Snapshot(LatencyHistogram histogram) {
+			count = histogram.getCount();
+			mean = histogram.getMean();
+			p50 = histogram.getValueAtPercentile(50);
+			p90 = histogram.getValueAtPercentile(90);
+			p99 = histogram.getValueAtPercentile(99);
+			p999 = histogram.getValueAtPercentile(99.9);
+			max = histogram.getMax();
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public long getP50() {
+			return p50;
+		}
+
+		public long getP90() {
+			return p90;
+		}
+
+		public long getP99() {
+			return p99;
+		}
+
+		public long getP999() {
+			return p999;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + Math.round(mean) + " p50="
+					+ p50 + " p90=" + p90 + " p99=" + p99 + " p99.9=" + p999
+					+ " max=" + max;
+		}
+	}
+}
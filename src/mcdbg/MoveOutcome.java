@@ -0,0 +1,51 @@
+package mcdbg;
+
+/**
+ * The state of a movement queued on a {@link Mover}, as reported for the
+ * ticket returned when the movement was queued
+ *
+ * @see Mover#getOutcome(long)
+ * @see Mover#waitUntil(long)
+ */
+public enum MoveOutcome {
+	/** The movement is queued or currently executing */
+	PENDING,
+	/** The movement ran to completion */
+	COMPLETED,
+	/** The movement was cut short by an urgent movement */
+	PREEMPTED,
+	/**
+	 * The movement was cancelled, either before it started or while it was
+	 * running
+	 *
+	 * @see Mover#cancel(long)
+	 */
+	CANCELLED,
+	/** The movement threw an error while executing */
+	FAILED,
+	/** The movement was removed from the queue by a reset before it ran */
+	DISCARDED,
+	/**
+	 * The movement was skipped because a newer movement of the same kind
+	 * replaced it
+	 */
+	COALESCED,
+	/**
+	 * The movement was skipped because it had been queued for longer than
+	 * its time to live
+	 */
+	EXPIRED,
+	/** The movement could not be queued */
+	REJECTED,
+	/**
+	 * The movement was dropped because the queue was full
+	 *
+	 * @see Mover.OverflowPolicy
+	 */
+	DROPPED,
+	/**
+	 * The movement finished too long ago for its outcome to still be
+	 * recorded
+	 */
+	UNKNOWN
+}
@@ -0,0 +1,190 @@
+package mcdbg;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring buffer used as the mover's job queue. <br/>
+ * Any number of threads may offer to the queue concurrently. It is intended
+ * to be drained by a single consumer (the mover thread), but the consumer side
+ * claims slots with a CAS rather than a plain write so that resetQueue() and
+ * kill() may safely drain it from a producer thread. <br/>
+ * Each slot carries a sequence number that tells producers and the consumer
+ * whose turn it is to use the slot, so neither side ever takes a lock.
+ *
+ * @param <E>
+ *            The type of element held in the queue
+ */
+class MoveQueue<E> {
+	private final int capacity;
+	private final int mask;
+
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+
+	/** Next position a producer will claim */
+	private final AtomicLong tail = new AtomicLong(0);
+	/** Next position the consumer will claim */
+	private final AtomicLong head = new AtomicLong(0);
+
+	/**
+	 * @param capacity
+	 *            The minimum number of elements the queue can hold. This is
+	 *            rounded up to the next power of 2.
+	 */
+	public MoveQueue(int capacity) {
+		if (capacity < 2)
+			capacity = 2;
+		int size = Integer.highestOneBit(capacity - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		buffer = new AtomicReferenceArray<E>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i)
+			sequences.set(i, i);
+	}
+
+	/**
+	 * Attempts to add an element to the tail of the queue without blocking
+	 *
+	 * @param element
+	 *            The element to add - must not be null
+	 * @return true if the element was added, false if the queue was full
+	 */
+	public boolean offer(E element) {
+		assert (element != null) : "MoveQueue does not permit null elements";
+		long pos;
+		int idx;
+		while (true) {
+			pos = tail.get();
+			idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+			} else if (diff < 0) {
+				// The slot still holds an element from the previous lap
+				return false;
+			}
+			// Otherwise another producer claimed this position first
+		}
+		buffer.lazySet(idx, element);
+		// Publish the element to the consumer
+		sequences.set(idx, pos + 1);
+		return true;
+	}
+
+	/**
+	 * Attempts to add a sequence of elements to the tail of the queue as one
+	 * contiguous block without blocking. No other producer's elements can be
+	 * interleaved with the block, and the consumer cannot see any of it until
+	 * all of it has been written.
+	 *
+	 * @param elements
+	 *            The elements to add - none may be null
+	 * @param count
+	 *            The number of elements from the start of the array to add
+	 * @return true if every element was added, false if the queue did not have
+	 *         room for all of them (in which case none were added)
+	 */
+	public boolean offerAll(E[] elements, int count) {
+		if (count <= 0)
+			return true;
+		if (count > capacity)
+			return false;
+		long pos;
+		claim: while (true) {
+			pos = tail.get();
+			for (int i = 0; i < count; ++i) {
+				long diff = sequences.get((int) ((pos + i) & mask)) - (pos + i);
+				if (diff < 0)
+					return false;
+				if (diff > 0)
+					continue claim;
+			}
+			if (tail.compareAndSet(pos, pos + count))
+				break;
+		}
+		for (int i = 0; i < count; ++i) {
+			assert (elements[i] != null) : "MoveQueue does not permit null elements";
+			buffer.lazySet((int) ((pos + i) & mask), elements[i]);
+		}
+		// Publish back to front, so the consumer only reaches the block once
+		// the whole block is visible
+		for (int i = count - 1; i >= 0; --i)
+			sequences.set((int) ((pos + i) & mask), pos + i + 1);
+		return true;
+	}
+
+	/**
+	 * Removes and returns the element at the head of the queue
+	 *
+	 * @return The head of the queue, or null if the queue is empty
+	 */
+	public E poll() {
+		long pos;
+		int idx;
+		while (true) {
+			pos = head.get();
+			idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - (pos + 1);
+			if (diff == 0) {
+				if (head.compareAndSet(pos, pos + 1))
+					break;
+			} else if (diff < 0) {
+				// Empty, or the producer hasn't finished publishing yet
+				return null;
+			}
+		}
+		E element = buffer.get(idx);
+		buffer.lazySet(idx, null);
+		// Hand the slot back to the producers for the next lap
+		sequences.set(idx, pos + capacity);
+		return element;
+	}
+
+	/**
+	 * Removes every element currently in the queue
+	 *
+	 * @return The number of elements removed
+	 */
+	public int clear() {
+		int removed = 0;
+		while (poll() != null)
+			++removed;
+		return removed;
+	}
+
+	/**
+	 * @return An estimate of the number of queued elements. This is exact when
+	 *         the queue is not being modified, and never negative or larger
+	 *         than the capacity.
+	 */
+	public int size() {
+		// Read head first so a concurrent poll can only make the result larger
+		// than the true size, which is then clamped
+		long h = head.get();
+		long t = tail.get();
+		long size = t - h;
+		if (size < 0)
+			return 0;
+		if (size > capacity)
+			return capacity;
+		return (int) size;
+	}
+
+	/**
+	 * @return true if the queue currently holds no elements
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * @return The maximum number of elements the queue can hold
+	 */
+	public int capacity() {
+		return capacity;
+	}
+}
@@ -1,17 +1,37 @@
 package mcdbg;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.locks.ReentrantLock;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import safesleep.SafeSleep;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import mcdbg.MoverLog.Event;
+import safesleep.Clock;
+import safesleep.FixedRateTicker;
 
 /**
- * TODO: Add a queue to permit multiple threads waiting on the mover thread to
- * complete (will need to store the point in the movement queue it's waiting
- * on). <br/>
  * A movement class, that provides calculations for different move commands for
- * the robot.
+ * the robot. <br/>
+ * By default each mover runs its movements on its own thread. A mover created
+ * with an {@link Executor} instead runs them as tasks on that executor, only
+ * while it has movements queued, so many movers can share a few threads. See
+ * {@link #sharedScheduler()}.
  * 
  * @author Jakov Smelkin - movement
  * @author Alex Adams (s1046358) - threading
@@ -26,69 +46,826 @@ public class Mover extends Thread {
 	 * {@link Mover#doMoveToAndStop(double x, double y)} , <br/>
 	 * {@link Mover#doMoveToAStar(double x, double y, boolean avoidBall)} ,<br/>
 	 * {@link Mover#doMoveTowards (double x, double y)} , <br/>
-	 * {@link Mover#doRotate (double angle)}
+	 * {@link Mover#doRotate (double angle)} <br/>
+	 * Also names the kinds of movement for settings kept per kind, such as
+	 * {@link Mover#setDefaultTimeToLive(Mode, long)}.
 	 */
-	private enum Mode {
+	public enum Mode {
 		STOP, KICK, DELAY, MOVE_VECTOR, MOVE_ANGLE, MOVE_TO, MOVE_TO_STOP, MOVE_TO_ASTAR, MOVE_TOWARDS, ROTATE
 	};
 
-	/** Settings info class to permit queueing of movements */
-	private class MoverConfig {
+	/**
+	 * Settings info class to permit queueing of movements. Instances are
+	 * recycled through the mover's config pool once the movement has finished,
+	 * so nothing may hold on to one after handing it to the queue.
+	 */
+	static class MoverConfig {
 		public double x = 0;
 		public double y = 0;
 		public double angle = 0;
 		public boolean avoidBall = false;
 		public boolean avoidEnemy = false;
 		public long milliseconds = 0;
+		/** Set if the movement was queued on the urgent queue */
+		public boolean urgent = false;
+		/**
+		 * Longest the movement may wait in the queue before it is skipped,
+		 * in nanoseconds, or 0 for no limit
+		 */
+		public long timeToLive = 0;
+		/** A moveToAStar path being planned ahead, if any */
+		public SpeculativePlan speculation = null;
 
 		public Mode mode;
+		/** The ticket handed back to whoever queued the movement */
+		public long ticket;
+		/** The mover's clock time at which the movement was queued */
+		public long queuedAt;
+
+		/** Restores the defaults so the config can be reused */
+		public void reset() {
+			x = 0;
+			y = 0;
+			angle = 0;
+			avoidBall = false;
+			avoidEnemy = false;
+			milliseconds = 0;
+			urgent = false;
+			timeToLive = 0;
+			speculation = null;
+			mode = null;
+			ticket = 0;
+			queuedAt = 0;
+		}
 	};
 
-	private boolean running = false;
-	private boolean interruptMove = false;
-	private boolean die = false;
+	/**
+	 * What to do with a movement queued while the queue is full
+	 * 
+	 * @see Mover#setOverflowPolicy(OverflowPolicy)
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * Retry briefly, then give up on the new movement and return
+		 * {@link Mover#REJECTED}
+		 */
+		REJECT,
+		/**
+		 * Wait for the mover to make room, for up to the block timeout, and
+		 * return {@link Mover#TIMED_OUT} if it doesn't
+		 */
+		BLOCK,
+		/**
+		 * Make room by dropping the oldest queued movements, which finish
+		 * as {@link MoveOutcome#DROPPED}
+		 */
+		DROP_OLDEST,
+		/**
+		 * Drop the new movement and return {@link Mover#DROPPED} if the
+		 * newest queued movement is of the same kind, which already asks
+		 * for much the same thing; otherwise behave like REJECT. Plans are
+		 * always treated as REJECT.
+		 */
+		DROP_NEWEST_SAME_MODE
+	};
 
-	private ConcurrentLinkedQueue<MoverConfig> moveQueue = new ConcurrentLinkedQueue<MoverConfig>();
-	private ReentrantLock queueLock = new ReentrantLock(true);
+	/** Returned instead of a ticket when a movement could not be queued */
+	public static final long REJECTED = -1;
+	/**
+	 * Returned instead of a ticket when the queue stayed full for the whole
+	 * block timeout
+	 */
+	public static final long TIMED_OUT = -2;
+	/**
+	 * Returned instead of a ticket when a movement was dropped because the
+	 * queue was full
+	 */
+	public static final long DROPPED = -3;
+	/** Returned by the push methods when the movement was queued */
+	private static final long QUEUED = 0;
+
+	/** Default number of movements that can be queued at once */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/** Default longest time a BLOCK push waits for room, in milliseconds */
+	public static final long DEFAULT_BLOCK_TIMEOUT = 100;
+	/** Longest a blocked push parks before checking for room again */
+	private static final long BLOCK_POLL_NANOS = TimeUnit.MICROSECONDS
+			.toNanos(100);
+	/** Number of urgent movements that can be queued at once */
+	private static final int URGENT_QUEUE_CAPACITY = 64;
+	/**
+	 * Period of the moveTo control loop, in milliseconds. 42 because it's The
+	 * Answer to the Ultimate Question of Life, the Universe, and Everything
+	 */
+	private static final long MOVE_TO_PERIOD = 42;
+	/** Number of control loop ticks in a moveTo */
+	private static final int MOVE_TO_TICKS = 20;
+	/**
+	 * Number of moveTo runs in a moveToAStar when our position is unknown, so
+	 * there is nothing to plan from
+	 */
+	private static final int MOVE_TO_ASTAR_RUNS = 10;
+	/**
+	 * Most control loop ticks spent heading for one waypoint of a planned
+	 * path before giving up on it
+	 */
+	private static final int WAYPOINT_TICKS = 100;
+	/**
+	 * Most control loop ticks spent on a moveToAStar when replanning, the
+	 * same time budget as when our position is unknown
+	 */
+	private static final int REPLAN_TICKS = MOVE_TO_ASTAR_RUNS * MOVE_TO_TICKS;
+	/** Distance from a point at which the robot counts as having reached it */
+	private static final double ARRIVAL_MARGIN = 10;
+	/** Radius of a robot, in video feed units */
+	private static final double ROBOT_RADIUS = 20;
+	/** Radius of the ball, in video feed units */
+	private static final double BALL_RADIUS = 4;
+	/** Extra space to leave around obstacles when planning */
+	private static final double OBSTACLE_CLEARANCE = 5;
+	/**
+	 * Furthest the robot may be from where a path planned ahead starts for
+	 * the path to still be used: the previous movement may stop anywhere
+	 * within the arrival margin of its target
+	 */
+	private static final double LOOKAHEAD_START_TOLERANCE = 2 * ARRIVAL_MARGIN;
+	/**
+	 * Furthest an obstacle may move after a path is planned ahead for the
+	 * path to still be used: any further and it could eat into the clearance
+	 */
+	private static final double LOOKAHEAD_OBSTACLE_TOLERANCE = OBSTACLE_CLEARANCE;
+	/** Longest time to wait for the log to catch up when the mover exits */
+	private static final long LOG_FLUSH_TIMEOUT = 1000;
+	/**
+	 * Most movements an executor-run mover processes before handing its
+	 * thread back to the executor, so busy movers can't starve the others
+	 */
+	private static final int DRAIN_BATCH = 64;
+	/**
+	 * Seconds a thread of the shared scheduler's fallback pool may sit idle
+	 * before it exits
+	 */
+	private static final long POOL_KEEP_ALIVE = 1;
 
-	private Semaphore jobSem = new Semaphore(0, true);
-	private Semaphore waitSem = new Semaphore(0, true);
+	/** Created when first asked for, then shared by every mover */
+	private static ExecutorService sharedScheduler = null;
+
+	private volatile boolean running = false;
+	/** The ticket of the movement running, or 0 if there isn't one */
+	private volatile long currentTicket = 0;
+	private volatile boolean die = false;
+	private volatile boolean coalescing = false;
+	private volatile boolean replanning = false;
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+	private volatile long blockTimeoutNanos = TimeUnit.MILLISECONDS
+			.toNanos(DEFAULT_BLOCK_TIMEOUT);
+	/**
+	 * The kind of movement last pushed onto the move queue, or null if the
+	 * queue has been reset since. Approximate when several threads queue at
+	 * once.
+	 */
+	private volatile Mode lastQueuedMode = null;
+
+	/** Runs the movements if not null, in place of this mover's own thread */
+	private final Executor executor;
+	/** Processes queued movements when the mover runs on an executor */
+	private final Runnable drainTask;
+	/** Set while a drain task is queued on the executor or running */
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	/** Set once start() has been called on an executor-run mover */
+	private volatile boolean started = false;
+	/** The thread currently running the mover's movements, if any */
+	private volatile Thread consumer = null;
+	/** Set once the mover has finished shutting down */
+	private boolean terminated = false;
+
+	private final MoveQueue<MoverConfig> moveQueue;
+	/**
+	 * Movements that jump ahead of everything in moveQueue and cut short
+	 * whatever non-urgent movement is running
+	 */
+	private final MoveQueue<MoverConfig> urgentQueue;
+	/** Set while the mover thread is parked waiting for a new job */
+	private volatile boolean parked = false;
+	/**
+	 * A movement the mover thread took off the queue while coalescing that
+	 * must run next. Only touched by the mover thread.
+	 */
+	private MoverConfig heldOver = null;
+	/** The number of resets when heldOver was taken off the queue */
+	private int heldOverResets = 0;
+	/** Bumped by every reset, so the mover can tell heldOver predates one */
+	private final AtomicInteger resets = new AtomicInteger(0);
+	private final AtomicLong coalescedCount = new AtomicLong(0);
+
+	/** Only touched by the mover thread: true if running an urgent movement */
+	private boolean runningUrgent = false;
+	/**
+	 * Only touched by the mover thread: set when the running movement has
+	 * been cut short by an urgent movement
+	 */
+	private boolean preempted = false;
+	/**
+	 * Only touched by the mover thread: set when the running movement has
+	 * seen that it has been cancelled
+	 */
+	private boolean cancelled = false;
+
+	/** Paces the control loop of moveTo and moveToAndStop movements */
+	private final FixedRateTicker moveToTicker = FixedRateTicker.ofMillis(
+			MOVE_TO_PERIOD, FixedRateTicker.OverrunPolicy.SKIP);
+	/** Paces the control loop of moveToAStar movements */
+	private final FixedRateTicker moveToAStarTicker = FixedRateTicker
+			.ofMillis(MOVE_TO_PERIOD, FixedRateTicker.OverrunPolicy.SKIP);
+
+	private volatile long urgentDispatchCount = 0;
+	private volatile long urgentDispatchTotalNanos = 0;
+	private volatile long urgentDispatchMaxNanos = 0;
+
+	/**
+	 * Time to live of each kind of movement, in nanoseconds, for movements
+	 * queued without one of their own. 0 for no limit.
+	 */
+	private final AtomicLongArray defaultTimeToLive = new AtomicLongArray(
+			Mode.values().length);
+
+	/** Finished configs waiting to be reused by the next enqueue */
+	private final MoveQueue<MoverConfig> configPool;
+
+	private final TicketTracker tickets;
+
+	private final MoverMetrics metrics;
+	/** The name this mover is registered with JMX under, if it is */
+	private ObjectName mbeanName = null;
+
+	private volatile MoverLog log = MoverLog.shared();
+	/** Times the movements, and what the mover and its waiters park on */
+	private volatile Clock clock = Clock.system();
+	/** Carries out the movements; only called from the mover thread */
+	private volatile Actuator actuator = Actuator.NONE;
+	/** Plans queued moveToAStar movements ahead, if not null */
+	private volatile ForkJoinPool lookahead = null;
+	/**
+	 * Where the movements queued so far are expected to leave the robot, or
+	 * null if that can't be told. Only kept while planning ahead, and
+	 * approximate when several threads queue at once.
+	 */
+	private volatile WorldModel.Position predictedEnd = null;
+	/** Records every movement queued, started and finished, if not null */
+	private volatile MoverJournal journal = null;
+
+	private volatile WorldModel world = new WorldModel();
+	/**
+	 * Only used by the mover thread, for planning moveToAStar paths. Created
+	 * by the first moveToAStar, as they take up a fair amount of memory.
+	 */
+	private PitchGrid grid = null;
+	private AStarPlanner planner = null;
+	private final Path path = new Path();
 
 	public Mover() {
+		this(DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param queueCapacity
+	 *            The maximum number of movements that can be queued at once
+	 */
+	public Mover(int queueCapacity) {
+		this(null, queueCapacity);
+	}
+
+	/**
+	 * Creates a mover that runs its movements as tasks on an executor rather
+	 * than on a thread of its own. Start it with {@link #start()} as usual.
+	 * <br/>
+	 * A running movement holds on to the executor's thread until it finishes,
+	 * including while it pauses, so the executor should use virtual threads
+	 * or be able to run a thread for every mover expected to move at once.
+	 * 
+	 * @param executor
+	 *            The executor to run movements on, such as
+	 *            {@link #sharedScheduler()}
+	 */
+	public Mover(Executor executor) {
+		this(executor, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * @param executor
+	 *            The executor to run movements on, or null to give the mover
+	 *            its own thread
+	 * @param queueCapacity
+	 *            The maximum number of movements that can be queued at once
+	 * @see #Mover(Executor)
+	 */
+	public Mover(Executor executor, int queueCapacity) {
 		super("mover");
+		this.executor = executor;
+		drainTask = executor == null ? null : new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+		moveQueue = new MoveQueue<MoverConfig>(queueCapacity);
+		urgentQueue = new MoveQueue<MoverConfig>(URGENT_QUEUE_CAPACITY);
+		// Enough spare configs to refill the queues while one is running
+		configPool = new MoveQueue<MoverConfig>(moveQueue.capacity()
+				+ urgentQueue.capacity() + 1);
+		tickets = new TicketTracker(moveQueue.capacity()
+				+ urgentQueue.capacity());
+		metrics = new MoverMetrics(modeNames(), moveQueue.capacity());
+	}
+
+	/**
+	 * @return The name of every mode, in order
+	 */
+	private static String[] modeNames() {
+		Mode[] modes = Mode.values();
+		String[] names = new String[modes.length];
+		for (int i = 0; i < modes.length; ++i)
+			names[i] = modes[i].name();
+		return names;
+	}
+
+	/**
+	 * Takes a config from the pool, only allocating a new one when the pool
+	 * has run dry
+	 * 
+	 * @return A config with all fields at their defaults
+	 */
+	private MoverConfig obtainConfig() {
+		MoverConfig movement = configPool.poll();
+		if (movement == null)
+			movement = new MoverConfig();
+		return movement;
 	}
 
 	/**
-	 * Repeatedly tries to push the movement onto the move queue, giving up
-	 * after 10 attempts
+	 * Marks a movement as finished and returns its config to the pool
+	 * 
+	 * @param movement
+	 *            The movement that has finished
+	 * @param outcome
+	 *            How it finished
+	 */
+	private void finish(MoverConfig movement, MoveOutcome outcome) {
+		if (movement.speculation != null)
+			movement.speculation.abandon();
+		MoverJournal journal = this.journal;
+		if (journal != null)
+			journal.write(MoverJournal.RecordType.FINISHED, movement, outcome);
+		long ticket = movement.ticket;
+		movement.reset();
+		// If the pool is somehow full, leave the config to the GC
+		configPool.offer(movement);
+		tickets.complete(ticket, outcome);
+	}
+
+	/**
+	 * Pushes the movement onto the move queue, following the overflow policy
+	 * if the queue is full
 	 * 
 	 * @param movement
 	 *            The movement to push onto the queue
-	 * @return true if the movement was successfully pushed, false otherwise
+	 * @return {@link #QUEUED} if the movement was pushed, otherwise
+	 *         {@link #REJECTED}, {@link #TIMED_OUT} or {@link #DROPPED}
 	 */
-	private boolean pushMovement(MoverConfig movement) {
-		int pushAttempts = 0;
-		try {
-			queueLock.lockInterruptibly();
-		} catch (InterruptedException e) {
-			return false;
+	private long pushMovement(MoverConfig movement) {
+		if (moveQueue.offer(movement))
+			return pushed(movement.mode);
+		metrics.queueOverflowed();
+		switch (overflowPolicy) {
+		case BLOCK:
+			long deadline = clock.nanoTime() + blockTimeoutNanos;
+			while (!moveQueue.offer(movement)) {
+				if (!awaitRoom(deadline))
+					return TIMED_OUT;
+			}
+			return pushed(movement.mode);
+		case DROP_OLDEST:
+			while (!moveQueue.offer(movement))
+				dropOldest();
+			return pushed(movement.mode);
+		case DROP_NEWEST_SAME_MODE:
+			if (lastQueuedMode == movement.mode) {
+				metrics.droppedNewest();
+				return DROPPED;
+			}
+			// Nothing like it is queued, so it can't be dropped
+			return retryPush(movement);
+		default:
+			return retryPush(movement);
 		}
-		// Try to push the movement 10 times before giving up
-		while (!moveQueue.offer(movement) && pushAttempts < 10)
-			++pushAttempts;
-		queueLock.unlock();
-		// If we gave up, return false to indicate it
-		if (pushAttempts >= 10)
+	}
+
+	/**
+	 * Tries a few more times to push a movement onto a full move queue,
+	 * giving the mover a chance to free up space, before giving up
+	 * 
+	 * @return {@link #QUEUED} or {@link #REJECTED}
+	 */
+	private long retryPush(MoverConfig movement) {
+		for (int pushAttempts = 1; pushAttempts < 10; ++pushAttempts) {
+			Thread.yield();
+			if (moveQueue.offer(movement))
+				return pushed(movement.mode);
+		}
+		metrics.pushFailed();
+		return REJECTED;
+	}
+
+	/**
+	 * Notes the kind of movement just pushed onto the move queue
+	 * 
+	 * @return {@link #QUEUED}
+	 */
+	private long pushed(Mode mode) {
+		lastQueuedMode = mode;
+		return QUEUED;
+	}
+
+	/**
+	 * Waits a little for the mover to make room in the move queue
+	 * 
+	 * @param deadline
+	 *            The clock time at which to give up
+	 * @return false if the deadline has passed or the mover is dying, so the
+	 *         push should give up
+	 */
+	private boolean awaitRoom(long deadline) {
+		Clock clock = this.clock;
+		long now = clock.nanoTime();
+		long remaining = deadline - now;
+		if (remaining <= 0 || die) {
+			metrics.pushTimedOut();
 			return false;
+		}
+		clock.parkUntil(this, now + Math.min(remaining, BLOCK_POLL_NANOS));
 		return true;
 	}
 
 	/**
-	 * Wakes up any threads waiting on a movement queue to complete
+	 * Takes the oldest movement off the move queue and finishes it as dropped
+	 */
+	private void dropOldest() {
+		MoverConfig oldest = moveQueue.poll();
+		if (oldest != null) {
+			metrics.droppedOldest();
+			finish(oldest, MoveOutcome.DROPPED);
+		}
+	}
+
+	/**
+	 * @param code
+	 *            What a push returned instead of queueing a movement
+	 * @return The outcome of the movement that couldn't be queued
+	 */
+	private static MoveOutcome refusedOutcome(long code) {
+		return code == DROPPED ? MoveOutcome.DROPPED : MoveOutcome.REJECTED;
+	}
+
+	/**
+	 * Pushes a movement onto the queue and lets the mover know it has a new
+	 * job
+	 * 
+	 * @param movement
+	 *            The movement to queue
+	 * @return The movement's ticket, or {@link #REJECTED}, {@link #TIMED_OUT}
+	 *         or {@link #DROPPED} if it could not be queued
+	 */
+	private long enqueue(MoverConfig movement) {
+		// The config may be recycled as soon as it has been pushed
+		long ticket = tickets.issue();
+		int mode = movement.mode.ordinal();
+		movement.ticket = ticket;
+		movement.queuedAt = clock.nanoTime();
+		long result = REJECTED;
+		try {
+			applyDefaultTimeToLive(movement);
+			journalQueued(movement);
+			lookAhead(movement);
+			result = die ? REJECTED : pushMovement(movement);
+		} finally {
+			// Every ticket must finish, or the watermark stops behind it
+			if (result != QUEUED)
+				finish(movement, refusedOutcome(result));
+		}
+		if (result != QUEUED)
+			return result;
+		metrics.recordQueued(mode, moveQueue.size());
+		discardIfDying();
+		signalNewJob();
+		return ticket;
+	}
+
+	/**
+	 * Pushes a movement onto the urgent queue, so it runs as soon as the
+	 * mover is free, and cuts short the movement currently running
+	 * 
+	 * @param movement
+	 *            The movement to queue
+	 * @return The movement's ticket, or {@link #REJECTED} if it could not be
+	 *         queued
+	 */
+	private long enqueueUrgent(MoverConfig movement) {
+		long ticket = tickets.issue();
+		int mode = movement.mode.ordinal();
+		movement.ticket = ticket;
+		movement.queuedAt = clock.nanoTime();
+		movement.urgent = true;
+		boolean pushed = false;
+		try {
+			applyDefaultTimeToLive(movement);
+			journalQueued(movement);
+			pushed = !die && urgentQueue.offer(movement);
+		} finally {
+			if (!pushed)
+				finish(movement, MoveOutcome.REJECTED);
+		}
+		if (!pushed)
+			return REJECTED;
+		metrics.recordQueued(mode, urgentQueue.size());
+		discardIfDying();
+		// Always unpark, since the mover may be pausing inside a movement
+		// rather than waiting for a new job
+		clock.unpark(consumer());
+		if (executor != null)
+			schedule();
+		return ticket;
+	}
+
+	/**
+	 * Gives a movement queued without a time to live of its own the default
+	 * for its kind
+	 */
+	private void applyDefaultTimeToLive(MoverConfig movement) {
+		if (movement.timeToLive <= 0)
+			movement.timeToLive = defaultTimeToLive.get(movement.mode
+					.ordinal());
+	}
+
+	/**
+	 * When planning ahead, starts planning the path of a moveToAStar from
+	 * where the movements queued before it should leave the robot, and keeps
+	 * track of where that is
+	 * 
+	 * @param movement
+	 *            The movement being queued
+	 */
+	private void lookAhead(MoverConfig movement) {
+		ForkJoinPool pool = lookahead;
+		if (pool == null)
+			return;
+		switch (movement.mode) {
+		case MOVE_TO_ASTAR:
+			WorldModel.Position start = predictedEnd;
+			if (start != null && !replanning) {
+				movement.speculation = new SpeculativePlan(start.x, start.y,
+						movement.x, movement.y,
+						movement.avoidBall ? world.getBallPosition() : null,
+						movement.avoidEnemy ? world.getEnemyPosition() : null);
+				try {
+					pool.execute(movement.speculation);
+				} catch (RejectedExecutionException e) {
+					// The pool has been shut down, so the mover plans it
+					movement.speculation = null;
+				}
+			}
+			predictedEnd = new WorldModel.Position(movement.x, movement.y, 0,
+					movement.queuedAt);
+			break;
+		case MOVE_TO:
+		case MOVE_TO_STOP:
+			predictedEnd = new WorldModel.Position(movement.x, movement.y, 0,
+					movement.queuedAt);
+			break;
+		case MOVE_VECTOR:
+		case MOVE_ANGLE:
+		case MOVE_TOWARDS:
+			// These leave the robot moving, so who knows where
+			predictedEnd = null;
+			break;
+		default:
+			// Stops, kicks, delays and turns on the spot leave it where it is
+		}
+	}
+
+	/**
+	 * Records a movement in the journal, if there is one, before it is pushed
+	 * and may be recycled
+	 * 
+	 * @param movement
+	 *            The movement being queued
+	 */
+	private void journalQueued(MoverConfig movement) {
+		MoverJournal journal = this.journal;
+		if (journal != null)
+			journal.write(MoverJournal.RecordType.ENQUEUED, movement, null);
+	}
+
+	/**
+	 * Lets the mover know it has a new job. The mover sets parked before
+	 * re-checking the queue, so either it sees the new job or we see that it
+	 * needs waking.
+	 */
+	private void signalNewJob() {
+		if (executor != null)
+			schedule();
+		else if (parked)
+			clock.unpark(this);
+	}
+
+	/**
+	 * @return The thread running the mover's movements, or null if an
+	 *         executor-run mover has nothing to do
+	 */
+	private Thread consumer() {
+		return executor == null ? this : consumer;
+	}
+
+	/**
+	 * Hands a drain task to the executor, unless the mover hasn't been
+	 * started or one is already queued or running
+	 */
+	private void schedule() {
+		if (started && !scheduled.get() && scheduled.compareAndSet(false, true))
+			executor.execute(drainTask);
+	}
+
+	/**
+	 * @return true if there is a movement waiting to run
+	 */
+	private boolean hasWork() {
+		return heldOver != null || !moveQueue.isEmpty()
+				|| !urgentQueue.isEmpty();
+	}
+
+	/**
+	 * Body of the drain task of an executor-run mover: runs queued movements
+	 * until the queues are empty, then gives the thread back
+	 */
+	private void drain() {
+		consumer = Thread.currentThread();
+		try {
+			int processed = 0;
+			while (!die && hasWork() && processed++ < DRAIN_BATCH)
+				runNext();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			wakeUpWaitingThreads();
+			die = true;
+		} finally {
+			consumer = null;
+		}
+		if (die) {
+			shutDown();
+			return;
+		}
+		scheduled.set(false);
+		// A movement may have been queued after the last check but before
+		// scheduled was cleared, when its producer couldn't schedule us
+		if (hasWork() || die)
+			schedule();
+	}
+
+	/**
+	 * @return A new, empty plan for queueing a sequence of movements on this
+	 *         mover in one go
+	 * @see #submitBatch(Plan)
+	 */
+	public Plan plan() {
+		return new Plan();
+	}
+
+	/**
+	 * Queues every movement in a plan as one block, so no other thread's
+	 * movements can end up in the middle of it and the mover is only woken
+	 * once. Either the whole plan is queued or none of it is. The plan is
+	 * left empty and can be reused.
+	 * 
+	 * @param plan
+	 *            The plan to queue
+	 * @return The ticket of the last movement in the plan, or
+	 *         {@link #REJECTED} if the plan is empty, holds more movements
+	 *         than the queue has room for or could not be queued, or
+	 *         {@link #TIMED_OUT} if the queue stayed full for the whole
+	 *         block timeout. The plan's movements have consecutive tickets
+	 *         ending with this one.
+	 */
+	public long submitBatch(Plan plan) {
+		if (plan.getMover() != this)
+			throw new IllegalArgumentException(
+					"Plan was created by a different mover");
+		int count = plan.size;
+		if (count == 0)
+			return REJECTED;
+		if (count > moveQueue.capacity()) {
+			// There will never be room, and the plan's own tickets would fill
+			// the tracker's ring, so don't issue any
+			metrics.pushFailed();
+			plan.clear();
+			return REJECTED;
+		}
+		// The configs may be recycled as soon as they have been pushed
+		long first = tickets.issue(count);
+		long now = clock.nanoTime();
+		for (int i = 0; i < count; ++i) {
+			plan.movements[i].ticket = first + i;
+			plan.movements[i].queuedAt = now;
+		}
+		long result = REJECTED;
+		try {
+			for (int i = 0; i < count; ++i) {
+				applyDefaultTimeToLive(plan.movements[i]);
+				journalQueued(plan.movements[i]);
+				lookAhead(plan.movements[i]);
+			}
+			result = die ? REJECTED : pushBatch(plan.movements, count);
+		} finally {
+			if (result != QUEUED) {
+				for (int i = 0; i < count; ++i)
+					finish(plan.movements[i], MoveOutcome.REJECTED);
+				plan.forget();
+			}
+		}
+		if (result != QUEUED)
+			return result;
+		// The queue may have moved on since, so this is approximate
+		int depth = moveQueue.size() - count;
+		for (int i = 0; i < count; ++i)
+			metrics.recordQueued(plan.modes[i], Math.max(depth + i + 1, 1));
+		plan.forget();
+		discardIfDying();
+		signalNewJob();
+		return first + count - 1;
+	}
+
+	/**
+	 * Pushes a block of movements onto the move queue, following the overflow
+	 * policy if the queue doesn't have room for all of them
+	 * 
+	 * @param movements
+	 *            The movements to push onto the queue
+	 * @param count
+	 *            The number of movements to push, no more than the queue's
+	 *            capacity
+	 * @return {@link #QUEUED} if the movements were pushed, otherwise
+	 *         {@link #REJECTED} or {@link #TIMED_OUT}
+	 */
+	private long pushBatch(MoverConfig[] movements, int count) {
+		if (moveQueue.offerAll(movements, count))
+			return pushed(movements[count - 1].mode);
+		metrics.queueOverflowed();
+		switch (overflowPolicy) {
+		case BLOCK:
+			long deadline = clock.nanoTime() + blockTimeoutNanos;
+			while (!moveQueue.offerAll(movements, count)) {
+				if (!awaitRoom(deadline))
+					return TIMED_OUT;
+			}
+			return pushed(movements[count - 1].mode);
+		case DROP_OLDEST:
+			while (!moveQueue.offerAll(movements, count))
+				dropOldest();
+			return pushed(movements[count - 1].mode);
+		default:
+			for (int pushAttempts = 1; pushAttempts < 10; ++pushAttempts) {
+				Thread.yield();
+				if (moveQueue.offerAll(movements, count))
+					return pushed(movements[count - 1].mode);
+			}
+			metrics.pushFailed();
+			return REJECTED;
+		}
+	}
+
+	/**
+	 * Parks the mover thread until there is a job in the queue or it has been
+	 * told to die
+	 * 
+	 * @throws InterruptedException
+	 *             If the mover thread is interrupted while waiting
+	 */
+	private void awaitJob() throws InterruptedException {
+		while (heldOver == null && moveQueue.isEmpty()
+				&& urgentQueue.isEmpty() && !die) {
+			parked = true;
+			if (moveQueue.isEmpty() && urgentQueue.isEmpty() && !die)
+				clock.park(this);
+			parked = false;
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Marks the mover as idle once the movement queue has been emptied. Threads
+	 * waiting on tickets are woken as each movement completes.
 	 */
 	private void wakeUpWaitingThreads() {
-		System.out.println("Mover: Waking up waiters");
-		waitSem.release();
+		log.log(Event.WAKING_WAITERS);
 		running = false;
 	}
 
@@ -102,157 +879,866 @@ public class Mover extends Thread {
 	 */
 	private void processMovement(MoverConfig movement)
 			throws InterruptedException {
+		MoveOutcome outcome = MoveOutcome.COMPLETED;
+		preempted = false;
+		cancelled = false;
+		currentTicket = movement.ticket;
+		int mode = movement.mode.ordinal();
+		long startedAt = clock.nanoTime();
+		metrics.recordStarted(mode, movement.queuedAt, startedAt);
+		MoverJournal journal = this.journal;
+		if (journal != null)
+			journal.write(MoverJournal.RecordType.STARTED, movement, null);
 		try {
 			switch (movement.mode) {
 			case STOP:
-				System.out.println("Mover: Stopping robot");
+				log.log(Event.STOPPING);
+				actuator.stop();
 				break;
 			case KICK:
-				System.out.println("Mover: Kicking!");
+				log.log(Event.KICKING);
+				actuator.kick();
 				break;
 			case DELAY:
-				System.out.println("Mover: Waiting for " + movement.milliseconds
-						+ " milliseconds");
-				SafeSleep.sleep(movement.milliseconds);
+				log.log(Event.DELAYING, movement.milliseconds);
+				pause(movement.milliseconds);
 				break;
 			case MOVE_VECTOR:
-				System.out.println("Mover: Moving at speed (" + movement.x + ", "
-						+ movement.y + ")");
+				log.log(Event.MOVING_VECTOR, movement.x, movement.y);
 				doMove(movement.x, movement.y);
 				break;
 			case MOVE_ANGLE:
-				System.out.println("Mover: Moving at angle " + movement.angle
-						+ " radians (" + Math.toDegrees(movement.angle)
-						+ " degrees)");
+				log.log(Event.MOVING_ANGLE, movement.angle);
 				doMove(movement.angle);
 				break;
 			case MOVE_TO:
-				System.out.println("Mover: Moving to point (" + movement.x + ", "
-						+ movement.y + ")");
+				log.log(Event.MOVING_TO, movement.x, movement.y);
 				doMoveTo(movement.x, movement.y);
 				break;
 			case MOVE_TO_STOP:
-				System.out.println("Mover: Moving to point (" + movement.x + ", "
-						+ movement.y + ") and stopping");
+				log.log(Event.MOVING_TO_STOP, movement.x, movement.y);
 				doMoveTo(movement.x, movement.y);
-				System.out.println("Mover: Stopping robot");
+				log.log(Event.STOPPING);
+				actuator.stop();
 				break;
 			case MOVE_TOWARDS:
-				System.out.println("Mover: Moving towards point (" + movement.x + ", "
-						+ movement.y + ")");
+				log.log(Event.MOVING_TOWARDS, movement.x, movement.y);
 				doMoveTowards(movement.x, movement.y);
 				break;
 			case MOVE_TO_ASTAR:
-				System.out.println("Mover: Moving to point (" + movement.x + ", "
-						+ movement.y + ") using A*");
+				log.log(Event.MOVING_TO_ASTAR, movement.x, movement.y);
 				doMoveToAStar(movement.x, movement.y, movement.avoidBall,
-						movement.avoidEnemy);
+						movement.avoidEnemy, movement.speculation);
 				break;
 			case ROTATE:
-				System.out.println("Mover: Rotating by " + movement.angle
-						+ " radians (" + Math.toDegrees(movement.angle)
-						+ " degrees)");
+				log.log(Event.ROTATING, movement.angle);
 				doRotate(movement.angle);
 				break;
 			default:
-				System.out.println("Mover: DERP! Unknown movement mode specified");
+				log.log(Event.UNKNOWN_MODE);
 				assert (false);
 			}
 		} catch (Exception e) {
-			System.out.println("Mover: Error occurred executing job: ");
+			log.log(Event.JOB_FAILED);
 			e.printStackTrace();
+			outcome = MoveOutcome.FAILED;
 			resetQueue();
+		} finally {
+			if (preempted && outcome == MoveOutcome.COMPLETED)
+				outcome = MoveOutcome.PREEMPTED;
+			// Being cancelled explains an early finish better than anything
+			if (cancelled && outcome != MoveOutcome.FAILED) {
+				outcome = MoveOutcome.CANCELLED;
+				metrics.moveCancelled();
+			}
+			currentTicket = 0;
+			metrics.recordFinished(mode, startedAt, clock.nanoTime());
+			finish(movement, outcome);
 		}
 	}
 
 	/**
-	 * Runner for our movement
+	 * Checks whether the running movement should stop early, which it must if
+	 * it has been cancelled or if an urgent movement is waiting. Called by
+	 * every control loop and pause, so cancellation is seen within a tick.
+	 * 
+	 * @return true if the running movement should stop
+	 */
+	private boolean shouldAbort() {
+		if (!runningUrgent && !urgentQueue.isEmpty())
+			preempted = true;
+		if (tickets.isCancelled(currentTicket))
+			cancelled = true;
+		return preempted || cancelled;
+	}
+
+	/**
+	 * Pauses the running movement for a period, returning early if the
+	 * movement is interrupted or preempted by an urgent movement
+	 * 
+	 * @param millis
+	 *            The time to pause for, in milliseconds
+	 * @return true if the full period elapsed, false if the pause was cut
+	 *         short
+	 * @throws InterruptedException
+	 *             If the mover thread is interrupted
+	 */
+	private boolean pause(long millis) throws InterruptedException {
+		return pauseUntil(clock.nanoTime() + millis * 1000000L);
+	}
+
+	/**
+	 * Pauses the running movement until a deadline, returning early if the
+	 * movement is interrupted or preempted by an urgent movement
+	 * 
+	 * @param deadline
+	 *            The clock time to pause until
+	 * @return true if the deadline was reached, false if the pause was cut
+	 *         short
+	 * @throws InterruptedException
+	 *             If the mover thread is interrupted
+	 */
+	private boolean pauseUntil(long deadline) throws InterruptedException {
+		Clock clock = this.clock;
+		while (deadline - clock.nanoTime() > 0) {
+			if (shouldAbort())
+				return false;
+			// Woken early by enqueueUrgent() if an urgent movement arrives
+			clock.parkUntil(this, deadline);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		return !shouldAbort();
+	}
+
+	/**
+	 * Records how long an urgent movement waited before being started
+	 * 
+	 * @param movement
+	 *            The urgent movement about to run
+	 */
+	private void recordUrgentDispatch(MoverConfig movement) {
+		long latency = clock.nanoTime() - movement.queuedAt;
+		// Only the mover thread writes these
+		urgentDispatchTotalNanos += latency;
+		if (latency > urgentDispatchMaxNanos)
+			urgentDispatchMaxNanos = latency;
+		urgentDispatchCount++;
+	}
+
+	/**
+	 * @param mode
+	 *            The mode to check
+	 * @return true if the mode sets a continuous motion that a later movement
+	 *         of the same mode completely replaces
+	 */
+	private static boolean isContinuous(Mode mode) {
+		return mode == Mode.MOVE_VECTOR || mode == Mode.MOVE_ANGLE
+				|| mode == Mode.MOVE_TOWARDS;
+	}
+
+	/**
+	 * Skips over a run of queued movements of the same continuous mode,
+	 * keeping only the newest one that hasn't been cancelled. Cancelled
+	 * movements in the run finish as cancelled rather than coalesced. Any
+	 * other movement ends the run, so kicks, delays, stops and the like keep
+	 * their place in the order.
+	 * 
+	 * @param movement
+	 *            The movement just taken off the queue
+	 * @return The newest live movement of the run, which should be run
+	 *         instead, or a cancelled one if every movement in the run was
+	 */
+	private MoverConfig coalesce(MoverConfig movement) {
+		// Read before polling, so a reset that drains the queue after this
+		// movement was taken still counts against it
+		int resetsSeen = resets.get();
+		MoverConfig next;
+		while ((next = moveQueue.poll()) != null) {
+			if (next.mode != movement.mode) {
+				// Not part of the run, so it goes next
+				heldOver = next;
+				heldOverResets = resetsSeen;
+				break;
+			}
+			if (tickets.isCancelled(next.ticket)) {
+				// Doesn't replace anything
+				metrics.moveCancelled();
+				finish(next, MoveOutcome.CANCELLED);
+				continue;
+			}
+			if (tickets.isCancelled(movement.ticket)) {
+				metrics.moveCancelled();
+				finish(movement, MoveOutcome.CANCELLED);
+			} else {
+				finish(movement, MoveOutcome.COALESCED);
+				coalescedCount.incrementAndGet();
+			}
+			movement = next;
+		}
+		return movement;
+	}
+
+	/**
+	 * Runner for our movement
+	 * 
+	 * @see Thread#run()
+	 */
+	public void run() {
+		if (executor != null && Thread.currentThread() != this) {
+			// Someone called run() directly on an executor-run mover
+			throw new IllegalStateException(
+					"Mover runs on an executor; call start() instead");
+		}
+		try {
+			while (!die) {
+				// Wait for next movement operation
+				awaitJob();
+				if (die)
+					break;
+				runNext();
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+			wakeUpWaitingThreads();
+		}
+		shutDown();
+		clock.deregister(this);
+	}
+
+	/**
+	 * Takes the next movement off the queues and runs it
+	 * 
+	 * @throws InterruptedException
+	 *             If the thread running the mover is interrupted
+	 */
+	private void runNext() throws InterruptedException {
+		// Set the running flag to true for busy-waiting
+		running = true;
+
+		// Urgent movements always go first
+		MoverConfig movement = urgentQueue.poll();
+		runningUrgent = movement != null;
+		if (runningUrgent) {
+			recordUrgentDispatch(movement);
+		} else {
+			movement = heldOver;
+			heldOver = null;
+			if (movement != null && heldOverResets != resets.get()) {
+				// It was still queued as far as the reset was concerned
+				finish(movement, MoveOutcome.DISCARDED);
+				movement = null;
+			}
+			if (movement == null)
+				movement = moveQueue.poll();
+		}
+		// A producer may have claimed a slot without publishing to it yet,
+		// in which case the caller goes round again
+		if (movement == null)
+			return;
+		assert (movement.mode != null) : "invalid movement generated";
+		if (!runningUrgent && coalescing && isContinuous(movement.mode))
+			movement = coalesce(movement);
+
+		long age = clock.nanoTime() - movement.queuedAt;
+		if (tickets.isCancelled(movement.ticket)) {
+			metrics.moveCancelled();
+			finish(movement, MoveOutcome.CANCELLED);
+		} else if (movement.timeToLive > 0 && age >= movement.timeToLive) {
+			// Whatever it was worked out from is out of date by now
+			log.log(Event.EXPIRED, TimeUnit.NANOSECONDS.toMillis(age));
+			metrics.moveExpired();
+			finish(movement, MoveOutcome.EXPIRED);
+		} else {
+			processMovement(movement);
+		}
+
+		// If we just did the last move in the queue, wake up the waiting
+		// threads
+		if (heldOver == null && moveQueue.isEmpty() && urgentQueue.isEmpty())
+			wakeUpWaitingThreads();
+	}
+
+	/**
+	 * Releases everything still queued once the mover has been told to die,
+	 * and marks the mover as terminated
+	 */
+	private void shutDown() {
+		// Nothing will run the movements left in the queue now, so release
+		// anyone waiting on them
+		if (heldOver != null) {
+			finish(heldOver, MoveOutcome.DISCARDED);
+			heldOver = null;
+		}
+		discardQueued();
+		MoverConfig movement;
+		while ((movement = urgentQueue.poll()) != null)
+			finish(movement, MoveOutcome.DISCARDED);
+		// Stop the robot when the movement thread has been told to exit
+		log.log(Event.STOPPING);
+		actuator.stop();
+		log.flush(LOG_FLUSH_TIMEOUT);
+		synchronized (this) {
+			terminated = true;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Starts the mover. A mover with its own thread starts that thread; an
+	 * executor-run mover starts handing its movements to the executor.
+	 */
+	@Override
+	public synchronized void start() {
+		if (executor == null) {
+			// Before starting, so time can't move on before the mover has
+			// had a chance to look at its queue
+			clock.register(this);
+			super.start();
+			return;
+		}
+		if (started)
+			throw new IllegalThreadStateException("Mover already started");
+		started = true;
+		if (hasWork() || die)
+			schedule();
+	}
+
+	/**
+	 * Waits for the mover to finish after {@link #kill()}. Unlike
+	 * {@link #join()}, this also works for movers run on an executor, which
+	 * have no thread of their own to join.
+	 * 
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public void awaitTermination() throws InterruptedException {
+		if (executor == null) {
+			join();
+			return;
+		}
+		synchronized (this) {
+			// Like join(), don't wait for a mover that was never started
+			while (started && !terminated)
+				wait();
+		}
+	}
+
+	/**
+	 * @return The executor this mover runs its movements on, or null if it
+	 *         has its own thread
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Gets the scheduler shared by executor-run movers that don't bring their
+	 * own. <br/>
+	 * When the JVM has virtual threads, it starts one per task, so any number
+	 * of movers, pausing or not, run on a handful of carrier threads. <br/>
+	 * On older JVMs it is a pool of daemon threads that only exist while
+	 * movers have movements to run, so idle movers cost no thread at all,
+	 * but every mover in the middle of a movement still holds one. For a hard
+	 * limit on threads there, pass a fixed pool to {@link #Mover(Executor)}
+	 * instead, at the cost of movements waiting for a free thread.
+	 * 
+	 * @return The shared scheduler
+	 */
+	public static synchronized ExecutorService sharedScheduler() {
+		if (sharedScheduler == null) {
+			sharedScheduler = newVirtualThreadExecutor();
+			if (sharedScheduler == null) {
+				final AtomicInteger count = new AtomicInteger(0);
+				sharedScheduler = new ThreadPoolExecutor(0,
+						Integer.MAX_VALUE, POOL_KEEP_ALIVE, TimeUnit.SECONDS,
+						new SynchronousQueue<Runnable>(), new ThreadFactory() {
+							@Override
+							public Thread newThread(Runnable r) {
+								Thread thread = new Thread(r, "mover-pool-"
+										+ count.incrementAndGet());
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+		}
+		return sharedScheduler;
+	}
+
+	/**
+	 * @return An executor starting a virtual thread per task, or null if this
+	 *         JVM doesn't have virtual threads
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			// Looked up by reflection so the code still builds for older JVMs
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Tells the move thread to stop executing, and clears the movement queue to
+	 * ensure the mover thread dies quickly
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void kill() throws InterruptedException {
+		die = true;
+		// Not counted as a reset in the metrics
+		discardQueued();
+		clock.unpark(consumer());
+		if (executor != null)
+			schedule();
+	}
+
+	/**
+	 * Triggers an interrupt in movement
+	 * 
+	 * @see #cancelCurrent()
+	 */
+	public void interruptMove() {
+		cancelCurrent();
+	}
+
+	/**
+	 * Cancels the movement running at the time of the call. It stops within
+	 * a control loop tick and finishes as {@link MoveOutcome#CANCELLED}; the
+	 * movements after it are unaffected.
+	 * 
+	 * @return The ticket of the movement cancelled, or 0 if none was running
+	 */
+	public long cancelCurrent() {
+		long ticket = currentTicket;
+		if (ticket == 0 || !cancel(ticket))
+			return 0;
+		metrics.moveInterrupted();
+		return ticket;
+	}
+
+	/**
+	 * Cancels a movement. If it is running it stops within a control loop
+	 * tick; if it is still queued it is skipped when the mover reaches it.
+	 * Either way it finishes as {@link MoveOutcome#CANCELLED}.
+	 * 
+	 * @param ticket
+	 *            The ticket returned when the movement was queued
+	 * @return true if the movement hadn't finished yet
+	 */
+	public boolean cancel(long ticket) {
+		if (!tickets.cancel(ticket))
+			return false;
+		// The running movement may be pausing, so wake it to notice
+		if (currentTicket == ticket)
+			clock.unpark(consumer());
+		return true;
+	}
+
+	/**
+	 * Cancels every movement queued up to and including one, whether running
+	 * or still queued, as {@link #cancel(long)} does. Movements queued after
+	 * it are unaffected.
+	 * 
+	 * @param ticket
+	 *            The ticket of the last movement to cancel
+	 */
+	public void cancelThrough(long ticket) {
+		tickets.cancelThrough(ticket);
+		long running = currentTicket;
+		if (running != 0 && running <= ticket)
+			clock.unpark(consumer());
+	}
+
+	/**
+	 * Resets the queue of movements to allow for an immediate change in planned
+	 * movements <br/>
+	 * NOTE: This does not interrupt an active movement, or discard urgent
+	 * movements. A movement the mover took off the queue while coalescing,
+	 * to run after the current one, is discarded by the mover thread when it
+	 * gets to it rather than by the time this returns.
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void resetQueue() throws InterruptedException {
+		// The queue is lock-free, so this simply drains whatever is queued at
+		// this point; movements pushed concurrently may survive the reset
+		metrics.queueReset();
+		resets.incrementAndGet();
+		discardQueued();
+	}
+
+	/**
+	 * Removes every queued movement, marking each as discarded
+	 */
+	private void discardQueued() {
+		lastQueuedMode = null;
+		// The robot will now stop wherever the running movement leaves it
+		predictedEnd = null;
+		MoverConfig movement;
+		while ((movement = moveQueue.poll()) != null)
+			finish(movement, MoveOutcome.DISCARDED);
+	}
+
+	/**
+	 * Called after queueing movements. If the mover was told to die while
+	 * they were being pushed, its last drain of the queues may already have
+	 * happened, so discard whatever is left rather than leave it pending on a
+	 * mover that will never run it. <br/>
+	 * Either the drain sees the push, or this sees die, as both are ordered
+	 * through volatiles.
+	 */
+	private void discardIfDying() {
+		if (!die)
+			return;
+		discardQueued();
+		MoverConfig movement;
+		while ((movement = urgentQueue.poll()) != null)
+			finish(movement, MoveOutcome.DISCARDED);
+	}
+
+	/**
+	 * Checks if the mover is running jobs
+	 * 
+	 * @return true if the mover is doing something, false otherwise
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Sets the log the mover reports its progress to
+	 * 
+	 * @param log
+	 *            The new log
+	 */
+	public void setLog(MoverLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * @return The log the mover reports its progress to. Its level can be
+	 *         changed at any time, and at {@link MoverLog.Level#OFF} logging
+	 *         costs the mover nothing but a level check.
+	 */
+	public MoverLog getLog() {
+		return log;
+	}
+
+	/**
+	 * Sets what carries out the mover's commands, such as a
+	 * {@link SimulatedRobot}. Takes effect from the next command.
+	 * 
+	 * @param actuator
+	 *            The actuator, or null for none
+	 */
+	public void setActuator(Actuator actuator) {
+		this.actuator = actuator == null ? Actuator.NONE : actuator;
+	}
+
+	/**
+	 * @return What carries out the mover's commands
+	 */
+	public Actuator getActuator() {
+		return actuator;
+	}
+
+	/**
+	 * Sets the clock the mover times its movements by and parks on, along
+	 * with threads waiting on its movements. Set it before starting the
+	 * mover. <br/>
+	 * With a {@link safesleep.VirtualClock}, a mover with its own thread is
+	 * registered with the clock when started, so time only moves on while it
+	 * is pausing or waiting for work; threads queueing movements should
+	 * register too, and sleep with {@link safesleep.SafeSleep} set to the
+	 * same clock. Movers run on an executor aren't registered, so time may
+	 * move on while they are busy. The mover's current world model is given
+	 * the clock too; a {@link SimulatedRobot} acting as the actuator needs
+	 * {@link SimulatedRobot#setClock(Clock)} as well. The journal keeps real
+	 * time.
+	 * 
+	 * @param clock
+	 *            The new clock
+	 */
+	public void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock must not be null");
+		this.clock = clock;
+		tickets.setClock(clock);
+		moveToTicker.setClock(clock);
+		moveToAStarTicker.setClock(clock);
+		world.setClock(clock);
+	}
+
+	/**
+	 * @return The clock the mover times its movements by
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets the journal every movement is recorded in from now on. The
+	 * journal can be shared by several movers.
+	 * 
+	 * @param journal
+	 *            The journal, or null to stop recording
+	 */
+	public void setJournal(MoverJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return The journal movements are recorded in, or null if there is none
+	 */
+	public MoverJournal getJournal() {
+		return journal;
+	}
+
+	/**
+	 * Sets the model of the pitch the mover steers and plans by
+	 * 
+	 * @param world
+	 *            The new model, which vision should keep up to date
+	 */
+	public void setWorld(WorldModel world) {
+		this.world = world;
+	}
+
+	/**
+	 * @return The model of the pitch the mover steers and plans by, which
+	 *         vision should keep up to date
+	 */
+	public WorldModel getWorld() {
+		return world;
+	}
+
+	/**
+	 * Enables or disables coalescing of continuous movements. When enabled,
+	 * consecutive queued {@link #move(double, double)}, {@link #move(double)}
+	 * or {@link #moveTowards(double, double)} movements of the same kind
+	 * collapse into the newest one, so the robot never acts on stale commands
+	 * when movements are queued faster than they are run. Superseded
+	 * movements finish as {@link MoveOutcome#COALESCED}.
+	 * 
+	 * @param coalescing
+	 *            true to coalesce movements, false to run every movement
+	 */
+	public void setCoalescing(boolean coalescing) {
+		this.coalescing = coalescing;
+	}
+
+	/**
+	 * @return true if continuous movements are being coalesced
+	 */
+	public boolean isCoalescing() {
+		return coalescing;
+	}
+
+	/**
+	 * Enables or disables replanning of moveToAStar paths. When disabled, a
+	 * path is planned once at the start of the movement and followed waypoint
+	 * by waypoint. When enabled, the path is planned afresh on every control
+	 * loop tick in which the robot, the ball or the enemy has moved.
+	 *
+	 * @param replanning
+	 *            true to replan as the obstacles move, false to plan once
+	 */
+	public void setReplanning(boolean replanning) {
+		this.replanning = replanning;
+	}
+
+	/**
+	 * @return true if moveToAStar paths are replanned as the obstacles move
+	 */
+	public boolean isReplanning() {
+		return replanning;
+	}
+
+	/**
+	 * Sets what happens to movements queued while the queue is full, with
+	 * the default block timeout
+	 * 
+	 * @param policy
+	 *            The policy to follow from now on
+	 * @see #setOverflowPolicy(OverflowPolicy, long)
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy) {
+		setOverflowPolicy(policy, DEFAULT_BLOCK_TIMEOUT);
+	}
+
+	/**
+	 * Sets what happens to movements queued while the queue is full. Either
+	 * way the queue never grows past its capacity, so memory use and the
+	 * time a movement can spend queued stay bounded.
+	 * 
+	 * @param policy
+	 *            The policy to follow from now on
+	 * @param blockTimeoutMillis
+	 *            With {@link OverflowPolicy#BLOCK}, the longest a thread
+	 *            queueing a movement waits for room, in milliseconds
+	 */
+	public void setOverflowPolicy(OverflowPolicy policy,
+			long blockTimeoutMillis) {
+		if (policy == null)
+			throw new IllegalArgumentException("Policy must not be null");
+		blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(
+				blockTimeoutMillis, 0));
+		overflowPolicy = policy;
+	}
+
+	/**
+	 * @return What happens to movements queued while the queue is full
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Turns planning ahead on or off. While it is on, the path of each
+	 * moveToAStar queued behind a moveTo, moveToAndStop or moveToAStar is
+	 * planned on the pool straight away, from where the movement before it
+	 * should leave the robot. When the moveToAStar starts it follows that
+	 * path without stopping to plan, as long as the robot and obstacles are
+	 * still close to where the path assumed. Has no effect while replanning.
+	 * 
+	 * @param pool
+	 *            The pool to plan on, such as
+	 *            {@link ForkJoinPool#commonPool()}, or null to turn planning
+	 *            ahead off
+	 */
+	public void setLookahead(ForkJoinPool pool) {
+		lookahead = pool;
+		if (pool == null)
+			predictedEnd = null;
+	}
+
+	/**
+	 * @return The pool queued moveToAStar paths are planned ahead on, or
+	 *         null if they aren't
+	 */
+	public ForkJoinPool getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * Sets how long movements of a kind may wait in the queue before the
+	 * mover skips them as out of date, unless they were queued with a time
+	 * to live of their own. Applies to movements queued from now on.
 	 * 
-	 * @see Thread#run()
+	 * @param mode
+	 *            The kind of movement, such as {@link Mode#MOVE_TOWARDS}
+	 * @param timeToLiveMillis
+	 *            The time to live, in milliseconds, or 0 for no limit
 	 */
-	public void run() {
-		try {
-			while (!die) {
-				// Wait for next movement operation
-				jobSem.acquire();
-				// Clear the movement interrupt flag for the new movement
-				interruptMove = false;
-				// Set the running flag to true for busy-waiting
-				running = true;
-
-				queueLock.lockInterruptibly();
-				if (!moveQueue.isEmpty() && !die) {
-					MoverConfig movement = moveQueue.poll();
-					queueLock.unlock();
-					assert (movement != null) : "moveQueue.poll() returned null when non-empty";
-					assert (movement.mode != null) : "invalid movement generated";
-
-					processMovement(movement);
-				} else {
-					queueLock.unlock();
-				}
+	public void setDefaultTimeToLive(Mode mode, long timeToLiveMillis) {
+		defaultTimeToLive.set(mode.ordinal(), TimeUnit.MILLISECONDS
+				.toNanos(Math.max(timeToLiveMillis, 0)));
+	}
 
-				// If we just did the last move in the queue, wake up the
-				// waiting threads
-				if (moveQueue.isEmpty())
-					wakeUpWaitingThreads();
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			wakeUpWaitingThreads();
-		}
-		// Stop the robot when the movement thread has been told to exit
-		System.out.println("Mover: Stopping robot");
+	/**
+	 * @param mode
+	 *            The kind of movement, such as {@link Mode#MOVE_TOWARDS}
+	 * @return How long movements of the kind may wait in the queue by
+	 *         default, in milliseconds, or 0 for no limit
+	 */
+	public long getDefaultTimeToLive(Mode mode) {
+		return TimeUnit.NANOSECONDS.toMillis(defaultTimeToLive.get(mode
+				.ordinal()));
 	}
 
 	/**
-	 * Tells the move thread to stop executing, and clears the movement queue to
-	 * ensure the mover thread dies quickly
-	 * 
-	 * @throws InterruptedException
+	 * @return The number of movements skipped because a newer movement of the
+	 *         same kind superseded them
 	 */
-	public void kill() throws InterruptedException {
-		die = true;
-		resetQueue();
-		jobSem.release();
+	public long getCoalescedCount() {
+		return coalescedCount.get();
 	}
 
 	/**
-	 * Triggers an interrupt in movement
+	 * @return The number of urgent movements started so far
 	 */
-	public void interruptMove() {
-		interruptMove = true;
+	public long getUrgentDispatchCount() {
+		return urgentDispatchCount;
 	}
 
 	/**
-	 * Resets the queue of movements to allow for an immediate change in planned
-	 * movements <br/>
-	 * NOTE: This does not interrupt an active movement
+	 * @return The mean time, in nanoseconds, between an urgent movement being
+	 *         queued and the mover starting it
+	 */
+	public long getMeanUrgentDispatchNanos() {
+		long count = urgentDispatchCount;
+		return count == 0 ? 0 : urgentDispatchTotalNanos / count;
+	}
+
+	/**
+	 * @return The longest time, in nanoseconds, between an urgent movement
+	 *         being queued and the mover starting it
+	 */
+	public long getMaxUrgentDispatchNanos() {
+		return urgentDispatchMaxNanos;
+	}
+
+	/**
+	 * @return The latency and load statistics of this mover
+	 */
+	public MoverMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Registers this mover with the platform MBean server, under the name
+	 * mcdbg:type=Mover,name= followed by the thread's name, so its state and
+	 * metrics can be watched from JConsole or any other JMX client
 	 * 
-	 * @throws InterruptedException
+	 * @return The name the mover was registered under
+	 * @throws JMException
+	 *             If the mover could not be registered, for example because
+	 *             another mover with the same thread name already is
 	 */
-	public void resetQueue() throws InterruptedException {
-		// Block changes in the queue until the queue is finished
-		// resetting
-		queueLock.lockInterruptibly();
-		// Reset the job semaphore since there will be no more queued jobs
-		jobSem.drainPermits();
-		if (moveQueue.isEmpty()) {
-			queueLock.unlock();
-			return;
+	public synchronized ObjectName registerMBean() throws JMException {
+		if (mbeanName == null) {
+			ObjectName name = new ObjectName("mcdbg:type=Mover,name="
+					+ ObjectName.quote(getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(
+					new MoverMonitor(this), name);
+			mbeanName = name;
 		}
-
-		moveQueue.clear();
-		queueLock.unlock();
+		return mbeanName;
 	}
 
 	/**
-	 * Checks if the mover is running jobs
+	 * Removes this mover from the platform MBean server, if it was registered
 	 * 
-	 * @return true if the mover is doing something, false otherwise
+	 * @throws JMException
+	 *             If the mover could not be unregistered
 	 */
-	public boolean isRunning() {
-		return running;
+	public synchronized void unregisterMBean() throws JMException {
+		if (mbeanName == null)
+			return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(mbeanName))
+			server.unregisterMBean(mbeanName);
+		mbeanName = null;
+	}
+
+	/**
+	 * @return The ticker pacing the control loop of moveTo and moveToAndStop
+	 *         movements, which holds its timing statistics
+	 */
+	public FixedRateTicker getMoveToTicker() {
+		return moveToTicker;
+	}
+
+	/**
+	 * @return The ticker pacing the control loop of moveToAStar movements,
+	 *         which holds its timing statistics
+	 */
+	public FixedRateTicker getMoveToAStarTicker() {
+		return moveToAStarTicker;
 	}
 
 	/**
@@ -262,16 +1748,7 @@ public class Mover extends Thread {
 	 * @return true if there are queued jobs, false otherwise
 	 */
 	public boolean hasQueuedJobs() {
-		try {
-			queueLock.lockInterruptibly();
-			boolean result = !moveQueue.isEmpty();
-			queueLock.unlock();
-			return result;
-		} catch (InterruptedException e) {
-			// InterruptedException can only occur if the thread has been
-			// interrupted - therefore there can't be jobs waiting
-			return false;
-		}
+		return !moveQueue.isEmpty();
 	}
 
 	/**
@@ -279,23 +1756,76 @@ public class Mover extends Thread {
 	 *         currently running
 	 */
 	public int numQueuedJobs() {
-		// Get a lock on the queue to prevent changes while determining how many
-		// jobs there are
-		try {
-			queueLock.lockInterruptibly();
-			int result = moveQueue.size();
-			queueLock.unlock();
-			return result;
-		} catch (InterruptedException e) {
-			return 0;
-		}
+		return moveQueue.size();
 	}
 
 	/**
-	 * Waits for the movement to complete before returning
+	 * Waits for every movement queued before this call to finish. Any number
+	 * of threads may wait at once.
+	 * 
+	 * @see #waitForAll()
 	 */
 	public void waitForCompletion() throws InterruptedException {
-		waitSem.acquire();
+		waitForAll();
+	}
+
+	/**
+	 * Waits for every movement queued before this call to finish, whether it
+	 * completes, fails or is discarded by a reset
+	 * 
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public void waitForAll() throws InterruptedException {
+		tickets.awaitThrough(tickets.lastIssued());
+	}
+
+	/**
+	 * Waits for a specific movement to finish
+	 * 
+	 * @param ticket
+	 *            The ticket returned when the movement was queued
+	 * @return The outcome of the movement
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public MoveOutcome waitUntil(long ticket) throws InterruptedException {
+		if (ticket < 0)
+			return refusedOutcome(ticket);
+		tickets.await(ticket, 0);
+		return tickets.outcomeOf(ticket);
+	}
+
+	/**
+	 * Waits for a specific movement to finish, giving up after a timeout
+	 * 
+	 * @param ticket
+	 *            The ticket returned when the movement was queued
+	 * @param timeoutMillis
+	 *            The maximum time to wait, in milliseconds
+	 * @return The outcome of the movement, or {@link MoveOutcome#PENDING} if
+	 *         the wait timed out
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public MoveOutcome waitUntil(long ticket, long timeoutMillis)
+			throws InterruptedException {
+		if (ticket < 0)
+			return refusedOutcome(ticket);
+		if (!tickets.await(ticket, Math.max(timeoutMillis, 1)))
+			return MoveOutcome.PENDING;
+		return tickets.outcomeOf(ticket);
+	}
+
+	/**
+	 * @param ticket
+	 *            The ticket returned when the movement was queued
+	 * @return The current state of the movement
+	 */
+	public MoveOutcome getOutcome(long ticket) {
+		if (ticket < 0)
+			return refusedOutcome(ticket);
+		return tickets.outcomeOf(ticket);
 	}
 
 	/**
@@ -308,20 +1838,36 @@ public class Mover extends Thread {
 	 * @param speedY
 	 *            Speed forward (for positive values) or backward (for negative
 	 *            ones).
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
+	 */
+	public long move(double speedX, double speedY) {
+		return move(speedX, speedY, 0);
+	}
+
+	/**
+	 * Like {@link #move(double, double)}, but skipped if it is still queued
+	 * after a time
+	 * 
+	 * @param speedX
+	 * @param speedY
+	 * @param timeToLiveMillis
+	 *            Longest the movement may wait in the queue, in milliseconds,
+	 *            or 0 for the default for its kind
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
+	 * @see #setDefaultTimeToLive(Mode, long)
 	 */
-	public synchronized boolean move(double speedX, double speedY) {
-		MoverConfig movement = new MoverConfig();
+	public long move(double speedX, double speedY, long timeToLiveMillis) {
+		MoverConfig movement = obtainConfig();
 		movement.x = speedX;
 		movement.y = speedY;
+		movement.timeToLive = timeToLiveMillis * 1000000L;
 		movement.mode = Mode.MOVE_VECTOR;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -332,7 +1878,8 @@ public class Mover extends Thread {
 	 * @see #move(double speedX, double speedY)
 	 */
 	private void doMove(double speedX, double speedY) {
-		System.out.println("Doing move(" + speedX + ", " + speedY + ")");
+		log.log(Event.DO_MOVE, speedX, speedY);
+		actuator.move(speedX, speedY);
 	}
 
 	/**
@@ -342,19 +1889,16 @@ public class Mover extends Thread {
 	 * 
 	 * @param angle
 	 *            Angle, in radians (0 to 2*PI)
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 */
-	public synchronized boolean move(double angle) {
-		MoverConfig movement = new MoverConfig();
+	public long move(double angle) {
+		MoverConfig movement = obtainConfig();
 		movement.angle = angle;
 		movement.mode = Mode.MOVE_ANGLE;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -364,7 +1908,8 @@ public class Mover extends Thread {
 	 * @see #move(double angle)
 	 */
 	private void doMove(double angle) {
-		System.out.println("Doing move(" + angle + ")");
+		log.log(Event.DO_MOVE_ANGLE, angle);
+		actuator.move(angle);
 	}
 
 	/**
@@ -377,24 +1922,40 @@ public class Mover extends Thread {
 	 * @param y
 	 *            Move to position y units right from top left corner of the
 	 *            video feed
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * 
 	 * @see #moveToAndStop(double x, double y)
 	 * @see #moveTowards(double x, double y)
 	 * @see #waitForCompletion()
 	 */
-	public synchronized boolean moveTo(double x, double y) {
-		MoverConfig movement = new MoverConfig();
+	public long moveTo(double x, double y) {
+		return moveTo(x, y, 0);
+	}
+
+	/**
+	 * Like {@link #moveTo(double, double)}, but skipped if it is still queued
+	 * after a time
+	 * 
+	 * @param x
+	 * @param y
+	 * @param timeToLiveMillis
+	 *            Longest the movement may wait in the queue, in milliseconds,
+	 *            or 0 for the default for its kind
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
+	 * @see #setDefaultTimeToLive(Mode, long)
+	 */
+	public long moveTo(double x, double y, long timeToLiveMillis) {
+		MoverConfig movement = obtainConfig();
 		movement.x = x;
 		movement.y = y;
+		movement.timeToLive = timeToLiveMillis * 1000000L;
 		movement.mode = Mode.MOVE_TO;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -405,19 +1966,35 @@ public class Mover extends Thread {
 	 * @see #moveTo(double x, double y)
 	 */
 	private void doMoveTo(double x, double y) {
-		System.out.println("Doing doMoveTo(" + x + ", " + y + ")");
+		log.log(Event.DO_MOVE_TO, x, y);
+		moveToTicker.start();
+		runMoveToLoop(x, y, moveToTicker, MOVE_TO_TICKS);
+	}
+
+	/**
+	 * Runs the control loop that steers towards a point, once per tick, until
+	 * the robot is known to have reached it
+	 * 
+	 * @param x
+	 * @param y
+	 * @param ticker
+	 *            The ticker pacing the loop
+	 * @param maxTicks
+	 *            The most ticks to run the loop for
+	 */
+	private void runMoveToLoop(double x, double y, FixedRateTicker ticker,
+			int maxTicks) {
 		int i = 0;
-		while (i < 20 && !interruptMove) {
+		while (i < maxTicks && !shouldAbort() && !hasArrived(x, y)) {
 			// Not to send unnecessary commands
-			// 42 because it's The Answer to the Ultimate Question of Life, the
-			// Universe, and Everything
 			try {
-				SafeSleep.sleep(42);
+				if (!pauseUntil(ticker.getNextDeadline()))
+					break;
 			} catch (InterruptedException e) {
-				System.out.println("Failed to sleep");
+				log.log(Event.SLEEP_FAILED);
 				e.printStackTrace();
 			}
-			System.out.print("   ");
+			ticker.tick();
 			doMoveTowards(x, y);
 			i++;
 		}
@@ -432,23 +2009,20 @@ public class Mover extends Thread {
 	 * @param y
 	 *            Move to position y units right from top left corner of the
 	 *            video feed
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * 
 	 * @see #moveTo(double, double)
 	 * @see #waitForCompletion()
 	 */
-	public synchronized boolean moveToAndStop(double x, double y) {
-		MoverConfig movement = new MoverConfig();
+	public long moveToAndStop(double x, double y) {
+		MoverConfig movement = obtainConfig();
 		movement.x = x;
 		movement.y = y;
 		movement.mode = Mode.MOVE_TO_STOP;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -461,21 +2035,37 @@ public class Mover extends Thread {
 	 * @param y
 	 *            Move to position y units right from top left corner of the
 	 *            video feed
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * @see #moveTo(double, double)
 	 */
-	public synchronized boolean moveTowards(double x, double y) {
-		MoverConfig movement = new MoverConfig();
+	public long moveTowards(double x, double y) {
+		return moveTowards(x, y, 0);
+	}
+
+	/**
+	 * Like {@link #moveTowards(double, double)}, but skipped if it is still
+	 * queued after a time
+	 * 
+	 * @param x
+	 * @param y
+	 * @param timeToLiveMillis
+	 *            Longest the movement may wait in the queue, in milliseconds,
+	 *            or 0 for the default for its kind
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
+	 * @see #setDefaultTimeToLive(Mode, long)
+	 */
+	public long moveTowards(double x, double y, long timeToLiveMillis) {
+		MoverConfig movement = obtainConfig();
 		movement.x = x;
 		movement.y = y;
+		movement.timeToLive = timeToLiveMillis * 1000000L;
 		movement.mode = Mode.MOVE_TOWARDS;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -486,12 +2076,14 @@ public class Mover extends Thread {
 	 * @see #moveTowards(double x, double y)
 	 */
 	private void doMoveTowards(double x, double y) {
-		System.out.println("Doing moveTowards(" + x + ", " + y + ")");
+		log.log(Event.DO_MOVE_TOWARDS, x, y);
+		actuator.moveTowards(x, y);
 	}
 
 	/**
 	 * Move to a point (x,y) while avoiding point enemy robot and optionally the
-	 * ball. Should go in an arc by default.
+	 * ball. The path is planned with A* from our position in the
+	 * {@link #getWorld() world model}.
 	 * 
 	 * @param x
 	 *            Point in the X axis to move to.
@@ -499,25 +2091,44 @@ public class Mover extends Thread {
 	 *            Point in the Y axis to move to.
 	 * @param avoidBall
 	 *            Should A* avoid the ball.
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * 
 	 * @see #waitForCompletion()
 	 */
-	public synchronized boolean moveToAStar(double x, double y,
+	public long moveToAStar(double x, double y,
 			boolean avoidBall, boolean avoidEnemy) {
-		MoverConfig movement = new MoverConfig();
+		return moveToAStar(x, y, avoidBall, avoidEnemy, 0);
+	}
+
+	/**
+	 * Like {@link #moveToAStar(double, double, boolean, boolean)}, but
+	 * skipped if it is still queued after a time
+	 * 
+	 * @param x
+	 * @param y
+	 * @param avoidBall
+	 * @param avoidEnemy
+	 * @param timeToLiveMillis
+	 *            Longest the movement may wait in the queue, in milliseconds,
+	 *            or 0 for the default for its kind
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
+	 * @see #setDefaultTimeToLive(Mode, long)
+	 */
+	public long moveToAStar(double x, double y, boolean avoidBall,
+			boolean avoidEnemy, long timeToLiveMillis) {
+		MoverConfig movement = obtainConfig();
 		movement.x = x;
 		movement.y = y;
 		movement.avoidBall = avoidBall;
 		movement.avoidEnemy = avoidEnemy;
+		movement.timeToLive = timeToLiveMillis * 1000000L;
 		movement.mode = Mode.MOVE_TO_ASTAR;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -531,37 +2142,186 @@ public class Mover extends Thread {
 	 * @see #moveToAStar(double x, double y)
 	 */
 	private void doMoveToAStar(double x, double y, boolean avoidball,
-			boolean avoidenemy) {
-		System.out.println("Doing moveToAStar(" + x + ", " + y + ", "
-				+ avoidball + ", " + avoidenemy + ")");
+			boolean avoidenemy, SpeculativePlan speculation) {
+		log.log(Event.DO_MOVE_TO_ASTAR, x, y, (avoidball ? 1 : 0)
+				| (avoidenemy ? 2 : 0));
+		// One schedule across every waypoint, so they don't drift apart
+		moveToAStarTicker.start();
+		if (grid == null) {
+			grid = newPlanningGrid();
+			planner = new AStarPlanner(grid);
+		}
+		WorldModel.Position us = world.getOurPosition();
+		if (us == null) {
+			// Nothing to plan from, so just keep heading for the target
+			int i = 0;
+			while (i < MOVE_TO_ASTAR_RUNS && !shouldAbort()) {
+				log.log(Event.DO_MOVE_TO, x, y);
+				runMoveToLoop(x, y, moveToAStarTicker, MOVE_TO_TICKS);
+				i++;
+			}
+			return;
+		}
+		if (replanning) {
+			followReplannedPath(x, y, avoidball, avoidenemy);
+			return;
+		}
+		boolean found;
+		if (canUse(speculation, us, avoidball, avoidenemy)) {
+			path.copyFrom(speculation.path);
+			found = speculation.isFound();
+		} else {
+			placeObstacles(avoidball, avoidenemy);
+			found = planner.plan(us.x, us.y, x, y, path);
+		}
+		if (!found) {
+			// Head straight for the target if there's no way round
+			log.log(Event.NO_PATH, x, y);
+			path.clear();
+			path.add(x, y);
+		}
+		for (int i = 0; i < path.size() && !shouldAbort(); ++i) {
+			log.log(Event.DO_MOVE_TO, path.getX(i), path.getY(i));
+			runMoveToLoop(path.getX(i), path.getY(i), moveToAStarTicker,
+					WAYPOINT_TICKS);
+		}
+	}
+
+	/**
+	 * Heads for the target while replanning every control loop tick in which
+	 * the world model has changed. A plan from scratch takes a few tens of
+	 * microseconds, well inside a tick; see {@link PlannerBenchmark}.
+	 */
+	private void followReplannedPath(double x, double y, boolean avoidBall,
+			boolean avoidEnemy) {
+		WorldModel.Position lastUs = null, lastBall = null, lastEnemy = null;
+		boolean found = false;
 		int i = 0;
-		while (i < 10 && !interruptMove) {
-			System.out.print("  ");
-			doMoveTo(x, y);
+		while (i < REPLAN_TICKS && !shouldAbort() && !hasArrived(x, y)) {
+			try {
+				if (!pauseUntil(moveToAStarTicker.getNextDeadline()))
+					break;
+			} catch (InterruptedException e) {
+				log.log(Event.SLEEP_FAILED);
+				e.printStackTrace();
+			}
+			moveToAStarTicker.tick();
+			// Positions are immutable, so a new frame means a new object
+			WorldModel.Position us = world.getOurPosition();
+			WorldModel.Position ball = world.getBallPosition();
+			WorldModel.Position enemy = world.getEnemyPosition();
+			if (us != lastUs || ball != lastBall || enemy != lastEnemy) {
+				lastUs = us;
+				lastBall = ball;
+				lastEnemy = enemy;
+				placeObstacles(avoidBall, avoidEnemy);
+				boolean wasFound = found;
+				found = us != null && planner.plan(us.x, us.y, x, y, path);
+				if (!found) {
+					if (wasFound || i == 0)
+						log.log(Event.NO_PATH, x, y);
+					path.clear();
+					path.add(x, y);
+				}
+			}
+			doMoveTowards(path.getX(0), path.getY(0));
 			i++;
 		}
 	}
 
+	/**
+	 * Checks whether a path planned ahead is ready and still fits the world
+	 * well enough to follow
+	 * 
+	 * @param speculation
+	 *            The path planned ahead, or null if there isn't one
+	 * @param us
+	 *            Where the robot is now
+	 * @return true if the path can be followed instead of planning afresh
+	 */
+	private boolean canUse(SpeculativePlan speculation, WorldModel.Position us,
+			boolean avoidBall, boolean avoidEnemy) {
+		if (speculation == null)
+			return false;
+		if (!speculation.isDone()) {
+			// Planning it here is no slower than waiting for it
+			speculation.abandon();
+			metrics.lookaheadMissed();
+			return false;
+		}
+		if (!speculation.fits(us, avoidBall ? world.getBallPosition() : null,
+				avoidEnemy ? world.getEnemyPosition() : null,
+				LOOKAHEAD_START_TOLERANCE, LOOKAHEAD_OBSTACLE_TOLERANCE)) {
+			metrics.lookaheadMissed();
+			return false;
+		}
+		metrics.lookaheadUsed();
+		return true;
+	}
+
+	/**
+	 * Puts the obstacles currently in the world model into {@link #grid}
+	 */
+	private void placeObstacles(boolean avoidBall, boolean avoidEnemy) {
+		placeObstacles(grid, avoidBall ? world.getBallPosition() : null,
+				avoidEnemy ? world.getEnemyPosition() : null);
+	}
+
+	/**
+	 * Replaces the obstacles in a planning grid
+	 * 
+	 * @param grid
+	 *            The grid to put the obstacles in
+	 * @param ball
+	 *            The ball, or null if it isn't to be avoided
+	 * @param enemy
+	 *            The enemy robot, or null if it isn't to be avoided
+	 */
+	static void placeObstacles(PitchGrid grid, WorldModel.Position ball,
+			WorldModel.Position enemy) {
+		grid.clearObstacles();
+		if (ball != null)
+			grid.addObstacle(ball.x, ball.y, BALL_RADIUS + ROBOT_RADIUS
+					+ OBSTACLE_CLEARANCE);
+		if (enemy != null)
+			grid.addObstacle(enemy.x, enemy.y, 2 * ROBOT_RADIUS
+					+ OBSTACLE_CLEARANCE);
+	}
+
+	/**
+	 * @return A new grid of the pitch to plan moveToAStar paths on
+	 */
+	static PitchGrid newPlanningGrid() {
+		return new PitchGrid(PitchGrid.DEFAULT_WIDTH, PitchGrid.DEFAULT_HEIGHT,
+				PitchGrid.DEFAULT_CELL_SIZE, ROBOT_RADIUS);
+	}
+
+	/**
+	 * @return true if the robot is known to be within the arrival margin of a
+	 *         point
+	 */
+	private boolean hasArrived(double x, double y) {
+		WorldModel.Position us = world.getOurPosition();
+		return us != null && us.distanceTo(x, y) <= ARRIVAL_MARGIN;
+	}
+
 	/**
 	 * Calls robot controller to rotate the robot by an angle <br/>
 	 * 
 	 * @param angleRad
 	 *            clockwise angle to rotate (in Radians)
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * 
 	 * @see #waitForCompletion()
 	 */
-	public synchronized boolean rotate(double angleRad) {
-		MoverConfig movement = new MoverConfig();
+	public long rotate(double angleRad) {
+		MoverConfig movement = obtainConfig();
 		movement.angle = angleRad;
 		movement.mode = Mode.ROTATE;
 
-		if (!pushMovement(movement))
-			return false;
-
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+		return enqueue(movement);
 	}
 
 	/**
@@ -571,9 +2331,9 @@ public class Mover extends Thread {
 	 *            clockwise angle to rotate (in Radians)
 	 */
 	private void doRotate(double angleRad) {
-		System.out.println("Doing rotate(" + angleRad + ")");
+		log.log(Event.DO_ROTATE, angleRad);
 		try {
-			SafeSleep.sleep(5 * (long) Math.toDegrees(angleRad));
+			pause(actuator.rotate(angleRad));
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		}
@@ -582,61 +2342,268 @@ public class Mover extends Thread {
 	/**
 	 * Stops the robot
 	 * 
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * 
 	 * @see #waitForCompletion()
 	 */
-	public synchronized boolean stopRobot() {
-		MoverConfig movement = new MoverConfig();
+	public long stopRobot() {
+		MoverConfig movement = obtainConfig();
 		movement.mode = Mode.STOP;
 
-		if (!pushMovement(movement))
-			return false;
+		return enqueue(movement);
+	}
 
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+	/**
+	 * Stops the robot as soon as possible. The stop jumps ahead of every
+	 * queued movement and cuts short the movement currently running, which
+	 * finishes as {@link MoveOutcome#PREEMPTED}. Queued movements run as
+	 * normal afterwards; call {@link #resetQueue()} first to abandon them.
+	 * 
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         {@link #REJECTED} if the move could not be queued
+	 * 
+	 * @see #stopRobot()
+	 */
+	public long stopRobotNow() {
+		MoverConfig movement = obtainConfig();
+		movement.mode = Mode.STOP;
+
+		return enqueueUrgent(movement);
 	}
 
 	/**
 	 * Makes the robot kick
 	 * 
-	 * @return true if the move was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         a negative code such as {@link #REJECTED} if the move could
+	 *         not be queued
 	 * 
 	 * @see #waitForCompletion()
 	 */
-	public synchronized boolean kick() {
-		MoverConfig movement = new MoverConfig();
+	public long kick() {
+		MoverConfig movement = obtainConfig();
 		movement.mode = Mode.KICK;
 
-		if (!pushMovement(movement))
-			return false;
+		return enqueue(movement);
+	}
 
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+	/**
+	 * Makes the robot kick as soon as possible. The kick jumps ahead of every
+	 * queued movement and cuts short the movement currently running, which
+	 * finishes as {@link MoveOutcome#PREEMPTED}.
+	 * 
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         {@link #REJECTED} if the move could not be queued
+	 * 
+	 * @see #kick()
+	 */
+	public long kickNow() {
+		MoverConfig movement = obtainConfig();
+		movement.mode = Mode.KICK;
+
+		return enqueueUrgent(movement);
 	}
 
 	/**
 	 * Makes the mover perform a delay job, where it will sleep for the
 	 * specified period <br/>
-	 * WARNING: Once a delay job has started, it cannot be interrupted
+	 * NOTE: Once a delay job has started, only an urgent movement such as
+	 * {@link #stopRobotNow()} can cut it short
 	 * 
 	 * @param milliseconds
 	 *            The time in milliseconds to sleep for
 	 * 
-	 * @return true if the delay was successfully queued, false otherwise
+	 * @return A ticket that can be waited on with {@link #waitUntil(long)}, or
+	 *         {@link #REJECTED} if the delay could not be queued
 	 */
-	public synchronized boolean delay(long milliseconds) {
-		MoverConfig movement = new MoverConfig();
+	public long delay(long milliseconds) {
+		MoverConfig movement = obtainConfig();
 		movement.milliseconds = milliseconds;
 		movement.mode = Mode.DELAY;
 
-		if (!pushMovement(movement))
-			return false;
+		return enqueue(movement);
+	}
 
-		// Let the mover know it has a new job
-		jobSem.release();
-		return true;
+	/**
+	 * A sequence of movements that is queued on the mover as a single block.
+	 * Build one with {@link Mover#plan()}, add movements with the same
+	 * methods as the mover itself, then {@link #submit()} it. <br/>
+	 * A plan is not thread-safe and should only be used by the thread that
+	 * builds it.
+	 * 
+	 * @see Mover#submitBatch(Plan)
+	 */
+	public class Plan {
+		private MoverConfig[] movements = new MoverConfig[8];
+		/**
+		 * The modes of the movements, which stay readable after the mover
+		 * has recycled the configs
+		 */
+		private int[] modes = new int[8];
+		private int size = 0;
+
+		private Plan() {
+		}
+
+		/**
+		 * Appends a movement to the plan
+		 * 
+		 * @param mode
+		 *            The mode of the movement
+		 * @return The config to fill in for the movement
+		 */
+		private MoverConfig add(Mode mode) {
+			if (size == movements.length) {
+				movements = Arrays.copyOf(movements, size * 2);
+				modes = Arrays.copyOf(modes, size * 2);
+			}
+			MoverConfig movement = obtainConfig();
+			movement.mode = mode;
+			modes[size] = mode.ordinal();
+			movements[size++] = movement;
+			return movement;
+		}
+
+		/**
+		 * Drops the plan's references to movements that have been handed
+		 * over to the mover
+		 */
+		private void forget() {
+			Arrays.fill(movements, 0, size, null);
+			size = 0;
+		}
+
+		/**
+		 * @return The mover this plan will be queued on
+		 */
+		public Mover getMover() {
+			return Mover.this;
+		}
+
+		/**
+		 * @return The number of movements in the plan
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Removes every movement from the plan without queueing them
+		 */
+		public void clear() {
+			for (int i = 0; i < size; ++i) {
+				movements[i].reset();
+				configPool.offer(movements[i]);
+			}
+			forget();
+		}
+
+		/**
+		 * Queues the plan on its mover
+		 * 
+		 * @return The ticket of the last movement in the plan, or
+		 *         a negative code such as {@link Mover#REJECTED} if the plan
+		 *         could not be queued
+		 * @see Mover#submitBatch(Plan)
+		 */
+		public long submit() {
+			return submitBatch(this);
+		}
+
+		/** @see Mover#move(double, double) */
+		public Plan move(double speedX, double speedY) {
+			MoverConfig movement = add(Mode.MOVE_VECTOR);
+			movement.x = speedX;
+			movement.y = speedY;
+			return this;
+		}
+
+		/** @see Mover#move(double) */
+		public Plan move(double angle) {
+			MoverConfig movement = add(Mode.MOVE_ANGLE);
+			movement.angle = angle;
+			return this;
+		}
+
+		/** @see Mover#moveTo(double, double) */
+		public Plan moveTo(double x, double y) {
+			MoverConfig movement = add(Mode.MOVE_TO);
+			movement.x = x;
+			movement.y = y;
+			return this;
+		}
+
+		/** @see Mover#moveToAndStop(double, double) */
+		public Plan moveToAndStop(double x, double y) {
+			MoverConfig movement = add(Mode.MOVE_TO_STOP);
+			movement.x = x;
+			movement.y = y;
+			return this;
+		}
+
+		/** @see Mover#moveTowards(double, double) */
+		public Plan moveTowards(double x, double y) {
+			MoverConfig movement = add(Mode.MOVE_TOWARDS);
+			movement.x = x;
+			movement.y = y;
+			return this;
+		}
+
+		/** @see Mover#moveToAStar(double, double, boolean, boolean) */
+		public Plan moveToAStar(double x, double y, boolean avoidBall,
+				boolean avoidEnemy) {
+			MoverConfig movement = add(Mode.MOVE_TO_ASTAR);
+			movement.x = x;
+			movement.y = y;
+			movement.avoidBall = avoidBall;
+			movement.avoidEnemy = avoidEnemy;
+			return this;
+		}
+
+		/** @see Mover#rotate(double) */
+		public Plan rotate(double angleRad) {
+			MoverConfig movement = add(Mode.ROTATE);
+			movement.angle = angleRad;
+			return this;
+		}
+
+		/** @see Mover#stopRobot() */
+		public Plan stopRobot() {
+			add(Mode.STOP);
+			return this;
+		}
+
+		/** @see Mover#kick() */
+		public Plan kick() {
+			add(Mode.KICK);
+			return this;
+		}
+
+		/** @see Mover#delay(long) */
+		public Plan delay(long milliseconds) {
+			MoverConfig movement = add(Mode.DELAY);
+			movement.milliseconds = milliseconds;
+			return this;
+		}
+
+		/**
+		 * Gives the movement last added to the plan a time to live of its
+		 * own, after which it is skipped if it is still queued
+		 * 
+		 * @param timeToLiveMillis
+		 *            The time to live, in milliseconds, or 0 for the default
+		 *            for its kind
+		 * @throws IllegalStateException
+		 *             If the plan is empty
+		 * @see Mover#setDefaultTimeToLive(Mode, long)
+		 */
+		public Plan expireAfter(long timeToLiveMillis) {
+			if (size == 0)
+				throw new IllegalStateException("Plan is empty");
+			movements[size - 1].timeToLive = timeToLiveMillis * 1000000L;
+			return this;
+		}
 	}
 }
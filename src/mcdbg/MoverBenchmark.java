@@ -0,0 +1,403 @@
+package mcdbg;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the mover's queue machinery: enqueue throughput with one and
+ * several producers, enqueue-to-start latency, waitForCompletion() round
+ * trips and resetQueue() while producers are busy. <br/>
+ * Logging is off and the actuator does nothing, so what is measured is the
+ * queueing, not the robot. Each benchmark runs a few warmup iterations that
+ * are thrown away, then timed iterations of a fixed length, and reports the
+ * mean and spread across the timed iterations, much as JMH would. Run it in a
+ * fresh JVM for each benchmark when comparing changes, with the filter. The
+ * same benchmarks run under JMH itself from the benchmarks module
+ * (mcdbg.jmh.MoverQueueBenchmark). <br/>
+ * Usage: MoverBenchmark [filter] [iterations] [iteration ms]
+ */
+public class MoverBenchmark {
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int DEFAULT_ITERATIONS = 5;
+	private static final long DEFAULT_ITERATION_MILLIS = 1000;
+	/** Producer counts the multi-producer benchmarks are run with */
+	private static final int[] PRODUCERS = { 1, 2, 4 };
+	/** Longest to wait for every ticket to finish after a reset benchmark */
+	private static final long SETTLE_TIMEOUT = 5000;
+
+	/** Keeps results alive so the JIT can't drop the work behind them */
+	static volatile long sink;
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		int iterations = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_ITERATIONS;
+		long millis = args.length > 2 ? Long.parseLong(args[2])
+				: DEFAULT_ITERATION_MILLIS;
+		MoverLog log = MoverLog.silent();
+
+		System.out.println("Warmup: " + WARMUP_ITERATIONS + " x " + millis
+				+ " ms, measurement: " + iterations + " x " + millis + " ms");
+		System.out.println();
+		for (int producers : PRODUCERS)
+			run(enqueue(log, producers), filter, iterations, millis);
+		run(roundTrip(log), filter, iterations, millis);
+		for (int producers : PRODUCERS)
+			run(resetUnderContention(log, producers), filter, iterations,
+					millis);
+	}
+
+	/**
+	 * One benchmark: set up once, then run for a number of fixed-length
+	 * iterations, the first few of which are thrown away as warmup
+	 */
+	private static abstract class Benchmark {
+		final String name;
+		final String unit;
+
+		Benchmark(String name, String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void setUp() throws Exception {
+		}
+
+		/** Called once warmup is over, to clear statistics */
+		void measuring() {
+		}
+
+		/**
+		 * Runs for about the given time
+		 *
+		 * @return The number of operations done
+		 */
+		abstract long iterate(long millis) throws Exception;
+
+		/**
+		 * @return Anything else worth reporting, or null
+		 */
+		String details() {
+			return null;
+		}
+
+		void tearDown() throws Exception {
+		}
+	}
+
+	private static void run(Benchmark benchmark, String filter,
+			int iterations, long millis) throws Exception {
+		if (!benchmark.name.contains(filter))
+			return;
+		benchmark.setUp();
+		try {
+			for (int i = 0; i < WARMUP_ITERATIONS; ++i)
+				benchmark.iterate(millis);
+			benchmark.measuring();
+			double[] rates = new double[iterations];
+			for (int i = 0; i < iterations; ++i) {
+				long before = System.nanoTime();
+				long ops = benchmark.iterate(millis);
+				rates[i] = ops / ((System.nanoTime() - before) / 1e9);
+			}
+			report(benchmark, rates);
+		} finally {
+			benchmark.tearDown();
+		}
+	}
+
+	private static void report(Benchmark benchmark, double[] rates) {
+		double sum = 0, min = Double.MAX_VALUE, max = 0;
+		for (double rate : rates) {
+			sum += rate;
+			min = Math.min(min, rate);
+			max = Math.max(max, rate);
+		}
+		double mean = sum / rates.length;
+		double squares = 0;
+		for (double rate : rates)
+			squares += (rate - mean) * (rate - mean);
+		double deviation = rates.length > 1 ? Math.sqrt(squares
+				/ (rates.length - 1)) : 0;
+		System.out.println(benchmark.name + ": "
+				+ String.format("%.0f +- %.0f %s (min %.0f, max %.0f)", mean,
+						deviation, benchmark.unit, min, max));
+		String details = benchmark.details();
+		if (details != null)
+			System.out.println(details);
+		System.out.println();
+	}
+
+	private static Mover newMover(MoverLog log) {
+		Mover mover = new Mover();
+		mover.setLog(log);
+		return mover;
+	}
+
+	/**
+	 * Runs producers that each call {@link #produce(Mover, int)} in a tight
+	 * loop for a fixed time
+	 */
+	private static abstract class Producers {
+		private volatile boolean stop = false;
+
+		/**
+		 * Does one operation
+		 *
+		 * @return Something derived from the operation, for the sink
+		 */
+		abstract long produce(Mover mover, int i);
+
+		/**
+		 * @return The number of operations done by every producer together
+		 */
+		long run(final Mover mover, int count, long millis)
+				throws InterruptedException {
+			final CountDownLatch start = new CountDownLatch(1);
+			final long[] ops = new long[count];
+			Thread[] threads = new Thread[count];
+			stop = false;
+			for (int p = 0; p < count; ++p) {
+				final int index = p;
+				threads[p] = new Thread("producer-" + p) {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						long done = 0, result = 0;
+						while (!stop)
+							result += produce(mover, (int) done++);
+						ops[index] = done;
+						sink += result;
+					}
+				};
+				threads[p].start();
+			}
+			start.countDown();
+			Thread.sleep(millis);
+			stop = true;
+			long total = 0;
+			for (int p = 0; p < count; ++p) {
+				threads[p].join();
+				total += ops[p];
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * Producers queueing instant movements as fast as the mover will take
+	 * them. The queue blocks when full, so this is the sustained rate.
+	 */
+	private static Benchmark enqueue(final MoverLog log, final int producers) {
+		return new Benchmark("enqueue, " + producers + " producer(s)",
+				"movements/s") {
+			private Mover mover;
+			private final Producers load = new Producers() {
+				@Override
+				long produce(Mover mover, int i) {
+					return mover.move(i & 127, -(i & 127));
+				}
+			};
+
+			@Override
+			void setUp() {
+				mover = newMover(log);
+				mover.setOverflowPolicy(Mover.OverflowPolicy.BLOCK,
+						SETTLE_TIMEOUT);
+				mover.start();
+			}
+
+			@Override
+			void measuring() {
+				mover.getMetrics().reset();
+			}
+
+			@Override
+			long iterate(long millis) throws InterruptedException {
+				long ops = load.run(mover, producers, millis);
+				mover.waitForAll();
+				return ops;
+			}
+
+			@Override
+			String details() {
+				MoverMetrics metrics = mover.getMetrics();
+				return "  enqueue-to-start ns: "
+						+ metrics.getEnqueueToStart("MOVE_VECTOR").snapshot()
+						+ "\n  queue depth:         "
+						+ metrics.getQueueDepth("MOVE_VECTOR").snapshot()
+						+ "\n  push timeouts: " + metrics.getPushTimeouts();
+			}
+
+			@Override
+			void tearDown() throws InterruptedException {
+				mover.kill();
+				mover.awaitTermination();
+			}
+		};
+	}
+
+	/**
+	 * One thread queueing a movement and waiting for it to finish, over and
+	 * over, so the mover is idle each time a movement arrives
+	 */
+	private static Benchmark roundTrip(final MoverLog log) {
+		return new Benchmark("waitForCompletion round trip", "round trips/s") {
+			private Mover mover;
+			private final LatencyHistogram roundTrips = new LatencyHistogram(
+					TimeUnit.SECONDS.toNanos(10));
+
+			@Override
+			void setUp() {
+				mover = newMover(log);
+				mover.start();
+			}
+
+			@Override
+			void measuring() {
+				mover.getMetrics().reset();
+				roundTrips.reset();
+			}
+
+			@Override
+			long iterate(long millis) throws InterruptedException {
+				long deadline = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(millis);
+				long ops = 0, result = 0;
+				long now = System.nanoTime();
+				while (now < deadline) {
+					result += mover.move(1, -1);
+					mover.waitForCompletion();
+					long after = System.nanoTime();
+					roundTrips.record(after - now);
+					now = after;
+					++ops;
+				}
+				sink += result;
+				return ops;
+			}
+
+			@Override
+			String details() {
+				return "  round trip ns:       "
+						+ roundTrips.snapshot()
+						+ "\n  enqueue-to-start ns: "
+						+ mover.getMetrics().getEnqueueToStart("MOVE_VECTOR")
+								.snapshot();
+			}
+
+			@Override
+			void tearDown() throws InterruptedException {
+				mover.kill();
+				mover.awaitTermination();
+			}
+		};
+	}
+
+	/**
+	 * One thread resetting the queue over and over while producers fill it.
+	 * Afterwards every ticket must still finish, whether run or discarded.
+	 */
+	private static Benchmark resetUnderContention(final MoverLog log,
+			final int producers) {
+		return new Benchmark("resetQueue, " + producers + " producer(s)",
+				"resets/s") {
+			private Mover mover;
+			private long produced = 0;
+			private long elapsed = 0;
+			private boolean settled = true;
+			private final Producers load = new Producers() {
+				@Override
+				long produce(Mover mover, int i) {
+					return mover.move(i & 127, -(i & 127));
+				}
+			};
+			private final Producers resetter = new Producers() {
+				@Override
+				long produce(Mover mover, int i) {
+					try {
+						mover.resetQueue();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return i;
+				}
+			};
+
+			@Override
+			void setUp() {
+				mover = newMover(log);
+				mover.start();
+			}
+
+			@Override
+			void measuring() {
+				produced = 0;
+				elapsed = 0;
+			}
+
+			@Override
+			long iterate(final long millis) throws InterruptedException {
+				final long[] resets = new long[1];
+				Thread reset = new Thread("resetter") {
+					@Override
+					public void run() {
+						try {
+							resets[0] = resetter.run(mover, 1, millis);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				};
+				long before = System.nanoTime();
+				reset.start();
+				produced += load.run(mover, producers, millis);
+				reset.join();
+				elapsed += System.nanoTime() - before;
+				settled &= settle();
+				return resets[0];
+			}
+
+			/**
+			 * @return true if every ticket issued has finished
+			 */
+			private boolean settle() throws InterruptedException {
+				Thread waiter = new Thread("settle") {
+					@Override
+					public void run() {
+						try {
+							mover.waitForAll();
+						} catch (InterruptedException e) {
+							// Timed out
+						}
+					}
+				};
+				waiter.start();
+				waiter.join(SETTLE_TIMEOUT);
+				if (!waiter.isAlive())
+					return true;
+				waiter.interrupt();
+				return false;
+			}
+
+			@Override
+			String details() {
+				return "  producers queued "
+						+ (long) (produced / (elapsed / 1e9))
+						+ " movements/s; "
+						+ (settled ? "every ticket finished"
+								: "TICKETS LOST: waitForAll() timed out");
+			}
+
+			@Override
+			void tearDown() throws InterruptedException {
+				mover.kill();
+				mover.awaitTermination();
+			}
+		};
+	}
+}
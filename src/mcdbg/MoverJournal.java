@@ -0,0 +1,317 @@
+package mcdbg;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A binary journal of every movement a {@link Mover} queues, starts and
+ * finishes, so a match's command stream can be inspected or replayed with
+ * {@link JournalReplayer}. <br/>
+ * Records are a fixed 64 bytes, written straight into a memory-mapped file:
+ * a writer claims its slot with one atomic add and never blocks or
+ * allocates, so journaling costs the mover little more than the stores
+ * themselves. The file is sized up front; once it is full further records are
+ * dropped and counted. <br/>
+ * Layout, all big-endian: a 64 byte header (magic, version, record size,
+ * capacity, wall clock and System.nanoTime() at creation, record count),
+ * then the records. A record is type, mode, flags and outcome bytes, the
+ * time to live in milliseconds as a 4 byte value, then ticket, nanoTime,
+ * thread id, x, y, angle and milliseconds as 8 byte values. The type byte is
+ * written last, so a record still being written when the journal was cut
+ * short reads as empty.
+ */
+public class MoverJournal {
+	/** Size of the file header, in bytes */
+	public static final int HEADER_SIZE = 64;
+	/** Size of one record, in bytes */
+	public static final int RECORD_SIZE = 64;
+	/** Default number of records a journal has room for: 64MB worth */
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+
+	/** "MVJ1" */
+	private static final int MAGIC = 0x4D564A31;
+	/**
+	 * Bumped whenever the layout or the order of the mover's modes changes,
+	 * as modes are stored by position
+	 */
+	private static final int VERSION = 2;
+	/** The version before the time to live was recorded, still readable */
+	private static final int VERSION_WITHOUT_TTL = 1;
+
+	private static final int FLAG_AVOID_BALL = 1;
+	private static final int FLAG_AVOID_ENEMY = 2;
+	private static final int FLAG_URGENT = 4;
+
+	/**
+	 * What happened to a movement
+	 */
+	public enum RecordType {
+		/** The movement was handed to the mover */
+		ENQUEUED,
+		/** The mover started running the movement */
+		STARTED,
+		/** The movement finished, for whatever reason */
+		FINISHED
+	};
+
+	private final File file;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	/** The next record slot to claim */
+	private final AtomicLong next = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a journal, replacing any file already there
+	 *
+	 * @param file
+	 *            The file to write to
+	 * @param capacity
+	 *            The number of records to make room for
+	 * @throws IOException
+	 *             If the file can't be created or mapped
+	 */
+	public MoverJournal(File file, int capacity) throws IOException {
+		if (capacity < 1
+				|| capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE)
+			throw new IllegalArgumentException("Capacity out of range: "
+					+ capacity);
+		this.file = file;
+		this.capacity = capacity;
+		long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			// Start from zeros, so unwritten records read as empty
+			raf.setLength(0);
+			raf.setLength(size);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					size);
+		} finally {
+			// The mapping stays valid after the file is closed
+			raf.close();
+		}
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, RECORD_SIZE);
+		buffer.putInt(12, capacity);
+		buffer.putLong(16, System.currentTimeMillis());
+		buffer.putLong(24, System.nanoTime());
+		buffer.putLong(32, 0);
+	}
+
+	/**
+	 * @return The file the journal is written to
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The number of records written so far
+	 */
+	public long getRecordCount() {
+		return Math.min(next.get(), capacity);
+	}
+
+	/**
+	 * @return The number of records lost because the journal was full or
+	 *         closed
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Appends a record of a movement. Safe to call from any thread.
+	 *
+	 * @param type
+	 *            What happened to the movement
+	 * @param movement
+	 *            The movement, which must not be recycled during the call
+	 * @param outcome
+	 *            How the movement finished, or null if it hasn't
+	 */
+	void write(RecordType type, Mover.MoverConfig movement,
+			MoveOutcome outcome) {
+		if (closed) {
+			dropped.incrementAndGet();
+			return;
+		}
+		long slot = next.getAndIncrement();
+		if (slot >= capacity) {
+			dropped.incrementAndGet();
+			return;
+		}
+		int at = HEADER_SIZE + (int) slot * RECORD_SIZE;
+		int flags = (movement.avoidBall ? FLAG_AVOID_BALL : 0)
+				| (movement.avoidEnemy ? FLAG_AVOID_ENEMY : 0)
+				| (movement.urgent ? FLAG_URGENT : 0);
+		buffer.put(at + 1, (byte) movement.mode.ordinal());
+		buffer.put(at + 2, (byte) flags);
+		buffer.put(at + 3, (byte) (outcome == null ? 0 : outcome.ordinal()));
+		buffer.putInt(at + 4, (int) Math.min(movement.timeToLive / 1000000L,
+				Integer.MAX_VALUE));
+		buffer.putLong(at + 8, movement.ticket);
+		buffer.putLong(at + 16, System.nanoTime());
+		buffer.putLong(at + 24, Thread.currentThread().getId());
+		buffer.putDouble(at + 32, movement.x);
+		buffer.putDouble(at + 40, movement.y);
+		buffer.putDouble(at + 48, movement.angle);
+		buffer.putLong(at + 56, movement.milliseconds);
+		// Last, so a half-written record reads as empty
+		buffer.put(at, (byte) (type.ordinal() + 1));
+	}
+
+	/**
+	 * Writes the record count into the header and forces everything out to
+	 * the file
+	 */
+	public void flush() {
+		buffer.putLong(32, getRecordCount());
+		buffer.force();
+	}
+
+	/**
+	 * Stops recording and flushes the journal. Records written concurrently
+	 * with closing may or may not make it.
+	 */
+	public void close() {
+		closed = true;
+		flush();
+	}
+
+	/**
+	 * Reads every record from a journal file
+	 *
+	 * @param file
+	 *            The journal to read
+	 * @return The records, in the order they were claimed
+	 * @throws IOException
+	 *             If the file can't be read or isn't a journal
+	 */
+	public static List<Record> read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		MappedByteBuffer in;
+		try {
+			in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		if (in.capacity() < HEADER_SIZE || in.getInt(0) != MAGIC)
+			throw new IOException(file + " is not a mover journal");
+		int version = in.getInt(4);
+		if ((version != VERSION && version != VERSION_WITHOUT_TTL)
+				|| in.getInt(8) != RECORD_SIZE)
+			throw new IOException(file + " has unsupported version "
+					+ in.getInt(4));
+		long startMillis = in.getLong(16);
+		long startNanos = in.getLong(24);
+		int slots = (in.capacity() - HEADER_SIZE) / RECORD_SIZE;
+		Mover.Mode[] modes = Mover.Mode.values();
+		MoveOutcome[] outcomes = MoveOutcome.values();
+		RecordType[] types = RecordType.values();
+
+		List<Record> records = new ArrayList<Record>();
+		for (int slot = 0; slot < slots; ++slot) {
+			int at = HEADER_SIZE + slot * RECORD_SIZE;
+			int type = in.get(at);
+			// Empty records are slots claimed but never written; the file
+			// may also just not have been closed cleanly
+			if (type < 1 || type > types.length)
+				continue;
+			int flags = in.get(at + 2);
+			long nanos = in.getLong(at + 16);
+			records.add(new Record(types[type - 1], modes[in.get(at + 1)],
+					(flags & FLAG_AVOID_BALL) != 0,
+					(flags & FLAG_AVOID_ENEMY) != 0,
+					(flags & FLAG_URGENT) != 0, types[type - 1]
+							== RecordType.FINISHED ? outcomes[in.get(at + 3)]
+							: null, in.getLong(at + 8), nanos,
+					startMillis + (nanos - startNanos) / 1000000L,
+					in.getLong(at + 24), in.getDouble(at + 32),
+					in.getDouble(at + 40), in.getDouble(at + 48),
+					in.getLong(at + 56), version == VERSION ? in.getInt(at + 4)
+							: 0));
+		}
+		return records;
+	}
+
+	/**
+	 * One record read back from a journal
+	 */
+	public static class Record {
+		public final RecordType type;
+		final Mover.Mode mode;
+		public final boolean avoidBall;
+		public final boolean avoidEnemy;
+		public final boolean urgent;
+		/** How the movement finished, or null unless this is FINISHED */
+		public final MoveOutcome outcome;
+		public final long ticket;
+		/** The System.nanoTime() of the recording JVM */
+		public final long nanoTime;
+		/** The wall clock time, worked out from nanoTime */
+		public final long timeMillis;
+		public final long threadId;
+		public final double x;
+		public final double y;
+		public final double angle;
+		public final long milliseconds;
+		/**
+		 * How long the movement could wait in the queue, in milliseconds,
+		 * whether it was queued with it or given it by default, or 0 for no
+		 * limit
+		 */
+		public final long timeToLiveMillis;
+
+		private Record(RecordType type, Mover.Mode mode, boolean avoidBall,
+				boolean avoidEnemy, boolean urgent, MoveOutcome outcome,
+				long ticket, long nanoTime, long timeMillis, long threadId,
+				double x, double y, double angle, long milliseconds,
+				long timeToLiveMillis) {
+			this.type = type;
+			this.mode = mode;
+			this.avoidBall = avoidBall;
+			this.avoidEnemy = avoidEnemy;
+			this.urgent = urgent;
+			this.outcome = outcome;
+			this.ticket = ticket;
+			this.nanoTime = nanoTime;
+			this.timeMillis = timeMillis;
+			this.threadId = threadId;
+			this.x = x;
+			this.y = y;
+			this.angle = angle;
+			this.milliseconds = milliseconds;
+			this.timeToLiveMillis = timeToLiveMillis;
+		}
+
+		/**
+		 * @return The name of the movement's mode, such as MOVE_TO
+		 */
+		public String getModeName() {
+			return mode.name();
+		}
+
+		@Override
+		public String toString() {
+			return nanoTime + " " + type + " #" + ticket + " " + mode
+					+ (urgent ? " urgent" : "") + " x=" + x + " y=" + y
+					+ " angle=" + angle + " ms=" + milliseconds
+					+ (timeToLiveMillis > 0 ? " ttl=" + timeToLiveMillis : "")
+					+ (avoidBall ? " avoidBall" : "")
+					+ (avoidEnemy ? " avoidEnemy" : "") + " thread="
+					+ threadId + (outcome != null ? " " + outcome : "");
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package mcdbg;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous event log for the mover. <br/>
+ * Logging an event only copies an event code and a few primitive fields into
+ * a preallocated ring buffer; a background thread formats and prints the
+ * events, so a slow console never holds up the mover. Events below the
+ * current level are dropped before anything is written, and if the ring fills
+ * up new events are dropped and counted rather than blocking the caller.
+ */
+public class MoverLog {
+	/** How much to log, from nothing to everything */
+	public enum Level {
+		OFF, ERROR, INFO, DEBUG
+	};
+
+	/** Every kind of event the mover logs */
+	public enum Event {
+		STOPPING(Level.INFO),
+		KICKING(Level.INFO),
+		DELAYING(Level.INFO),
+		MOVING_VECTOR(Level.INFO),
+		MOVING_ANGLE(Level.INFO),
+		MOVING_TO(Level.INFO),
+		MOVING_TO_STOP(Level.INFO),
+		MOVING_TOWARDS(Level.INFO),
+		MOVING_TO_ASTAR(Level.INFO),
+		ROTATING(Level.INFO),
+		WAKING_WAITERS(Level.INFO),
+		UNKNOWN_MODE(Level.ERROR),
+		JOB_FAILED(Level.ERROR),
+		SLEEP_FAILED(Level.ERROR),
+		NO_PATH(Level.INFO),
+		EXPIRED(Level.INFO),
+		DO_MOVE(Level.DEBUG),
+		DO_MOVE_ANGLE(Level.DEBUG),
+		DO_MOVE_TO(Level.DEBUG),
+		DO_MOVE_TOWARDS(Level.DEBUG),
+		DO_MOVE_TO_ASTAR(Level.DEBUG),
+		DO_ROTATE(Level.DEBUG);
+
+		private final Level level;
+
+		private Event(Level level) {
+			this.level = level;
+		}
+
+		/**
+		 * @return The level the event is logged at
+		 */
+		public Level getLevel() {
+			return level;
+		}
+	};
+
+	/** Default number of events the ring buffer can hold */
+	public static final int DEFAULT_CAPACITY = 4096;
+	/** How long the drain thread waits between checks for new events */
+	private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS
+			.toNanos(5);
+
+	private static final Event[] EVENTS = Event.values();
+
+	private static MoverLog shared = null;
+
+	private final int capacity;
+	private final int mask;
+	private final AtomicLongArray sequences;
+	private final int[] events;
+	private final double[] as;
+	private final double[] bs;
+	private final long[] cs;
+
+	private final AtomicLong tail = new AtomicLong(0);
+	/** Only written by the drain thread */
+	private volatile long head = 0;
+	private final AtomicLong dropped = new AtomicLong(0);
+
+	private volatile Level level;
+	private final PrintStream out;
+	private final Thread drainer;
+
+	/**
+	 * Creates a log that prints to a stream, and starts its drain thread
+	 *
+	 * @param out
+	 *            The stream to print events to
+	 * @param capacity
+	 *            The number of events the ring buffer can hold, rounded up to
+	 *            the next power of 2
+	 * @param level
+	 *            The initial level
+	 */
+	public MoverLog(PrintStream out, int capacity, Level level) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.out = out;
+		this.level = level;
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i)
+			sequences.set(i, i);
+		events = new int[size];
+		as = new double[size];
+		bs = new double[size];
+		cs = new long[size];
+
+		drainer = new Thread("mover-log") {
+			@Override
+			public void run() {
+				drainLoop();
+			}
+		};
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * @return The log shared by every mover that hasn't been given its own,
+	 *         printing to System.out at {@link Level#DEBUG}
+	 */
+	public static synchronized MoverLog shared() {
+		if (shared == null)
+			shared = new MoverLog(System.out, DEFAULT_CAPACITY, Level.DEBUG);
+		return shared;
+	}
+
+	/**
+	 * @return A new log that throws away everything it prints, starting at
+	 *         {@link Level#OFF}, for measuring the mover without a console in
+	 *         the way. Raising its level measures the cost of logging alone.
+	 */
+	public static MoverLog silent() {
+		return new MoverLog(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}), DEFAULT_CAPACITY, Level.OFF);
+	}
+
+	/**
+	 * @param level
+	 *            The new level; events below it are no longer logged
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return The current level
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * @param eventLevel
+	 *            The level of an event
+	 * @return true if events at that level are currently logged
+	 */
+	public boolean isEnabled(Level eventLevel) {
+		return eventLevel.ordinal() <= level.ordinal()
+				&& eventLevel != Level.OFF;
+	}
+
+	/**
+	 * @return The number of events dropped because the ring buffer was full
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Logs an event with no fields
+	 *
+	 * @param event
+	 *            The event to log
+	 */
+	public void log(Event event) {
+		if (isEnabled(event.level))
+			append(event, 0, 0, 0);
+	}
+
+	/**
+	 * Logs an event with one integer field
+	 *
+	 * @param event
+	 *            The event to log
+	 * @param c
+	 *            The field
+	 */
+	public void log(Event event, long c) {
+		if (isEnabled(event.level))
+			append(event, 0, 0, c);
+	}
+
+	/**
+	 * Logs an event with one real field
+	 *
+	 * @param event
+	 *            The event to log
+	 * @param a
+	 *            The field
+	 */
+	public void log(Event event, double a) {
+		if (isEnabled(event.level))
+			append(event, a, 0, 0);
+	}
+
+	/**
+	 * Logs an event with two real fields
+	 *
+	 * @param event
+	 *            The event to log
+	 * @param a
+	 *            The first field
+	 * @param b
+	 *            The second field
+	 */
+	public void log(Event event, double a, double b) {
+		if (isEnabled(event.level))
+			append(event, a, b, 0);
+	}
+
+	/**
+	 * Logs an event with two real fields and one integer field
+	 *
+	 * @param event
+	 *            The event to log
+	 * @param a
+	 *            The first real field
+	 * @param b
+	 *            The second real field
+	 * @param c
+	 *            The integer field
+	 */
+	public void log(Event event, double a, double b, long c) {
+		if (isEnabled(event.level))
+			append(event, a, b, c);
+	}
+
+	/**
+	 * Copies an event into the next free slot of the ring buffer
+	 */
+	private void append(Event event, double a, double b, long c) {
+		long pos;
+		int idx;
+		while (true) {
+			pos = tail.get();
+			idx = (int) (pos & mask);
+			long diff = sequences.get(idx) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+			} else if (diff < 0) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+		events[idx] = event.ordinal();
+		as[idx] = a;
+		bs[idx] = b;
+		cs[idx] = c;
+		// Publishing the sequence makes the fields visible to the drainer
+		sequences.set(idx, pos + 1);
+	}
+
+	/**
+	 * Blocks until every event logged before this call has been printed, or
+	 * until a timeout passes
+	 *
+	 * @param timeoutMillis
+	 *            The maximum time to wait, in milliseconds
+	 */
+	public void flush(long timeoutMillis) {
+		long target = tail.get();
+		long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (head < target && System.nanoTime() - deadline < 0) {
+			LockSupport.unpark(drainer);
+			LockSupport.parkNanos(this, DRAIN_INTERVAL / 5);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Run by the drain thread: prints events as they arrive
+	 */
+	private void drainLoop() {
+		StringBuilder line = new StringBuilder(128);
+		while (true) {
+			long pos = head;
+			int idx = (int) (pos & mask);
+			if (sequences.get(idx) != pos + 1) {
+				out.flush();
+				LockSupport.parkNanos(this, DRAIN_INTERVAL);
+				continue;
+			}
+			line.setLength(0);
+			format(line, EVENTS[events[idx]], as[idx], bs[idx], cs[idx]);
+			// Hand the slot back before printing, so a slow stream holds on
+			// to as few slots as possible
+			sequences.set(idx, pos + capacity);
+			head = pos + 1;
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Formats an event the way the mover used to print it
+	 */
+	private static void format(StringBuilder line, Event event, double a,
+			double b, long c) {
+		switch (event) {
+		case STOPPING:
+			line.append("Mover: Stopping robot");
+			break;
+		case KICKING:
+			line.append("Mover: Kicking!");
+			break;
+		case DELAYING:
+			line.append("Mover: Waiting for ").append(c)
+					.append(" milliseconds");
+			break;
+		case MOVING_VECTOR:
+			line.append("Mover: Moving at speed (").append(a).append(", ")
+					.append(b).append(')');
+			break;
+		case MOVING_ANGLE:
+			line.append("Mover: Moving at angle ").append(a)
+					.append(" radians (").append(Math.toDegrees(a))
+					.append(" degrees)");
+			break;
+		case MOVING_TO:
+			line.append("Mover: Moving to point (").append(a).append(", ")
+					.append(b).append(')');
+			break;
+		case MOVING_TO_STOP:
+			line.append("Mover: Moving to point (").append(a).append(", ")
+					.append(b).append(") and stopping");
+			break;
+		case MOVING_TOWARDS:
+			line.append("Mover: Moving towards point (").append(a)
+					.append(", ").append(b).append(')');
+			break;
+		case MOVING_TO_ASTAR:
+			line.append("Mover: Moving to point (").append(a).append(", ")
+					.append(b).append(") using A*");
+			break;
+		case ROTATING:
+			line.append("Mover: Rotating by ").append(a).append(" radians (")
+					.append(Math.toDegrees(a)).append(" degrees)");
+			break;
+		case WAKING_WAITERS:
+			line.append("Mover: Waking up waiters");
+			break;
+		case UNKNOWN_MODE:
+			line.append("Mover: DERP! Unknown movement mode specified");
+			break;
+		case JOB_FAILED:
+			line.append("Mover: Error occurred executing job");
+			break;
+		case SLEEP_FAILED:
+			line.append("Failed to sleep");
+			break;
+		case NO_PATH:
+			line.append("Mover: No path to (").append(a).append(", ")
+					.append(b).append("), heading straight there");
+			break;
+		case EXPIRED:
+			line.append("Mover: Skipping movement queued ").append(c)
+					.append(" ms ago, past its time to live");
+			break;
+		case DO_MOVE:
+			line.append("Doing move(").append(a).append(", ").append(b)
+					.append(')');
+			break;
+		case DO_MOVE_ANGLE:
+			line.append("Doing move(").append(a).append(')');
+			break;
+		case DO_MOVE_TO:
+			line.append("Doing doMoveTo(").append(a).append(", ").append(b)
+					.append(')');
+			break;
+		case DO_MOVE_TOWARDS:
+			line.append("Doing moveTowards(").append(a).append(", ")
+					.append(b).append(')');
+			break;
+		case DO_MOVE_TO_ASTAR:
+			line.append("Doing moveToAStar(").append(a).append(", ")
+					.append(b).append(", ").append((c & 1) != 0)
+					.append(", ").append((c & 2) != 0).append(')');
+			break;
+		case DO_ROTATE:
+			line.append("Doing rotate(").append(a).append(')');
+			break;
+		default:
+			line.append("Mover: event ").append(event);
+		}
+	}
+}
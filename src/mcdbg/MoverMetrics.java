@@ -0,0 +1,562 @@
+package mcdbg;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency and load statistics for a {@link Mover}, kept per kind of
+ * movement. <br/>
+ * For every movement the mover records how long it waited in the queue
+ * before starting, how long it took to run, and how deep the queue was when
+ * it was queued. A kind of movement's histograms are created the first time
+ * they are needed; from then on recording allocates nothing, so the metrics
+ * are always on. <br/>
+ * Read them directly, take a {@link Snapshot}, have snapshots delivered
+ * periodically with {@link #scheduleSnapshots(long, boolean, Listener)}, or
+ * through JMX with {@link Mover#registerMBean()}.
+ */
+public class MoverMetrics {
+	/** Latencies longer than this all land in the top bucket */
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES
+			.toNanos(10);
+
+	/** Shared by every mover's periodic snapshots */
+	private static Timer snapshotTimer = null;
+	/**
+	 * Stands in, never recorded to, for the histograms of a kind of movement
+	 * not yet used
+	 */
+	private static final LatencyHistogram UNUSED = new LatencyHistogram(1);
+
+	private final String[] modes;
+	private final long highestQueueDepth;
+	/**
+	 * Histograms of each kind of movement, or null until first needed. Only
+	 * written while holding the lock, and safe to read without it as the
+	 * arrays publish what is written to them.
+	 */
+	private final AtomicReferenceArray<LatencyHistogram> enqueueToStart;
+	private final AtomicReferenceArray<LatencyHistogram> execution;
+	private final AtomicReferenceArray<LatencyHistogram> queueDepth;
+
+	private final AtomicLong pushFailures = new AtomicLong(0);
+	private final AtomicLong overflows = new AtomicLong(0);
+	private final AtomicLong pushTimeouts = new AtomicLong(0);
+	private final AtomicLong droppedOldest = new AtomicLong(0);
+	private final AtomicLong droppedNewest = new AtomicLong(0);
+	private final AtomicLong expired = new AtomicLong(0);
+	private final AtomicLong cancelled = new AtomicLong(0);
+	private final AtomicLong lookaheadUsed = new AtomicLong(0);
+	private final AtomicLong lookaheadMissed = new AtomicLong(0);
+	private final AtomicLong resets = new AtomicLong(0);
+	private final AtomicLong interrupts = new AtomicLong(0);
+
+	/**
+	 * @param modes
+	 *            The names of the kinds of movement, in the order the mover
+	 *            numbers them
+	 * @param queueCapacity
+	 *            The most movements that can be queued at once
+	 */
+	MoverMetrics(String[] modes, int queueCapacity) {
+		this.modes = modes.clone();
+		highestQueueDepth = queueCapacity;
+		enqueueToStart = new AtomicReferenceArray<LatencyHistogram>(
+				modes.length);
+		execution = new AtomicReferenceArray<LatencyHistogram>(modes.length);
+		queueDepth = new AtomicReferenceArray<LatencyHistogram>(modes.length);
+	}
+
+	/**
+	 * Gets one of the histograms of a kind of movement, creating that kind's
+	 * histograms if they don't exist yet
+	 */
+	private LatencyHistogram histogram(
+			AtomicReferenceArray<LatencyHistogram> histograms, int mode) {
+		LatencyHistogram histogram = histograms.get(mode);
+		if (histogram == null) {
+			synchronized (this) {
+				if (queueDepth.get(mode) == null) {
+					enqueueToStart.set(mode, new LatencyHistogram(
+							HIGHEST_TRACKABLE_NANOS));
+					execution.set(mode, new LatencyHistogram(
+							HIGHEST_TRACKABLE_NANOS));
+					queueDepth.set(mode,
+							new LatencyHistogram(highestQueueDepth));
+				}
+				histogram = histograms.get(mode);
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Gets one of the histograms of a kind of movement without creating it,
+	 * so reading the metrics allocates nothing for kinds never used. Those
+	 * get an empty histogram, which must not be recorded to.
+	 */
+	private LatencyHistogram existing(
+			AtomicReferenceArray<LatencyHistogram> histograms, String mode) {
+		LatencyHistogram histogram = histograms.get(indexOf(mode));
+		return histogram == null ? UNUSED : histogram;
+	}
+
+	void recordQueued(int mode, int depth) {
+		histogram(queueDepth, mode).record(depth);
+	}
+
+	void recordStarted(int mode, long queuedAt, long startedAt) {
+		histogram(enqueueToStart, mode).record(startedAt - queuedAt);
+	}
+
+	void recordFinished(int mode, long startedAt, long finishedAt) {
+		histogram(execution, mode).record(finishedAt - startedAt);
+	}
+
+	void pushFailed() {
+		pushFailures.incrementAndGet();
+	}
+
+	void queueOverflowed() {
+		overflows.incrementAndGet();
+	}
+
+	void pushTimedOut() {
+		pushTimeouts.incrementAndGet();
+	}
+
+	void droppedOldest() {
+		droppedOldest.incrementAndGet();
+	}
+
+	void droppedNewest() {
+		droppedNewest.incrementAndGet();
+	}
+
+	void moveExpired() {
+		expired.incrementAndGet();
+	}
+
+	void moveCancelled() {
+		cancelled.incrementAndGet();
+	}
+
+	void lookaheadUsed() {
+		lookaheadUsed.incrementAndGet();
+	}
+
+	void lookaheadMissed() {
+		lookaheadMissed.incrementAndGet();
+	}
+
+	void queueReset() {
+		resets.incrementAndGet();
+	}
+
+	void moveInterrupted() {
+		interrupts.incrementAndGet();
+	}
+
+	/**
+	 * @return The names of the kinds of movement statistics are kept for
+	 */
+	public String[] getModes() {
+		return modes.clone();
+	}
+
+	/**
+	 * @return The index of a kind of movement
+	 * @throws IllegalArgumentException
+	 *             If there is no such kind of movement
+	 */
+	private int indexOf(String mode) {
+		for (int i = 0; i < modes.length; ++i)
+			if (modes[i].equals(mode))
+				return i;
+		throw new IllegalArgumentException("Unknown mode: " + mode);
+	}
+
+	/**
+	 * @return The time movements of a kind spent queued before starting, in
+	 *         nanoseconds
+	 */
+	public LatencyHistogram getEnqueueToStart(String mode) {
+		return histogram(enqueueToStart, indexOf(mode));
+	}
+
+	/**
+	 * @return The time movements of a kind took to run, in nanoseconds
+	 */
+	public LatencyHistogram getExecution(String mode) {
+		return histogram(execution, indexOf(mode));
+	}
+
+	/**
+	 * @return The depth of the queue, including the movement itself, when
+	 *         movements of a kind were queued
+	 */
+	public LatencyHistogram getQueueDepth(String mode) {
+		return histogram(queueDepth, indexOf(mode));
+	}
+
+	/**
+	 * Like {@link #getEnqueueToStart(String)}, but gives an empty histogram
+	 * rather than creating one for a kind never queued. Read it only.
+	 */
+	LatencyHistogram readEnqueueToStart(String mode) {
+		return existing(enqueueToStart, mode);
+	}
+
+	/**
+	 * Like {@link #getExecution(String)}, but gives an empty histogram
+	 * rather than creating one for a kind never queued. Read it only.
+	 */
+	LatencyHistogram readExecution(String mode) {
+		return existing(execution, mode);
+	}
+
+	/**
+	 * Like {@link #getQueueDepth(String)}, but gives an empty histogram
+	 * rather than creating one for a kind never queued. Read it only.
+	 */
+	LatencyHistogram readQueueDepth(String mode) {
+		return existing(queueDepth, mode);
+	}
+
+	/**
+	 * @return The number of movements rejected because the queue stayed full
+	 */
+	public long getPushFailures() {
+		return pushFailures.get();
+	}
+
+	/**
+	 * @return The number of times a movement or plan found the queue full,
+	 *         whatever the overflow policy then did about it
+	 */
+	public long getOverflows() {
+		return overflows.get();
+	}
+
+	/**
+	 * @return The number of movements that gave up waiting for room in the
+	 *         queue
+	 */
+	public long getPushTimeouts() {
+		return pushTimeouts.get();
+	}
+
+	/**
+	 * @return The number of queued movements dropped to make room for newer
+	 *         ones
+	 */
+	public long getDroppedOldest() {
+		return droppedOldest.get();
+	}
+
+	/**
+	 * @return The number of new movements dropped because one of the same
+	 *         kind was already queued
+	 */
+	public long getDroppedNewest() {
+		return droppedNewest.get();
+	}
+
+	/**
+	 * @return The number of movements skipped because they were still
+	 *         queued past their time to live
+	 */
+	public long getExpired() {
+		return expired.get();
+	}
+
+	/**
+	 * @return The number of movements that finished as cancelled, whether
+	 *         they were running or still queued
+	 */
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	/**
+	 * @return The number of moveToAStar movements that followed a path
+	 *         planned ahead
+	 */
+	public long getLookaheadUsed() {
+		return lookaheadUsed.get();
+	}
+
+	/**
+	 * @return The number of moveToAStar movements that had to plan afresh
+	 *         because the path planned ahead wasn't ready or no longer fitted
+	 */
+	public long getLookaheadMissed() {
+		return lookaheadMissed.get();
+	}
+
+	/**
+	 * @return The number of times the queue has been reset
+	 */
+	public long getResets() {
+		return resets.get();
+	}
+
+	/**
+	 * @return The number of times a running movement has been cancelled with
+	 *         {@link Mover#cancelCurrent()}
+	 */
+	public long getInterrupts() {
+		return interrupts.get();
+	}
+
+	/**
+	 * Clears every histogram and counter
+	 */
+	public synchronized void reset() {
+		for (int i = 0; i < modes.length; ++i) {
+			if (queueDepth.get(i) == null)
+				continue;
+			enqueueToStart.get(i).reset();
+			execution.get(i).reset();
+			queueDepth.get(i).reset();
+		}
+		pushFailures.set(0);
+		overflows.set(0);
+		pushTimeouts.set(0);
+		droppedOldest.set(0);
+		droppedNewest.set(0);
+		expired.set(0);
+		cancelled.set(0);
+		lookaheadUsed.set(0);
+		lookaheadMissed.set(0);
+		resets.set(0);
+		interrupts.set(0);
+	}
+
+	/**
+	 * @return A summary of every statistic so far
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Takes a snapshot at a fixed rate and hands it to a listener, on a timer
+	 * thread shared by every mover
+	 *
+	 * @param periodMillis
+	 *            Time between snapshots, in milliseconds
+	 * @param resetAfterEach
+	 *            true to clear the statistics after each snapshot, so every
+	 *            snapshot covers just the last period
+	 * @param listener
+	 *            Receives the snapshots. It should return quickly, as it holds
+	 *            up every other mover's snapshots.
+	 * @return The scheduled task, which can be cancelled to stop the
+	 *         snapshots
+	 */
+	public TimerTask scheduleSnapshots(long periodMillis,
+			final boolean resetAfterEach, final Listener listener) {
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				Snapshot snapshot = snapshot();
+				if (resetAfterEach)
+					reset();
+				listener.onSnapshot(snapshot);
+			}
+		};
+		synchronized (MoverMetrics.class) {
+			if (snapshotTimer == null)
+				snapshotTimer = new Timer("mover-metrics", true);
+			snapshotTimer.scheduleAtFixedRate(task, periodMillis, periodMillis);
+		}
+		return task;
+	}
+
+	/**
+	 * Receives periodic snapshots
+	 */
+	public interface Listener {
+		void onSnapshot(Snapshot snapshot);
+	}
+
+	/**
+	 * An unchanging summary of a mover's statistics at one point in time
+	 */
+	public static class Snapshot {
+		/** Stands in for the histograms of movements never queued */
+		private static final LatencyHistogram.Snapshot EMPTY = new LatencyHistogram(
+				1).snapshot();
+
+		private final long takenAt;
+		private final String[] modes;
+		private final LatencyHistogram.Snapshot[] enqueueToStart;
+		private final LatencyHistogram.Snapshot[] execution;
+		private final LatencyHistogram.Snapshot[] queueDepth;
+		private final long pushFailures;
+		private final long overflows;
+		private final long pushTimeouts;
+		private final long droppedOldest;
+		private final long droppedNewest;
+		private final long expired;
+		private final long cancelled;
+		private final long lookaheadUsed;
+		private final long lookaheadMissed;
+		private final long resets;
+		private final long interrupts;
+
+		private Snapshot(MoverMetrics metrics) {
+			takenAt = System.currentTimeMillis();
+			modes = metrics.modes;
+			int n = modes.length;
+			enqueueToStart = new LatencyHistogram.Snapshot[n];
+			execution = new LatencyHistogram.Snapshot[n];
+			queueDepth = new LatencyHistogram.Snapshot[n];
+			for (int i = 0; i < n; ++i) {
+				enqueueToStart[i] = snapshotOf(metrics.enqueueToStart.get(i));
+				execution[i] = snapshotOf(metrics.execution.get(i));
+				queueDepth[i] = snapshotOf(metrics.queueDepth.get(i));
+			}
+			pushFailures = metrics.getPushFailures();
+			overflows = metrics.getOverflows();
+			pushTimeouts = metrics.getPushTimeouts();
+			droppedOldest = metrics.getDroppedOldest();
+			droppedNewest = metrics.getDroppedNewest();
+			expired = metrics.getExpired();
+			cancelled = metrics.getCancelled();
+			lookaheadUsed = metrics.getLookaheadUsed();
+			lookaheadMissed = metrics.getLookaheadMissed();
+			resets = metrics.getResets();
+			interrupts = metrics.getInterrupts();
+		}
+
+		/**
+		 * @return A snapshot of a histogram, which may not have been created
+		 *         yet
+		 */
+		private static LatencyHistogram.Snapshot snapshotOf(
+				LatencyHistogram histogram) {
+			return histogram == null ? EMPTY : histogram.snapshot();
+		}
+
+		/**
+		 * @return The System.currentTimeMillis() at which the snapshot was
+		 *         taken
+		 */
+		public long getTakenAt() {
+			return takenAt;
+		}
+
+		public String[] getModes() {
+			return modes.clone();
+		}
+
+		private int indexOf(String mode) {
+			for (int i = 0; i < modes.length; ++i)
+				if (modes[i].equals(mode))
+					return i;
+			throw new IllegalArgumentException("Unknown mode: " + mode);
+		}
+
+		public LatencyHistogram.Snapshot getEnqueueToStart(String mode) {
+			return enqueueToStart[indexOf(mode)];
+		}
+
+		public LatencyHistogram.Snapshot getExecution(String mode) {
+			return execution[indexOf(mode)];
+		}
+
+		public LatencyHistogram.Snapshot getQueueDepth(String mode) {
+			return queueDepth[indexOf(mode)];
+		}
+
+		/**
+		 * @return The highest 99th percentile enqueue-to-start latency of
+		 *         any kind of movement, in nanoseconds, which is the figure
+		 *         to alert on
+		 */
+		public long getWorstEnqueueToStartP99() {
+			long worst = 0;
+			for (LatencyHistogram.Snapshot s : enqueueToStart)
+				worst = Math.max(worst, s.getP99());
+			return worst;
+		}
+
+		public long getPushFailures() {
+			return pushFailures;
+		}
+
+		public long getOverflows() {
+			return overflows;
+		}
+
+		public long getPushTimeouts() {
+			return pushTimeouts;
+		}
+
+		public long getDroppedOldest() {
+			return droppedOldest;
+		}
+
+		public long getDroppedNewest() {
+			return droppedNewest;
+		}
+
+		public long getExpired() {
+			return expired;
+		}
+
+		public long getCancelled() {
+			return cancelled;
+		}
+
+		public long getLookaheadUsed() {
+			return lookaheadUsed;
+		}
+
+		public long getLookaheadMissed() {
+			return lookaheadMissed;
+		}
+
+		public long getResets() {
+			return resets;
+		}
+
+		public long getInterrupts() {
+			return interrupts;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("pushFailures=").append(pushFailures)
+					.append(" overflows=").append(overflows)
+					.append(" pushTimeouts=").append(pushTimeouts)
+					.append(" droppedOldest=").append(droppedOldest)
+					.append(" droppedNewest=").append(droppedNewest)
+					.append(" expired=").append(expired)
+					.append(" cancelled=").append(cancelled)
+					.append(" lookaheadUsed=").append(lookaheadUsed)
+					.append(" lookaheadMissed=").append(lookaheadMissed)
+					.append(" resets=").append(resets)
+					.append(" interrupts=").append(interrupts).append('\n');
+			for (int i = 0; i < modes.length; ++i) {
+				if (queueDepth[i].getCount() == 0
+						&& enqueueToStart[i].getCount() == 0)
+					continue;
+				sb.append(modes[i]).append('\n');
+				sb.append("  enqueue-to-start ns: ")
+						.append(enqueueToStart[i]).append('\n');
+				sb.append("  execution ns:        ").append(execution[i])
+						.append('\n');
+				sb.append("  queue depth:         ").append(queueDepth[i])
+						.append('\n');
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package mcdbg;
+
+/**
+ * Exposes a mover's state and {@link MoverMetrics} over JMX
+ */
+class MoverMonitor implements MoverMonitorMBean {
+	private final Mover mover;
+	private final MoverMetrics metrics;
+
+	MoverMonitor(Mover mover) {
+		this.mover = mover;
+		metrics = mover.getMetrics();
+	}
+
+	@Override
+	public boolean isRunning() {
+		return mover.isRunning();
+	}
+
+	@Override
+	public int getQueuedJobs() {
+		return mover.numQueuedJobs();
+	}
+
+	@Override
+	public long getPushFailures() {
+		return metrics.getPushFailures();
+	}
+
+	@Override
+	public long getOverflows() {
+		return metrics.getOverflows();
+	}
+
+	@Override
+	public long getPushTimeouts() {
+		return metrics.getPushTimeouts();
+	}
+
+	@Override
+	public long getDroppedOldest() {
+		return metrics.getDroppedOldest();
+	}
+
+	@Override
+	public long getDroppedNewest() {
+		return metrics.getDroppedNewest();
+	}
+
+	@Override
+	public long getExpired() {
+		return metrics.getExpired();
+	}
+
+	@Override
+	public long getCancelled() {
+		return metrics.getCancelled();
+	}
+
+	@Override
+	public long getLookaheadUsed() {
+		return metrics.getLookaheadUsed();
+	}
+
+	@Override
+	public long getLookaheadMissed() {
+		return metrics.getLookaheadMissed();
+	}
+
+	@Override
+	public String getOverflowPolicy() {
+		return mover.getOverflowPolicy().name();
+	}
+
+	@Override
+	public long getResets() {
+		return metrics.getResets();
+	}
+
+	@Override
+	public long getInterrupts() {
+		return metrics.getInterrupts();
+	}
+
+	@Override
+	public long getCoalescedCount() {
+		return mover.getCoalescedCount();
+	}
+
+	@Override
+	public long getUrgentDispatchCount() {
+		return mover.getUrgentDispatchCount();
+	}
+
+	@Override
+	public long getWorstEnqueueToStartP99() {
+		long worst = 0;
+		for (String mode : metrics.getModes())
+			worst = Math.max(worst, metrics.readEnqueueToStart(mode)
+					.getValueAtPercentile(99));
+		return worst;
+	}
+
+	@Override
+	public String[] getModes() {
+		return metrics.getModes();
+	}
+
+	@Override
+	public long getEnqueueToStartPercentile(String mode, double percentile) {
+		return metrics.readEnqueueToStart(mode).getValueAtPercentile(percentile);
+	}
+
+	@Override
+	public long getExecutionPercentile(String mode, double percentile) {
+		return metrics.readExecution(mode).getValueAtPercentile(percentile);
+	}
+
+	@Override
+	public long getQueueDepthPercentile(String mode, double percentile) {
+		return metrics.readQueueDepth(mode).getValueAtPercentile(percentile);
+	}
+
+	@Override
+	public double getMeanEnqueueToStart(String mode) {
+		return metrics.readEnqueueToStart(mode).getMean();
+	}
+
+	@Override
+	public double getMeanExecution(String mode) {
+		return metrics.readExecution(mode).getMean();
+	}
+
+	@Override
+	public String getSummary() {
+		return metrics.snapshot().toString();
+	}
+
+	@Override
+	public void resetStatistics() {
+		metrics.reset();
+	}
+}
@@ -0,0 +1,65 @@
+package mcdbg;
+
+/**
+ * The JMX view of a {@link Mover}, registered with
+ * {@link Mover#registerMBean()}. Latencies are in nanoseconds, and
+ * percentiles run from 0 to 100.
+ */
+public interface MoverMonitorMBean {
+	boolean isRunning();
+
+	int getQueuedJobs();
+
+	long getPushFailures();
+
+	long getOverflows();
+
+	long getPushTimeouts();
+
+	long getDroppedOldest();
+
+	long getDroppedNewest();
+
+	long getExpired();
+
+	long getCancelled();
+
+	long getLookaheadUsed();
+
+	long getLookaheadMissed();
+
+	String getOverflowPolicy();
+
+	long getResets();
+
+	long getInterrupts();
+
+	long getCoalescedCount();
+
+	long getUrgentDispatchCount();
+
+	/**
+	 * @return The highest 99th percentile enqueue-to-start latency of any kind
+	 *         of movement
+	 */
+	long getWorstEnqueueToStartP99();
+
+	String[] getModes();
+
+	long getEnqueueToStartPercentile(String mode, double percentile);
+
+	long getExecutionPercentile(String mode, double percentile);
+
+	long getQueueDepthPercentile(String mode, double percentile);
+
+	double getMeanEnqueueToStart(String mode);
+
+	double getMeanExecution(String mode);
+
+	/**
+	 * @return A readable summary of every statistic
+	 */
+	String getSummary();
+
+	void resetStatistics();
+}
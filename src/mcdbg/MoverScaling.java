@@ -0,0 +1,114 @@
+package mcdbg;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Runs a crowd of movers at once and reports how many threads and how much
+ * memory they take, either with a thread each or all on
+ * {@link Mover#sharedScheduler()}. <br/>
+ * Usage: MoverScaling [threads|executor] [movers]. Run each mode in its own
+ * JVM so the figures don't mix.
+ */
+public class MoverScaling {
+	private static final int DEFAULT_MOVERS = 500;
+	/** Number of delay and move cycles each mover runs */
+	private static final int CYCLES = 20;
+	private static final long DELAY_MILLIS = 50;
+	/** Time to leave the movers idle before counting threads again */
+	private static final long IDLE_WAIT = 2000;
+
+	public static void main(String[] args) throws InterruptedException {
+		boolean executor = args.length > 0 && args[0].equals("executor");
+		int count = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_MOVERS;
+		MoverLog log = MoverLog.silent();
+
+		System.gc();
+		long heapBefore = usedHeap();
+		long rssBefore = residentSetSize();
+		int threadsBefore = Thread.activeCount();
+
+		long before = System.nanoTime();
+		Mover[] movers = new Mover[count];
+		long[] last = new long[count];
+		for (int i = 0; i < count; ++i) {
+			movers[i] = executor ? new Mover(Mover.sharedScheduler())
+					: new Mover();
+			movers[i].setLog(log);
+			movers[i].start();
+			Mover.Plan plan = movers[i].plan();
+			for (int j = 0; j < CYCLES; ++j)
+				plan.delay(DELAY_MILLIS).move(i, j);
+			last[i] = plan.submit();
+		}
+
+		// Measure half way through, while every mover is busy
+		Thread.sleep(CYCLES * DELAY_MILLIS / 2);
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+		System.gc();
+		long heap = usedHeap() - heapBefore;
+		long rss = residentSetSize() - rssBefore;
+
+		int completed = 0;
+		for (int i = 0; i < count; ++i)
+			if (movers[i].waitUntil(last[i]) == MoveOutcome.COMPLETED)
+				++completed;
+		long elapsed = System.nanoTime() - before;
+
+		// Give idle pool threads time to exit
+		Thread.sleep(IDLE_WAIT);
+		int idleThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		for (Mover mover : movers)
+			mover.kill();
+		for (Mover mover : movers)
+			mover.awaitTermination();
+
+		System.out.println("Mode: " + (executor ? "shared executor" : "thread per mover"));
+		System.out.println("Movers: " + count + " (" + completed
+				+ " completed every movement)");
+		System.out.println("Live threads: " + threads + " while moving, "
+				+ idleThreads + " once idle (" + threadsBefore + " before)");
+		System.out.println("Heap used: " + (heap / 1024) + " KB ("
+				+ (heap / count) + " bytes per mover)");
+		if (rss >= 0)
+			System.out.println("Resident memory: " + (rss / 1024) + " KB ("
+					+ (rss / count) + " bytes per mover)");
+		System.out.println("Time for every movement: " + (elapsed / 1000000)
+				+ " ms (ideal " + (CYCLES * DELAY_MILLIS) + " ms)");
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @return The resident set size of this process in bytes, or -1 if it
+	 *         can't be read, as on anything but Linux
+	 */
+	private static long residentSetSize() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/self/status"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (IOException e) {
+			// Not on Linux
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,95 @@
+package mcdbg;
+
+import java.util.Arrays;
+
+/**
+ * A list of waypoints produced by a path planner. <br/>
+ * Paths are meant to be reused from one plan to the next, so the waypoint
+ * arrays only grow and planning into an existing path allocates nothing once
+ * it is big enough.
+ */
+public class Path {
+	private double[] xs = new double[16];
+	private double[] ys = new double[16];
+	private int size = 0;
+
+	/**
+	 * Removes every waypoint
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Appends a waypoint
+	 */
+	public void add(double x, double y) {
+		if (size == xs.length) {
+			xs = Arrays.copyOf(xs, size * 2);
+			ys = Arrays.copyOf(ys, size * 2);
+		}
+		xs[size] = x;
+		ys[size] = y;
+		++size;
+	}
+
+	/**
+	 * Makes this path a copy of another
+	 */
+	public void copyFrom(Path other) {
+		clear();
+		for (int i = 0; i < other.size; ++i)
+			add(other.xs[i], other.ys[i]);
+	}
+
+	/**
+	 * Reverses the order of the waypoints
+	 */
+	public void reverse() {
+		for (int i = 0, j = size - 1; i < j; ++i, --j) {
+			double x = xs[i], y = ys[i];
+			xs[i] = xs[j];
+			ys[i] = ys[j];
+			xs[j] = x;
+			ys[j] = y;
+		}
+	}
+
+	/**
+	 * @return The number of waypoints
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double getX(int i) {
+		return xs[i];
+	}
+
+	public double getY(int i) {
+		return ys[i];
+	}
+
+	/**
+	 * @return The total length of the path from its first waypoint
+	 */
+	public double length() {
+		double length = 0;
+		for (int i = 1; i < size; ++i) {
+			double dx = xs[i] - xs[i - 1], dy = ys[i] - ys[i - 1];
+			length += Math.sqrt(dx * dx + dy * dy);
+		}
+		return length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; ++i) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append('(').append(xs[i]).append(", ").append(ys[i]).append(')');
+		}
+		return sb.append(']').toString();
+	}
+}
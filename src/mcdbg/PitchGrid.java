@@ -0,0 +1,173 @@
+package mcdbg;
+
+/**
+ * An occupancy grid over the pitch, used for path planning. <br/>
+ * Obstacles are added already inflated by the radius of our robot, so a cell
+ * is free exactly when our robot's centre can be there. Cells along the edge
+ * of the pitch that our robot can't reach are always blocked.
+ */
+public class PitchGrid {
+	/** Default pitch size, in video feed units */
+	public static final double DEFAULT_WIDTH = 640;
+	public static final double DEFAULT_HEIGHT = 480;
+	/** Default size of one grid cell, in video feed units */
+	public static final double DEFAULT_CELL_SIZE = 5;
+
+	private final int cols;
+	private final int rows;
+	private final double cellSize;
+
+	/** The walls, which never change */
+	private final boolean[] walls;
+	/** The walls plus the current obstacles */
+	private final boolean[] blocked;
+
+	/**
+	 * @param width
+	 *            Width of the pitch, in video feed units
+	 * @param height
+	 *            Height of the pitch, in video feed units
+	 * @param cellSize
+	 *            Size of one grid cell, in video feed units
+	 * @param robotRadius
+	 *            Radius of our robot, used to keep it off the walls
+	 */
+	public PitchGrid(double width, double height, double cellSize,
+			double robotRadius) {
+		this.cellSize = cellSize;
+		cols = (int) Math.ceil(width / cellSize);
+		rows = (int) Math.ceil(height / cellSize);
+		walls = new boolean[cols * rows];
+		blocked = new boolean[cols * rows];
+		for (int row = 0; row < rows; ++row) {
+			for (int col = 0; col < cols; ++col) {
+				double x = centreX(col), y = centreY(row);
+				if (x < robotRadius || y < robotRadius
+						|| x > width - robotRadius
+						|| y > height - robotRadius)
+					walls[row * cols + col] = true;
+			}
+		}
+		clearObstacles();
+	}
+
+	/**
+	 * Removes every obstacle, leaving only the walls
+	 */
+	public void clearObstacles() {
+		System.arraycopy(walls, 0, blocked, 0, walls.length);
+	}
+
+	/**
+	 * Blocks every cell whose centre lies within a circle
+	 *
+	 * @param x
+	 *            Centre of the obstacle
+	 * @param y
+	 *            Centre of the obstacle
+	 * @param radius
+	 *            Radius of the obstacle, already inflated by our robot's
+	 *            radius
+	 */
+	public void addObstacle(double x, double y, double radius) {
+		int minCol = Math.max(0, (int) Math.floor((x - radius) / cellSize));
+		int maxCol = Math.min(cols - 1, (int) Math.floor((x + radius) / cellSize));
+		int minRow = Math.max(0, (int) Math.floor((y - radius) / cellSize));
+		int maxRow = Math.min(rows - 1, (int) Math.floor((y + radius) / cellSize));
+		double r2 = radius * radius;
+		for (int row = minRow; row <= maxRow; ++row) {
+			double dy = centreY(row) - y;
+			for (int col = minCol; col <= maxCol; ++col) {
+				double dx = centreX(col) - x;
+				if (dx * dx + dy * dy <= r2)
+					blocked[row * cols + col] = true;
+			}
+		}
+	}
+
+	public int getColumns() {
+		return cols;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return The number of cells in the grid
+	 */
+	public int size() {
+		return cols * rows;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * @return The index of the cell containing a point, clamped to the grid
+	 */
+	public int cellAt(double x, double y) {
+		int col = (int) (x / cellSize);
+		int row = (int) (y / cellSize);
+		col = Math.max(0, Math.min(cols - 1, col));
+		row = Math.max(0, Math.min(rows - 1, row));
+		return row * cols + col;
+	}
+
+	public double centreX(int col) {
+		return (col + 0.5) * cellSize;
+	}
+
+	public double centreY(int row) {
+		return (row + 0.5) * cellSize;
+	}
+
+	public boolean isBlocked(int cell) {
+		return blocked[cell];
+	}
+
+	/**
+	 * Checks whether the straight line between the centres of two cells only
+	 * passes through free cells, including cells it just clips the corner of.
+	 * The first cell itself isn't checked, so a line can leave a blocked cell.
+	 *
+	 * @param from
+	 *            The index of the first cell
+	 * @param to
+	 *            The index of the second cell
+	 * @return true if the line is clear
+	 */
+	public boolean lineOfSight(int from, int to) {
+		int col = from % cols, row = from / cols;
+		int endCol = to % cols, endRow = to / cols;
+		int dCol = Math.abs(endCol - col), dRow = Math.abs(endRow - row);
+		int stepCol = col < endCol ? 1 : -1, stepRow = row < endRow ? 1 : -1;
+		// Walk every cell the line touches, not just one per column/row
+		int error = dCol - dRow;
+		int steps = dCol + dRow;
+		dCol *= 2;
+		dRow *= 2;
+		for (int i = 0; i < steps; ++i) {
+			if (i > 0 && blocked[row * cols + col])
+				return false;
+			if (error > 0) {
+				col += stepCol;
+				error -= dRow;
+			} else if (error < 0) {
+				row += stepRow;
+				error += dCol;
+			} else {
+				// Passing exactly through a corner touches both neighbours
+				if (blocked[row * cols + col + stepCol]
+						|| blocked[(row + stepRow) * cols + col])
+					return false;
+				col += stepCol;
+				row += stepRow;
+				error -= dRow - dCol;
+				++i;
+			}
+		}
+		return !blocked[row * cols + col];
+	}
+}
@@ -0,0 +1,175 @@
+package mcdbg;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times A* planning of full-pitch paths around the ball and the enemy robot,
+ * to check planning fits comfortably inside one vision frame (under 1 ms).
+ * <br/>
+ * Then replays recorded frames of the robot driving across the pitch while the
+ * ball and the enemy move, replanning every frame from scratch as the mover
+ * does when {@link Mover#setReplanning(boolean) replanning}.
+ */
+public class PlannerBenchmark {
+	private static final int WARMUP_PLANS = 5000;
+	private static final int MEASURED_PLANS = 20000;
+	private static final double ROBOT_RADIUS = 20;
+	private static final double BALL_RADIUS = 4;
+	private static final double CLEARANCE = 5;
+	/** Number of times the recorded trajectories are replayed */
+	private static final int REPLAY_RUNS = 200;
+	/** Number of frames in each recorded trajectory */
+	private static final int FRAMES = 120;
+	/** Distance our robot covers in one frame, in video feed units */
+	private static final double ROBOT_STEP = 5;
+
+	public static void main(String[] args) {
+		PitchGrid grid = new PitchGrid(PitchGrid.DEFAULT_WIDTH,
+				PitchGrid.DEFAULT_HEIGHT, PitchGrid.DEFAULT_CELL_SIZE,
+				ROBOT_RADIUS);
+		AStarPlanner planner = new AStarPlanner(grid);
+		Path path = new Path();
+		Random random = new Random(42);
+
+		System.out.println("Grid: " + grid.getColumns() + " x "
+				+ grid.getRows() + " cells");
+		System.out.println("Warming up...");
+		for (int i = 0; i < WARMUP_PLANS; ++i)
+			planOnce(grid, planner, path, random);
+
+		long[] times = new long[MEASURED_PLANS];
+		long expanded = 0;
+		int found = 0;
+		for (int i = 0; i < MEASURED_PLANS; ++i) {
+			long before = System.nanoTime();
+			if (planOnce(grid, planner, path, random))
+				++found;
+			times[i] = System.nanoTime() - before;
+			expanded += planner.getLastExpanded();
+		}
+		Arrays.sort(times);
+		long total = 0;
+		for (long time : times)
+			total += time;
+
+		System.out.println("Plans: " + MEASURED_PLANS + " (" + found
+				+ " found a path)");
+		System.out.println("Mean cells expanded: " + (expanded / MEASURED_PLANS));
+		System.out.println("Mean: " + (total / MEASURED_PLANS) + " ns");
+		System.out.println("p50:  " + percentile(times, 0.50) + " ns");
+		System.out.println("p99:  " + percentile(times, 0.99) + " ns");
+		System.out.println("Max:  " + times[times.length - 1] + " ns");
+		System.out.println("Example path: " + path);
+
+		replay(grid, planner, path, random);
+	}
+
+	/**
+	 * Records obstacle trajectories, then replays them frame by frame, timing
+	 * an A* replan of each frame
+	 */
+	static void replay(PitchGrid grid, AStarPlanner planner, Path path,
+			Random random) {
+		double[] ballX = new double[FRAMES], ballY = new double[FRAMES];
+		double[] enemyX = new double[FRAMES], enemyY = new double[FRAMES];
+		double goalX = PitchGrid.DEFAULT_WIDTH - 30;
+		double goalY = PitchGrid.DEFAULT_HEIGHT - 30;
+
+		long[] times = new long[REPLAY_RUNS * FRAMES];
+		long expanded = 0;
+		System.out.println("Replaying " + REPLAY_RUNS + " runs of " + FRAMES
+				+ " frames...");
+		// The first runs are warmup and get overwritten
+		for (int run = -REPLAY_RUNS / 4; run < REPLAY_RUNS; ++run) {
+			record(ballX, ballY, enemyX, enemyY, random);
+			double usX = 30, usY = 30;
+			for (int frame = 0; frame < FRAMES; ++frame) {
+				grid.clearObstacles();
+				grid.addObstacle(ballX[frame], ballY[frame], BALL_RADIUS
+						+ ROBOT_RADIUS + CLEARANCE);
+				grid.addObstacle(enemyX[frame], enemyY[frame], 2 * ROBOT_RADIUS
+						+ CLEARANCE);
+
+				long before = System.nanoTime();
+				boolean found = planner.plan(usX, usY, goalX, goalY, path);
+				long after = System.nanoTime();
+				if (run >= 0) {
+					times[run * FRAMES + frame] = after - before;
+					expanded += planner.getLastExpanded();
+				}
+
+				// Drive towards the first waypoint
+				if (found) {
+					double dx = path.getX(0) - usX, dy = path.getY(0) - usY;
+					double distance = Math.sqrt(dx * dx + dy * dy);
+					double step = Math.min(ROBOT_STEP, distance);
+					if (distance > 0) {
+						usX += dx / distance * step;
+						usY += dy / distance * step;
+					}
+				}
+			}
+		}
+
+		report("Replanning", times, expanded / (REPLAY_RUNS * FRAMES));
+	}
+
+	/**
+	 * Records one trajectory: the ball rolls across the middle of the pitch
+	 * while the enemy drives in a circle around the centre spot
+	 */
+	private static void record(double[] ballX, double[] ballY,
+			double[] enemyX, double[] enemyY, Random random) {
+		double bx = 0.3 * PitchGrid.DEFAULT_WIDTH + random.nextDouble() * 60;
+		double by = 0.3 * PitchGrid.DEFAULT_HEIGHT + random.nextDouble() * 60;
+		double bvx = random.nextDouble() * 4 - 2, bvy = random.nextDouble() * 4 - 2;
+		double angle = random.nextDouble() * 2 * Math.PI;
+		double radius = 60 + random.nextDouble() * 40;
+		for (int frame = 0; frame < ballX.length; ++frame) {
+			ballX[frame] = bx + bvx * frame;
+			ballY[frame] = by + bvy * frame;
+			double a = angle + 0.03 * frame;
+			enemyX[frame] = PitchGrid.DEFAULT_WIDTH / 2 + radius * Math.cos(a);
+			enemyY[frame] = PitchGrid.DEFAULT_HEIGHT / 2 + radius * Math.sin(a);
+		}
+	}
+
+	private static void report(String name, long[] times, long expanded) {
+		Arrays.sort(times);
+		long total = 0;
+		for (long time : times)
+			total += time;
+		System.out.println(name + ": mean " + (total / times.length)
+				+ " ns, p50 " + percentile(times, 0.50) + " ns, p99 "
+				+ percentile(times, 0.99) + " ns, max "
+				+ times[times.length - 1] + " ns, mean cells expanded "
+				+ expanded);
+	}
+
+	/**
+	 * Places the ball and the enemy across the middle of the pitch, then plans
+	 * from one corner to the opposite one. Obstacle placement is
+	 * included in the time, as the mover does it for every plan.
+	 */
+	static boolean planOnce(PitchGrid grid, AStarPlanner planner, Path path,
+			Random random) {
+		// Keep both close to the straight line so the path has to detour
+		double t = 0.3 + random.nextDouble() * 0.2;
+		double ballX = t * PitchGrid.DEFAULT_WIDTH + random.nextDouble() * 20;
+		double ballY = t * PitchGrid.DEFAULT_HEIGHT + random.nextDouble() * 20;
+		t += 0.2;
+		double enemyX = t * PitchGrid.DEFAULT_WIDTH + random.nextDouble() * 20;
+		double enemyY = t * PitchGrid.DEFAULT_HEIGHT + random.nextDouble() * 20;
+		grid.clearObstacles();
+		grid.addObstacle(ballX, ballY, BALL_RADIUS + ROBOT_RADIUS + CLEARANCE);
+		grid.addObstacle(enemyX, enemyY, 2 * ROBOT_RADIUS + CLEARANCE);
+		return planner.plan(30, 30, PitchGrid.DEFAULT_WIDTH - 30,
+				PitchGrid.DEFAULT_HEIGHT - 30, path);
+	}
+
+	static long percentile(long[] sorted, double p) {
+		int idx = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+	}
+}
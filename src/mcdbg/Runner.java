@@ -1,16 +1,33 @@
 package mcdbg;
 
+import safesleep.Clock;
 import safesleep.SafeSleep;
+import safesleep.VirtualClock;
 
+/**
+ * Runs the mover through a scripted scenario. <br/>
+ * Usage: Runner [virtual] <br/>
+ * Given "virtual", the scenario runs on a {@link VirtualClock}, so it takes
+ * only as long as its computation and reports the same times every run.
+ */
 public class Runner {
 
 	public static void main(String[] args) {
+		boolean virtual = args.length > 0 && args[0].equals("virtual");
+		Clock clock = virtual ? new VirtualClock() : Clock.system();
+		long clockBefore = clock.millis();
+		long realBefore = System.nanoTime();
 		Mover mover = new Mover();
+		if (virtual) {
+			clock.register(Thread.currentThread());
+			mover.setClock(clock);
+			SafeSleep.setClock(clock);
+		}
 		mover.start();
 		System.out.println("Mover thread started");
 		try {
 			System.out.println("Testing for sleep deadlock");
-			long timeBefore = System.currentTimeMillis();
+			long timeBefore = clock.millis();
 			mover.delay(1000);
 			System.out.println("Added 1000 ms delay to movement queue");
 			System.out.println("Sleeping for 3 rounds of 100 ms");
@@ -19,27 +36,34 @@ public class Runner {
 			SafeSleep.sleep(100);
 			mover.delay(1000);
 			System.out.println("Added 1000 ms delay to movement queue");
-			long timeElapsed = System.currentTimeMillis() - timeBefore;
+			long timeElapsed = clock.millis() - timeBefore;
 			System.out.println("Done in " + timeElapsed + " ms");
 			if (mover.hasQueuedJobs() || mover.isRunning())
 				mover.waitForCompletion();
 			
+			Mover.Plan plan = mover.plan();
 			for (int i = 0; i < 5; ++i) {
 				int x = 10 * i, y = 100 - x;
-				mover.move(x, y);
-				mover.delay(1000);
+				plan.move(x, y).delay(1000);
 			}
+			plan.submit();
 			// Wait for the mover to start some jobs
 			SafeSleep.sleep(2500);
 //			System.out.println("Resetting queue...");
 //			mover.resetQueue();
 
+			long lastMove = Mover.REJECTED;
 			for (int i = 0; i < 5; ++i) {
 				int x = 10 * i, y = 100 - x;
-				mover.moveTo(x, y);
+				lastMove = mover.moveTo(x, y);
 				mover.delay(1000);
 			}
 			System.out.println("Queued moves: " + mover.numQueuedJobs());
+			System.out.println("Waiting for last moveTo...");
+			System.out.println();
+			MoveOutcome outcome = mover.waitUntil(lastMove);
+			System.out.println();
+			System.out.println("Last moveTo finished: " + outcome);
 			System.out.println("Waiting for completion...");
 			System.out.println();
 
@@ -47,10 +71,32 @@ public class Runner {
 				mover.waitForCompletion();
 			System.out.println();
 			
+			System.out.println("moveTo control loop: "
+					+ mover.getMoveToTicker());
+			System.out.println();
+
+			System.out.println("Testing urgent stop during a delay");
+			long delay = mover.delay(1000);
+			SafeSleep.sleep(100);
+			mover.waitUntil(mover.stopRobotNow());
+			System.out.println("Delay finished: " + mover.waitUntil(delay));
+			System.out.println("Urgent dispatch took "
+					+ mover.getMaxUrgentDispatchNanos() + " ns");
+			System.out.println();
+
+			System.out.println("Mover metrics:");
+			System.out.println(mover.getMetrics().snapshot());
+
 			System.out.println("Completed!\nKilling mover");
 			mover.kill();
 			System.out.println("Mover killed, joining with main");
+			// Time has nothing left to wait for once the mover is gone
+			clock.deregister(Thread.currentThread());
 			mover.join();
+			System.out.println("Scenario took " + (clock.millis() - clockBefore)
+					+ " ms of " + (virtual ? "virtual" : "clock") + " time, "
+					+ (System.nanoTime() - realBefore) / 1000000L
+					+ " ms of real time");
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
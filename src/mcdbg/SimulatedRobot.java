@@ -0,0 +1,422 @@
+package mcdbg;
+
+import safesleep.Clock;
+import safesleep.FixedRateTicker;
+
+/**
+ * A holonomic robot simulated in video feed coordinates, so movers can be run
+ * closed loop without hardware. <br/>
+ * The robot can move in any direction whatever its bearing, with its speed,
+ * acceleration and turning rate limited. Each command takes effect a fixed
+ * latency after it is given, as it would over the radio link. When heading
+ * for a point it slows down in time to stop on it, like the robot's own
+ * controller. <br/>
+ * Time only moves on when the robot is looked at, so it costs nothing while
+ * idle. Attach it to a {@link WorldModel} and start its vision with
+ * {@link #startVision(WorldModel, long)} to have it report its position as
+ * the real vision system would. <br/>
+ * The robot runs on the time of its {@link #setClock(Clock) clock}, so with a
+ * {@link safesleep.VirtualClock} a closed loop scenario runs as fast as it
+ * can be computed and comes out the same every time. <br/>
+ * A bearing of 0 faces along the x axis, and bearings increase clockwise as
+ * seen on the video feed.
+ */
+public class SimulatedRobot implements Actuator {
+	/** Default top speed, in video feed units per second */
+	public static final double DEFAULT_MAX_SPEED = 400;
+	/** Default top acceleration, in video feed units per second squared */
+	public static final double DEFAULT_MAX_ACCELERATION = 1600;
+	/** Default top turning rate, in radians per second */
+	public static final double DEFAULT_MAX_ANGULAR_SPEED = 2 * Math.PI;
+	/** Default delay before a command takes effect, in milliseconds */
+	public static final long DEFAULT_LATENCY = 20;
+
+	/** Longest step the motion is integrated over, in nanoseconds */
+	private static final long STEP_NANOS = 1000000;
+	/** Most commands that can be waiting out the latency at once */
+	private static final int PENDING_CAPACITY = 256;
+	/** Distance from a target at which the robot counts as on it */
+	private static final double TARGET_MARGIN = 0.5;
+
+	private static final int MOVE_VECTOR = 0;
+	private static final int MOVE_ANGLE = 1;
+	private static final int MOVE_TOWARDS = 2;
+	private static final int ROTATE = 3;
+	private static final int STOP = 4;
+	private static final int KICK = 5;
+
+	private final double maxSpeed;
+	private final double maxAcceleration;
+	private final double maxAngularSpeed;
+	private final long latencyNanos;
+	private Clock clock = Clock.system();
+
+	private double x;
+	private double y;
+	private double bearing;
+	private double vx = 0;
+	private double vy = 0;
+	/** The clock time the motion has been worked out up to */
+	private long now;
+
+	/** What the robot is currently doing: STOP, MOVE_VECTOR or MOVE_TOWARDS */
+	private int activity = STOP;
+	/** Speeds right and forward when moving, or the point heading for */
+	private double commandA = 0;
+	private double commandB = 0;
+	/** Angle still to turn, clockwise */
+	private double turnLeft = 0;
+
+	/** Commands waiting out the latency, oldest first */
+	private final long[] pendingAt = new long[PENDING_CAPACITY];
+	private final int[] pendingType = new int[PENDING_CAPACITY];
+	private final double[] pendingA = new double[PENDING_CAPACITY];
+	private final double[] pendingB = new double[PENDING_CAPACITY];
+	private int pendingHead = 0;
+	private int pendingSize = 0;
+
+	private long commands = 0;
+	private long kicks = 0;
+
+	/**
+	 * Creates a robot with the default limits
+	 *
+	 * @param x
+	 * @param y
+	 * @param bearing
+	 *            Clockwise bearing in radians
+	 */
+	public SimulatedRobot(double x, double y, double bearing) {
+		this(x, y, bearing, DEFAULT_MAX_SPEED, DEFAULT_MAX_ACCELERATION,
+				DEFAULT_MAX_ANGULAR_SPEED, DEFAULT_LATENCY);
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param bearing
+	 *            Clockwise bearing in radians
+	 * @param maxSpeed
+	 *            Top speed, in video feed units per second
+	 * @param maxAcceleration
+	 *            Top acceleration, in video feed units per second squared
+	 * @param maxAngularSpeed
+	 *            Top turning rate, in radians per second
+	 * @param latencyMillis
+	 *            Delay before a command takes effect, in milliseconds
+	 */
+	public SimulatedRobot(double x, double y, double bearing, double maxSpeed,
+			double maxAcceleration, double maxAngularSpeed, long latencyMillis) {
+		if (maxSpeed <= 0 || maxAcceleration <= 0 || maxAngularSpeed <= 0
+				|| latencyMillis < 0)
+			throw new IllegalArgumentException("Limits must be positive");
+		this.x = x;
+		this.y = y;
+		this.bearing = bearing;
+		this.maxSpeed = maxSpeed;
+		this.maxAcceleration = maxAcceleration;
+		this.maxAngularSpeed = maxAngularSpeed;
+		this.latencyNanos = latencyMillis * 1000000L;
+		now = clock.nanoTime();
+	}
+
+	/**
+	 * Sets the clock the robot moves in time with, carrying on from where it
+	 * is now. Commands still waiting out the latency wait out the rest of it
+	 * on the new clock.
+	 *
+	 * @param clock
+	 *            The new clock
+	 */
+	public synchronized void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock must not be null");
+		advance(this.clock.nanoTime());
+		long shift = clock.nanoTime() - now;
+		for (int i = 0; i < pendingSize; ++i)
+			pendingAt[(pendingHead + i) % PENDING_CAPACITY] += shift;
+		now += shift;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return The clock the robot moves in time with
+	 */
+	public synchronized Clock getClock() {
+		return clock;
+	}
+
+	@Override
+	public void move(double speedX, double speedY) {
+		command(MOVE_VECTOR, speedX, speedY);
+	}
+
+	@Override
+	public void move(double angle) {
+		command(MOVE_ANGLE, angle, 0);
+	}
+
+	@Override
+	public void moveTowards(double x, double y) {
+		command(MOVE_TOWARDS, x, y);
+	}
+
+	@Override
+	public long rotate(double angleRad) {
+		command(ROTATE, angleRad, 0);
+		double seconds = Math.abs(angleRad) / maxAngularSpeed;
+		return (long) Math.ceil(seconds * 1000) + latencyNanos / 1000000L;
+	}
+
+	@Override
+	public void stop() {
+		command(STOP, 0, 0);
+	}
+
+	@Override
+	public void kick() {
+		command(KICK, 0, 0);
+	}
+
+	/**
+	 * Queues a command to take effect once the latency has passed
+	 */
+	private synchronized void command(int type, double a, double b) {
+		long at = clock.nanoTime();
+		advance(at);
+		++commands;
+		if (pendingSize == PENDING_CAPACITY) {
+			// Commands are arriving faster than the link delivers them; the
+			// oldest takes effect early rather than being lost
+			apply(pendingType[pendingHead], pendingA[pendingHead],
+					pendingB[pendingHead]);
+			pendingHead = (pendingHead + 1) % PENDING_CAPACITY;
+			--pendingSize;
+		}
+		int tail = (pendingHead + pendingSize) % PENDING_CAPACITY;
+		pendingAt[tail] = at + latencyNanos;
+		pendingType[tail] = type;
+		pendingA[tail] = a;
+		pendingB[tail] = b;
+		++pendingSize;
+		if (latencyNanos == 0)
+			advance(at);
+	}
+
+	/**
+	 * Works out the robot's motion up to a point in time, applying the
+	 * commands that have taken effect by then
+	 *
+	 * @param to
+	 *            The clock time to work out the motion up to
+	 */
+	private void advance(long to) {
+		while (pendingSize > 0 && pendingAt[pendingHead] - to <= 0) {
+			integrate(pendingAt[pendingHead]);
+			apply(pendingType[pendingHead], pendingA[pendingHead],
+					pendingB[pendingHead]);
+			pendingHead = (pendingHead + 1) % PENDING_CAPACITY;
+			--pendingSize;
+		}
+		integrate(to);
+	}
+
+	private void apply(int type, double a, double b) {
+		switch (type) {
+		case MOVE_VECTOR:
+			activity = MOVE_VECTOR;
+			commandA = clamp(a, 100) / 100 * maxSpeed;
+			commandB = clamp(b, 100) / 100 * maxSpeed;
+			double speed = Math.sqrt(commandA * commandA + commandB * commandB);
+			if (speed > maxSpeed) {
+				commandA *= maxSpeed / speed;
+				commandB *= maxSpeed / speed;
+			}
+			break;
+		case MOVE_ANGLE:
+			activity = MOVE_VECTOR;
+			commandA = Math.sin(a) * maxSpeed;
+			commandB = Math.cos(a) * maxSpeed;
+			break;
+		case MOVE_TOWARDS:
+			activity = MOVE_TOWARDS;
+			commandA = a;
+			commandB = b;
+			break;
+		case ROTATE:
+			turnLeft += a;
+			break;
+		case STOP:
+			activity = STOP;
+			turnLeft = 0;
+			break;
+		case KICK:
+			++kicks;
+			break;
+		}
+	}
+
+	private static double clamp(double value, double limit) {
+		return Math.max(-limit, Math.min(limit, value));
+	}
+
+	/**
+	 * Moves the robot on to a point in time, in steps short enough to keep
+	 * the motion smooth
+	 */
+	private void integrate(long to) {
+		while (to - now > 0) {
+			long step = Math.min(to - now, STEP_NANOS);
+			step(step / 1e9);
+			now += step;
+		}
+	}
+
+	private void step(double dt) {
+		double sin = Math.sin(bearing), cos = Math.cos(bearing);
+		double wantX = 0, wantY = 0;
+		if (activity == MOVE_VECTOR) {
+			// commandA is to the right, commandB forward
+			wantX = commandB * cos - commandA * sin;
+			wantY = commandB * sin + commandA * cos;
+		} else if (activity == MOVE_TOWARDS) {
+			double dx = commandA - x, dy = commandB - y;
+			double distance = Math.sqrt(dx * dx + dy * dy);
+			if (distance > TARGET_MARGIN) {
+				// The fastest speed we can still stop from in time
+				double speed = Math.min(maxSpeed,
+						Math.sqrt(2 * maxAcceleration * distance));
+				wantX = dx / distance * speed;
+				wantY = dy / distance * speed;
+			}
+		}
+		double dvx = wantX - vx, dvy = wantY - vy;
+		double change = Math.sqrt(dvx * dvx + dvy * dvy);
+		double most = maxAcceleration * dt;
+		if (change > most) {
+			dvx *= most / change;
+			dvy *= most / change;
+		}
+		vx += dvx;
+		vy += dvy;
+		x += vx * dt;
+		y += vy * dt;
+
+		double turn = clamp(turnLeft, maxAngularSpeed * dt);
+		bearing += turn;
+		turnLeft -= turn;
+	}
+
+	/**
+	 * @return Where the robot is now
+	 */
+	public synchronized WorldModel.Position getPosition() {
+		long at = clock.nanoTime();
+		advance(at);
+		return new WorldModel.Position(x, y, bearing, at);
+	}
+
+	/**
+	 * @return How fast the robot is moving now, in video feed units per second
+	 */
+	public synchronized double getSpeed() {
+		advance(clock.nanoTime());
+		return Math.sqrt(vx * vx + vy * vy);
+	}
+
+	/**
+	 * @return The number of commands the robot has been given
+	 */
+	public synchronized long getCommandCount() {
+		return commands;
+	}
+
+	/**
+	 * @return The number of kicks that have taken effect
+	 */
+	public synchronized long getKickCount() {
+		advance(clock.nanoTime());
+		return kicks;
+	}
+
+	/**
+	 * Reports the robot's position to a world model
+	 *
+	 * @param world
+	 *            The world model to update
+	 */
+	public void report(WorldModel world) {
+		WorldModel.Position at = getPosition();
+		world.setOurPosition(at.x, at.y, at.bearing);
+	}
+
+	/**
+	 * Reports the robot's position to a world model at a fixed rate, as
+	 * vision would, on a thread of its own paced by the robot's clock. The
+	 * thread is registered with the clock, so with a
+	 * {@link safesleep.VirtualClock} it must be cancelled once the scenario
+	 * is over, or time will go on ticking for it alone.
+	 *
+	 * @param world
+	 *            The world model to update
+	 * @param periodMillis
+	 *            Time between reports, in milliseconds
+	 * @return The running vision, which can be cancelled to stop the reports
+	 */
+	public Vision startVision(WorldModel world, long periodMillis) {
+		report(world);
+		Vision vision = new Vision(world, periodMillis, getClock());
+		vision.start();
+		return vision;
+	}
+
+	/**
+	 * Reports a robot's position to a world model at a fixed rate
+	 */
+	public class Vision extends Thread {
+		private final WorldModel world;
+		private final FixedRateTicker ticker;
+		private final Clock clock;
+		private volatile boolean cancelled = false;
+
+		private Vision(WorldModel world, long periodMillis, Clock clock) {
+			super("robot-vision");
+			setDaemon(true);
+			this.world = world;
+			this.clock = clock;
+			ticker = FixedRateTicker.ofMillis(periodMillis,
+					FixedRateTicker.OverrunPolicy.SKIP);
+			ticker.setClock(clock);
+		}
+
+		@Override
+		public synchronized void start() {
+			// Before starting, so time can't move on before the first tick
+			clock.register(this);
+			super.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!cancelled) {
+					ticker.awaitTick();
+					if (!cancelled)
+						report(world);
+				}
+			} catch (InterruptedException e) {
+				// Cancelled
+			} finally {
+				clock.deregister(this);
+			}
+		}
+
+		/**
+		 * Stops the reports. The last one may still be under way.
+		 */
+		public void cancel() {
+			cancelled = true;
+			interrupt();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package mcdbg;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a mover closed loop against a {@link SimulatedRobot} and reports how
+ * many commands per second it gets through and how long its movements take
+ * to reach their targets. <br/>
+ * Usage: SimulationBenchmark [commands] [trials]
+ */
+public class SimulationBenchmark {
+	private static final int DEFAULT_COMMANDS = 200000;
+	private static final int DEFAULT_TRIALS = 30;
+	/** Vision frame period, in milliseconds */
+	private static final long VISION_PERIOD = 20;
+	/** How far inside the pitch edges targets are chosen */
+	private static final double EDGE_MARGIN = 40;
+	/** Distance from a target within which a movement counts as arriving */
+	private static final double ARRIVED = 15;
+
+	public static void main(String[] args) throws InterruptedException {
+		int commands = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_COMMANDS;
+		int trials = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_TRIALS;
+		MoverLog log = MoverLog.silent();
+
+		throughput(log, commands);
+		timeToTarget(log, trials, "moveToAndStop", false, false);
+		timeToTarget(log, trials, "moveToAStar", true, false);
+		timeToTarget(log, trials, "moveToAStar replanning", true, true);
+	}
+
+	/**
+	 * Pushes simple commands through a mover to a simulated robot as fast as
+	 * they can be queued
+	 */
+	private static void throughput(MoverLog log, int commands)
+			throws InterruptedException {
+		Mover mover = new Mover();
+		mover.setLog(log);
+		SimulatedRobot robot = new SimulatedRobot(320, 240, 0);
+		mover.setActuator(robot);
+		mover.start();
+
+		int retries = 0;
+		long before = System.nanoTime();
+		for (int i = 0; i < commands; ++i) {
+			double a = i % 200 - 100;
+			while ((i % 2 == 0 ? mover.move(a, -a) : mover.moveTowards(
+					320 + a, 240 - a)) == Mover.REJECTED) {
+				// The queue was full, so let the mover catch up
+				++retries;
+				Thread.yield();
+			}
+		}
+		mover.waitForAll();
+		long elapsed = System.nanoTime() - before;
+		mover.kill();
+		mover.awaitTermination();
+
+		System.out.println("Throughput: " + commands + " commands in "
+				+ (elapsed / 1000000) + " ms, "
+				+ (long) (commands / (elapsed / 1e9)) + " per second ("
+				+ robot.getCommandCount() + " reached the robot, " + retries
+				+ " retries on a full queue)");
+		System.out.println();
+	}
+
+	/**
+	 * Sends a simulated robot to random points of the pitch, one after the
+	 * other, timing each movement from being queued to finishing
+	 */
+	private static void timeToTarget(MoverLog log, int trials, String name,
+			boolean aStar, boolean replanning) throws InterruptedException {
+		Mover mover = new Mover();
+		mover.setLog(log);
+		mover.setReplanning(replanning);
+		SimulatedRobot robot = new SimulatedRobot(320, 240, 0);
+		mover.setActuator(robot);
+		WorldModel world = mover.getWorld();
+		SimulatedRobot.Vision vision = robot.startVision(world, VISION_PERIOD);
+		// Something in the middle of the pitch to get round
+		world.setBallPosition(320, 240);
+		mover.start();
+
+		Random random = new Random(42);
+		LatencyHistogram times = new LatencyHistogram(
+				TimeUnit.MINUTES.toNanos(1));
+		int arrived = 0;
+		double worstMiss = 0;
+		for (int i = 0; i < trials; ++i) {
+			double x = EDGE_MARGIN + random.nextDouble()
+					* (PitchGrid.DEFAULT_WIDTH - 2 * EDGE_MARGIN);
+			double y = EDGE_MARGIN + random.nextDouble()
+					* (PitchGrid.DEFAULT_HEIGHT - 2 * EDGE_MARGIN);
+			long before = System.nanoTime();
+			long ticket = aStar ? mover.moveToAStar(x, y, true, false) : mover
+					.moveToAndStop(x, y);
+			mover.waitUntil(ticket);
+			times.record(System.nanoTime() - before);
+			if (aStar)
+				mover.waitUntil(mover.stopRobot());
+			// Let the robot settle before judging where it ended up
+			Thread.sleep(SimulatedRobot.DEFAULT_LATENCY + VISION_PERIOD);
+			double miss = robot.getPosition().distanceTo(x, y);
+			if (miss <= ARRIVED)
+				++arrived;
+			worstMiss = Math.max(worstMiss, miss);
+		}
+		vision.cancel();
+		mover.kill();
+		mover.awaitTermination();
+
+		System.out.println("Time to target, " + name + ": " + arrived + "/"
+				+ trials + " arrived, worst miss "
+				+ String.format("%.1f", worstMiss));
+		System.out.println("  ns: " + times.snapshot());
+		System.out.println();
+	}
+}
@@ -0,0 +1,113 @@
+package mcdbg;
+
+/**
+ * A moveToAStar path planned ahead of time on a pool thread, while the mover
+ * is still busy with the movements queued before it. <br/>
+ * The path is planned from where the movements before it are expected to
+ * leave the robot, around the obstacles as they were when the movement was
+ * queued. The mover only uses it if both are still close enough to the truth
+ * when the movement starts, and otherwise plans afresh as usual.
+ *
+ * @see Mover#setLookahead(java.util.concurrent.ForkJoinPool)
+ */
+class SpeculativePlan implements Runnable {
+	/** Each pool thread plans on its own grid */
+	private static final ThreadLocal<AStarPlanner> PLANNERS = new ThreadLocal<AStarPlanner>() {
+		@Override
+		protected AStarPlanner initialValue() {
+			return new AStarPlanner(Mover.newPlanningGrid());
+		}
+	};
+
+	final double startX;
+	final double startY;
+	final double goalX;
+	final double goalY;
+	/** The obstacles planned around, or null if they weren't */
+	final WorldModel.Position ball;
+	final WorldModel.Position enemy;
+	/** Only read once done is set */
+	final Path path = new Path();
+	private boolean found = false;
+
+	private volatile boolean done = false;
+	private volatile boolean abandoned = false;
+
+	/**
+	 * @param ball
+	 *            The ball to plan around, or null to ignore it
+	 * @param enemy
+	 *            The enemy robot to plan around, or null to ignore it
+	 */
+	SpeculativePlan(double startX, double startY, double goalX, double goalY,
+			WorldModel.Position ball, WorldModel.Position enemy) {
+		this.startX = startX;
+		this.startY = startY;
+		this.goalX = goalX;
+		this.goalY = goalY;
+		this.ball = ball;
+		this.enemy = enemy;
+	}
+
+	@Override
+	public void run() {
+		if (abandoned)
+			return;
+		AStarPlanner planner = PLANNERS.get();
+		Mover.placeObstacles(planner.getGrid(), ball, enemy);
+		found = planner.plan(startX, startY, goalX, goalY, path);
+		done = true;
+	}
+
+	/**
+	 * Tells the plan it won't be needed, so it isn't worked out if it hasn't
+	 * been already
+	 */
+	void abandon() {
+		abandoned = true;
+	}
+
+	/**
+	 * @return true once the path has been worked out
+	 */
+	boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return true if a path was found. Only valid once done.
+	 */
+	boolean isFound() {
+		return found;
+	}
+
+	/**
+	 * Checks whether the plan still fits the world closely enough to be used
+	 *
+	 * @param us
+	 *            Where the robot is now
+	 * @param ball
+	 *            Where the ball is now, or null if it isn't being avoided
+	 * @param enemy
+	 *            Where the enemy is now, or null if it isn't being avoided
+	 * @param startTolerance
+	 *            How far the robot may be from where the plan starts
+	 * @param obstacleTolerance
+	 *            How far each obstacle may have moved since the plan was made
+	 * @return true if the plan can be used
+	 */
+	boolean fits(WorldModel.Position us, WorldModel.Position ball,
+			WorldModel.Position enemy, double startTolerance,
+			double obstacleTolerance) {
+		return us.distanceTo(startX, startY) <= startTolerance
+				&& close(this.ball, ball, obstacleTolerance)
+				&& close(this.enemy, enemy, obstacleTolerance);
+	}
+
+	private static boolean close(WorldModel.Position planned,
+			WorldModel.Position now, double tolerance) {
+		if (planned == null || now == null)
+			return planned == now;
+		return now.distanceTo(planned.x, planned.y) <= tolerance;
+	}
+}
@@ -0,0 +1,347 @@
+package mcdbg;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import safesleep.Clock;
+
+/**
+ * Hands out tickets for queued movements and records how each one finished,
+ * so any number of threads can wait on specific movements. <br/>
+ * Tickets are plain longs so that queueing a movement allocates nothing.
+ * Outcomes are kept in a ring of recent tickets; the ring is made several
+ * times larger than the movement queue, and a new ticket is held back until
+ * the ticket a whole ring before it has finished, so a ticket's slot cannot
+ * be reused while it is still pending. A low watermark (every ticket up to it
+ * is done) covers tickets that have fallen out of the ring. <br/>
+ * Cancellation works the same way: a second ring records the ticket last
+ * asked to be cancelled in each slot, and a watermark covers every ticket up
+ * to a point, so asking whether a ticket is cancelled is two volatile reads.
+ * <br/>
+ * Waiting threads park on the tracker's clock, so they can wait in virtual
+ * time along with the mover. They take a slot in a fixed table to be woken
+ * from, so waiting allocates nothing; beyond the table's size, the extra
+ * waiters poll instead.
+ */
+class TicketTracker {
+	private final int mask;
+	/** The ticket last recorded in each slot */
+	private final AtomicLongArray doneTickets;
+	/** The ordinal of the outcome of the ticket in each slot */
+	private final AtomicIntegerArray outcomes;
+	/** The ticket last asked to be cancelled in each slot */
+	private final AtomicLongArray cancelledTickets;
+
+	private final AtomicLong nextTicket = new AtomicLong(1);
+	/** Every ticket up to and including this one is done */
+	private final AtomicLong doneThrough = new AtomicLong(0);
+	/** Every ticket up to and including this one is to be cancelled */
+	private final AtomicLong cancelledThrough = new AtomicLong(0);
+
+	/** Threads waiting on tickets, woken whenever a ticket finishes */
+	private final AtomicReferenceArray<Thread> waiters = new AtomicReferenceArray<Thread>(
+			WAITER_SLOTS);
+	private final AtomicInteger waiterCount = new AtomicInteger(0);
+	private volatile Clock clock = Clock.system();
+
+	private static final MoveOutcome[] OUTCOMES = MoveOutcome.values();
+	/** Most threads that can be woken when a ticket finishes */
+	private static final int WAITER_SLOTS = 64;
+	/** How often waiters that didn't get a slot check their ticket */
+	private static final long WAITER_POLL_NANOS = 1000000;
+
+	/**
+	 * @param queueCapacity
+	 *            The capacity of the queue the tickets are issued for
+	 */
+	public TicketTracker(int queueCapacity) {
+		int size = Integer.highestOneBit(Math.max(queueCapacity, 256) * 4 - 1) << 1;
+		mask = size - 1;
+		doneTickets = new AtomicLongArray(size);
+		outcomes = new AtomicIntegerArray(size);
+		cancelledTickets = new AtomicLongArray(size);
+	}
+
+	/**
+	 * Sets the clock waits are timed by and park on
+	 *
+	 * @param clock
+	 *            The new clock
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * @return A new ticket
+	 */
+	public long issue() {
+		long ticket = nextTicket.getAndIncrement();
+		awaitSlot(ticket);
+		return ticket;
+	}
+
+	/**
+	 * Issues a contiguous run of tickets
+	 *
+	 * @param count
+	 *            The number of tickets to issue, no more than the ring holds
+	 * @return The first ticket of the run
+	 * @throws IllegalArgumentException
+	 *             If the run is longer than the ring, as its last ticket
+	 *             would then wait on its own first one forever
+	 */
+	public long issue(int count) {
+		if (count > mask + 1)
+			throw new IllegalArgumentException("Cannot issue " + count
+					+ " tickets at once from a ring of " + (mask + 1));
+		long first = nextTicket.getAndAdd(count);
+		awaitSlot(first + count - 1);
+		return first;
+	}
+
+	/**
+	 * Waits until the ticket a whole ring before a new one has finished. <br/>
+	 * This only ever waits if a thread holding an old ticket has been
+	 * descheduled between queueing and finishing it for long enough that the
+	 * rest of the ring has been issued and finished behind its back, which
+	 * would otherwise leave the watermark stuck behind it for good. Every
+	 * ticket issued must therefore be finished, however queueing it ends.
+	 *
+	 * @param ticket
+	 *            The new ticket
+	 */
+	private void awaitSlot(long ticket) {
+		long lapped = ticket - (mask + 1);
+		while (lapped > doneThrough.get())
+			Thread.yield();
+	}
+
+	/**
+	 * @return The most recently issued ticket
+	 */
+	public long lastIssued() {
+		return nextTicket.get() - 1;
+	}
+
+	/**
+	 * Records the outcome of a ticket and wakes any threads waiting on it
+	 *
+	 * @param ticket
+	 *            The ticket that has finished
+	 * @param outcome
+	 *            How it finished
+	 */
+	public void complete(long ticket, MoveOutcome outcome) {
+		assert (outcome != MoveOutcome.PENDING) : "Completing a ticket as pending";
+		int idx = (int) (ticket & mask);
+		outcomes.set(idx, outcome.ordinal());
+		doneTickets.set(idx, ticket);
+		advanceWatermark();
+		if (waiterCount.get() > 0) {
+			Clock clock = this.clock;
+			for (int i = 0; i < WAITER_SLOTS; ++i) {
+				Thread waiter = waiters.get(i);
+				if (waiter != null)
+					clock.unpark(waiter);
+			}
+		}
+	}
+
+	/**
+	 * Moves the low watermark past every consecutive finished ticket. Every
+	 * thread that completes a ticket calls this, so the last one to finish a
+	 * run of tickets always carries the watermark past it.
+	 */
+	private void advanceWatermark() {
+		while (true) {
+			long through = doneThrough.get();
+			long next = through + 1;
+			if (doneTickets.get((int) (next & mask)) != next)
+				return;
+			doneThrough.compareAndSet(through, next);
+		}
+	}
+
+	/**
+	 * @param ticket
+	 *            The ticket to check
+	 * @return true if the ticket has finished
+	 */
+	public boolean isDone(long ticket) {
+		return ticket <= doneThrough.get()
+				|| doneTickets.get((int) (ticket & mask)) == ticket;
+	}
+
+	/**
+	 * @param ticket
+	 *            The ticket to check
+	 * @return The outcome of the ticket
+	 */
+	public MoveOutcome outcomeOf(long ticket) {
+		if (ticket <= 0 || ticket > lastIssued())
+			return MoveOutcome.UNKNOWN;
+		int idx = (int) (ticket & mask);
+		if (doneTickets.get(idx) == ticket) {
+			MoveOutcome outcome = OUTCOMES[outcomes.get(idx)];
+			// Make sure the slot wasn't reused while we read the outcome
+			if (doneTickets.get(idx) == ticket)
+				return outcome;
+		}
+		if (ticket <= doneThrough.get())
+			return MoveOutcome.UNKNOWN;
+		return MoveOutcome.PENDING;
+	}
+
+	/**
+	 * Asks for a ticket to be cancelled
+	 *
+	 * @param ticket
+	 *            The ticket to cancel
+	 * @return true if the ticket has been issued and hasn't finished yet
+	 */
+	public boolean cancel(long ticket) {
+		if (ticket <= 0 || ticket > lastIssued() || isDone(ticket))
+			return false;
+		// Pending tickets never share a slot, so this can't overwrite a
+		// request for another ticket that still matters
+		cancelledTickets.set((int) (ticket & mask), ticket);
+		return true;
+	}
+
+	/**
+	 * Asks for every ticket up to and including the given one to be
+	 * cancelled
+	 *
+	 * @param ticket
+	 *            The last ticket to cancel
+	 */
+	public void cancelThrough(long ticket) {
+		long through;
+		while ((through = cancelledThrough.get()) < ticket) {
+			if (cancelledThrough.compareAndSet(through, ticket))
+				return;
+		}
+	}
+
+	/**
+	 * @param ticket
+	 *            The ticket to check
+	 * @return true if the ticket has been asked to be cancelled
+	 */
+	public boolean isCancelled(long ticket) {
+		return ticket > 0
+				&& (ticket <= cancelledThrough.get() || cancelledTickets
+						.get((int) (ticket & mask)) == ticket);
+	}
+
+	/**
+	 * Blocks until a ticket has finished
+	 *
+	 * @param ticket
+	 *            The ticket to wait on
+	 * @param timeoutMillis
+	 *            The maximum time to wait, or 0 to wait indefinitely
+	 * @return true if the ticket finished, false if the wait timed out
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public boolean await(long ticket, long timeoutMillis)
+			throws InterruptedException {
+		if (isDone(ticket))
+			return true;
+		Clock clock = this.clock;
+		long deadline = clock.nanoTime() + timeoutMillis * 1000000L;
+		int slot = addWaiter();
+		try {
+			while (!isDone(ticket)) {
+				if (timeoutMillis != 0 && deadline - clock.nanoTime() <= 0)
+					return false;
+				park(clock, slot, timeoutMillis == 0, deadline);
+			}
+		} finally {
+			removeWaiter(slot);
+		}
+		return true;
+	}
+
+	/**
+	 * Blocks until every ticket up to and including the given one has finished
+	 *
+	 * @param ticket
+	 *            The last ticket to wait on
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	public void awaitThrough(long ticket) throws InterruptedException {
+		if (ticket <= doneThrough.get())
+			return;
+		Clock clock = this.clock;
+		int slot = addWaiter();
+		try {
+			while (ticket > doneThrough.get())
+				park(clock, slot, true, 0);
+		} finally {
+			removeWaiter(slot);
+		}
+	}
+
+	/**
+	 * Takes a slot for the calling thread to be woken from. Taken before
+	 * checking the ticket again, so a completion in between is either seen
+	 * by the check or wakes the thread.
+	 *
+	 * @return The slot taken, or -1 if every slot is taken
+	 */
+	private int addWaiter() {
+		Thread current = Thread.currentThread();
+		for (int i = 0; i < WAITER_SLOTS; ++i) {
+			if (waiters.get(i) == null
+					&& waiters.compareAndSet(i, null, current)) {
+				waiterCount.incrementAndGet();
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Gives up a slot taken by {@link #addWaiter()}
+	 */
+	private void removeWaiter(int slot) {
+		if (slot < 0)
+			return;
+		waiters.set(slot, null);
+		waiterCount.decrementAndGet();
+	}
+
+	/**
+	 * Parks a waiting thread until it may be woken by a ticket finishing
+	 *
+	 * @param slot
+	 *            The slot the thread took, or -1 if it got none and must poll
+	 * @param indefinitely
+	 *            true if the wait has no deadline
+	 * @param deadline
+	 *            The clock time at which the wait gives up
+	 * @throws InterruptedException
+	 *             If the waiting thread is interrupted
+	 */
+	private void park(Clock clock, int slot, boolean indefinitely,
+			long deadline) throws InterruptedException {
+		if (slot < 0) {
+			long poll = clock.nanoTime() + WAITER_POLL_NANOS;
+			clock.parkUntil(this, indefinitely || poll - deadline < 0 ? poll
+					: deadline);
+		} else if (indefinitely) {
+			clock.park(this);
+		} else {
+			clock.parkUntil(this, deadline);
+		}
+		if (Thread.interrupted())
+			throw new InterruptedException();
+	}
+}
@@ -0,0 +1,117 @@
+package mcdbg;
+
+import safesleep.Clock;
+
+/**
+ * The latest known positions of our robot, the ball and the enemy robot, in
+ * video feed coordinates. <br/>
+ * Vision updates the model from its own thread and the mover reads it while
+ * running movements. Each position is published as a whole, so a reader never
+ * sees the x of one update with the y of another. Positions are stamped with
+ * the time on the model's {@link #setClock(Clock) clock}.
+ */
+public class WorldModel {
+	/** An immutable position, with a bearing for robots */
+	public static final class Position {
+		public final double x;
+		public final double y;
+		/** Clockwise bearing in radians; 0 for the ball */
+		public final double bearing;
+		/** {@link Clock#nanoTime()} at which the position was observed */
+		public final long observedAt;
+
+		public Position(double x, double y, double bearing, long observedAt) {
+			this.x = x;
+			this.y = y;
+			this.bearing = bearing;
+			this.observedAt = observedAt;
+		}
+
+		/**
+		 * @return The straight line distance from this position to a point
+		 */
+		public double distanceTo(double x, double y) {
+			double dx = x - this.x, dy = y - this.y;
+			return Math.sqrt(dx * dx + dy * dy);
+		}
+	}
+
+	private volatile Position us = null;
+	private volatile Position ball = null;
+	private volatile Position enemy = null;
+	private volatile Clock clock = Clock.system();
+
+	/**
+	 * Sets the clock positions are stamped by from now on
+	 *
+	 * @param clock
+	 *            The new clock
+	 */
+	public void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock must not be null");
+		this.clock = clock;
+	}
+
+	/**
+	 * @return The clock positions are stamped by
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Records where our robot is
+	 *
+	 * @param x
+	 * @param y
+	 * @param bearing
+	 *            Clockwise bearing in radians
+	 */
+	public void setOurPosition(double x, double y, double bearing) {
+		us = new Position(x, y, bearing, clock.nanoTime());
+	}
+
+	/**
+	 * Records where the ball is
+	 *
+	 * @param x
+	 * @param y
+	 */
+	public void setBallPosition(double x, double y) {
+		ball = new Position(x, y, 0, clock.nanoTime());
+	}
+
+	/**
+	 * Records where the enemy robot is
+	 *
+	 * @param x
+	 * @param y
+	 * @param bearing
+	 *            Clockwise bearing in radians
+	 */
+	public void setEnemyPosition(double x, double y, double bearing) {
+		enemy = new Position(x, y, bearing, clock.nanoTime());
+	}
+
+	/**
+	 * @return Where our robot is, or null if it hasn't been seen
+	 */
+	public Position getOurPosition() {
+		return us;
+	}
+
+	/**
+	 * @return Where the ball is, or null if it hasn't been seen
+	 */
+	public Position getBallPosition() {
+		return ball;
+	}
+
+	/**
+	 * @return Where the enemy robot is, or null if it hasn't been seen
+	 */
+	public Position getEnemyPosition() {
+		return enemy;
+	}
+}
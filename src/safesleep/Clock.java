@@ -0,0 +1,132 @@
+package safesleep;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A source of time, and a way for threads to wait on it. <br/>
+ * Code that reads the time and parks through a clock, rather than calling
+ * System.nanoTime() and LockSupport directly, can be run against a
+ * {@link VirtualClock} as well as the real one, so a scenario that takes
+ * minutes of real time runs in the time its computation takes. <br/>
+ * The methods mirror LockSupport's: parks may return spuriously, and an
+ * unpark before a park makes the park return at once. A thread woken by
+ * another must be woken with {@link #unpark(Thread)} on the same clock, so a
+ * virtual clock knows it is running again.
+ */
+public abstract class Clock {
+	private static final Clock SYSTEM = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public void parkUntil(Object blocker, long deadlineNanos) {
+			long remaining = deadlineNanos - System.nanoTime();
+			if (remaining > 0)
+				LockSupport.parkNanos(blocker, remaining);
+		}
+
+		@Override
+		public void park(Object blocker) {
+			LockSupport.park(blocker);
+		}
+
+		@Override
+		public void unpark(Thread thread) {
+			LockSupport.unpark(thread);
+		}
+
+		@Override
+		public String toString() {
+			return "system clock";
+		}
+	};
+
+	/**
+	 * @return The real clock, backed by System.nanoTime() and LockSupport
+	 */
+	public static Clock system() {
+		return SYSTEM;
+	}
+
+	/**
+	 * @return The current time in nanoseconds, only meaningful relative to
+	 *         other times from the same clock, like System.nanoTime()
+	 */
+	public abstract long nanoTime();
+
+	/**
+	 * @return The current time in milliseconds, relative to the same origin
+	 *         as {@link #nanoTime()}
+	 */
+	public long millis() {
+		return nanoTime() / 1000000L;
+	}
+
+	/**
+	 * Parks the calling thread until a point in time, an unpark or an
+	 * interrupt, or for no reason at all
+	 *
+	 * @param blocker
+	 *            The object the thread is waiting on, for thread dumps
+	 * @param deadlineNanos
+	 *            The {@link #nanoTime()} to park until
+	 */
+	public abstract void parkUntil(Object blocker, long deadlineNanos);
+
+	/**
+	 * Parks the calling thread until an unpark or an interrupt, or for no
+	 * reason at all
+	 *
+	 * @param blocker
+	 *            The object the thread is waiting on, for thread dumps
+	 */
+	public abstract void park(Object blocker);
+
+	/**
+	 * Wakes a thread parked on this clock, or makes its next park return at
+	 * once if it isn't parked
+	 *
+	 * @param thread
+	 *            The thread to wake
+	 */
+	public abstract void unpark(Thread thread);
+
+	/**
+	 * Sleeps until a point in time. Spurious wake-ups just park again.
+	 *
+	 * @param deadlineNanos
+	 *            The {@link #nanoTime()} to sleep until
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public void sleepUntil(long deadlineNanos) throws InterruptedException {
+		while (deadlineNanos - nanoTime() > 0) {
+			parkUntil(this, deadlineNanos);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Makes a thread one of those the clock waits for before moving time on.
+	 * Only a virtual clock cares; the real one moves on regardless. A thread
+	 * can be registered before it is started, so time can't move on before
+	 * it gets going.
+	 *
+	 * @param thread
+	 *            The thread to wait for
+	 */
+	public void register(Thread thread) {
+	}
+
+	/**
+	 * Stops the clock waiting for a thread before moving time on
+	 *
+	 * @param thread
+	 *            The thread to stop waiting for
+	 */
+	public void deregister(Thread thread) {
+	}
+}
@@ -0,0 +1,233 @@
+package safesleep;
+
+/**
+ * Paces a control loop at a fixed rate. <br/>
+ * Tick deadlines are absolute {@link Clock#nanoTime()} values, each one
+ * period after the last, so the time spent working between ticks and any
+ * oversleep do not push back later ticks the way sleeping for a fixed period
+ * does. The ticker keeps statistics on how late each tick was and on
+ * overruns, where a whole period passed without the loop getting round to a
+ * tick. <br/>
+ * A ticker is meant to be driven by a single thread. Its statistics may be
+ * read from any thread.
+ */
+public class FixedRateTicker {
+	/** What to do with the ticks missed after an overrun */
+	public enum OverrunPolicy {
+		/**
+		 * Drop the missed ticks, and carry on from the next deadline still in
+		 * the future
+		 */
+		SKIP,
+		/**
+		 * Fire the missed ticks back to back until the loop is back on
+		 * schedule
+		 */
+		CATCH_UP
+	};
+
+	private final long periodNanos;
+	private final OverrunPolicy policy;
+
+	private volatile Clock clock = Clock.system();
+	private long nextDeadline;
+
+	private volatile long ticks = 0;
+	private volatile long overruns = 0;
+	private volatile long skippedTicks = 0;
+	private volatile long totalLatenessNanos = 0;
+	private volatile double totalSquaredLateness = 0;
+	private volatile long maxLatenessNanos = 0;
+
+	/**
+	 * @param periodNanos
+	 *            The time between ticks, in nanoseconds
+	 * @param policy
+	 *            What to do with ticks missed after an overrun
+	 */
+	public FixedRateTicker(long periodNanos, OverrunPolicy policy) {
+		if (periodNanos <= 0)
+			throw new IllegalArgumentException("Tick period must be positive");
+		this.periodNanos = periodNanos;
+		this.policy = policy;
+		start();
+	}
+
+	/**
+	 * @param periodMillis
+	 *            The time between ticks, in milliseconds
+	 * @param policy
+	 *            What to do with ticks missed after an overrun
+	 * @return A new ticker
+	 */
+	public static FixedRateTicker ofMillis(long periodMillis,
+			OverrunPolicy policy) {
+		return new FixedRateTicker(periodMillis * 1000000L, policy);
+	}
+
+	/**
+	 * (Re)starts the schedule, so the next tick is due one period from now.
+	 * Statistics carry on accumulating.
+	 */
+	public void start() {
+		nextDeadline = clock.nanoTime() + periodNanos;
+	}
+
+	/**
+	 * Sets the clock the ticks are timed by, and restarts the schedule on it
+	 *
+	 * @param clock
+	 *            The new clock
+	 */
+	public void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock must not be null");
+		this.clock = clock;
+		start();
+	}
+
+	/**
+	 * @return The clock the ticks are timed by
+	 */
+	public Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return The {@link Clock#nanoTime()} at which the next tick is due
+	 */
+	public long getNextDeadline() {
+		return nextDeadline;
+	}
+
+	/**
+	 * Sleeps until the next tick is due, then records it
+	 *
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public void awaitTick() throws InterruptedException {
+		Clock clock = this.clock;
+		while (nextDeadline - clock.nanoTime() > 0) {
+			clock.parkUntil(this, nextDeadline);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+		tick();
+	}
+
+	/**
+	 * Records a tick taking place now, and moves the schedule on to the next
+	 * one. Call this after waiting for {@link #getNextDeadline()} by some other
+	 * means.
+	 */
+	public void tick() {
+		long now = clock.nanoTime();
+		long lateness = now - nextDeadline;
+		if (lateness < 0)
+			lateness = 0;
+		// Only the ticking thread writes the statistics
+		totalLatenessNanos += lateness;
+		totalSquaredLateness += (double) lateness * lateness;
+		if (lateness > maxLatenessNanos)
+			maxLatenessNanos = lateness;
+		ticks++;
+
+		nextDeadline += periodNanos;
+		if (now - nextDeadline >= 0) {
+			// A whole period went by without a tick
+			overruns++;
+			if (policy == OverrunPolicy.SKIP) {
+				long missed = (now - nextDeadline) / periodNanos + 1;
+				skippedTicks += missed;
+				nextDeadline += missed * periodNanos;
+			}
+		}
+	}
+
+	/**
+	 * Clears the statistics
+	 */
+	public void resetStatistics() {
+		ticks = 0;
+		overruns = 0;
+		skippedTicks = 0;
+		totalLatenessNanos = 0;
+		totalSquaredLateness = 0;
+		maxLatenessNanos = 0;
+	}
+
+	/**
+	 * @return The time between ticks, in nanoseconds
+	 */
+	public long getPeriodNanos() {
+		return periodNanos;
+	}
+
+	/**
+	 * @return What the ticker does with ticks missed after an overrun
+	 */
+	public OverrunPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return The number of ticks recorded
+	 */
+	public long getTicks() {
+		return ticks;
+	}
+
+	/**
+	 * @return The number of times a whole period passed without a tick
+	 */
+	public long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * @return The number of ticks dropped after overruns
+	 */
+	public long getSkippedTicks() {
+		return skippedTicks;
+	}
+
+	/**
+	 * @return The mean time, in nanoseconds, between a tick being due and it
+	 *         being recorded
+	 */
+	public long getMeanLatenessNanos() {
+		long n = ticks;
+		return n == 0 ? 0 : totalLatenessNanos / n;
+	}
+
+	/**
+	 * @return The longest time, in nanoseconds, between a tick being due and
+	 *         it being recorded
+	 */
+	public long getMaxLatenessNanos() {
+		return maxLatenessNanos;
+	}
+
+	/**
+	 * @return The standard deviation, in nanoseconds, of how late ticks were
+	 *         recorded
+	 */
+	public long getJitterNanos() {
+		long n = ticks;
+		if (n == 0)
+			return 0;
+		double mean = (double) totalLatenessNanos / n;
+		double variance = totalSquaredLateness / n - mean * mean;
+		return variance <= 0 ? 0 : (long) Math.sqrt(variance);
+	}
+
+	@Override
+	public String toString() {
+		return "ticks=" + getTicks() + " overruns=" + getOverruns()
+				+ " skipped=" + getSkippedTicks() + " meanLateness="
+				+ getMeanLatenessNanos() + "ns maxLateness="
+				+ getMaxLatenessNanos() + "ns jitter=" + getJitterNanos()
+				+ "ns";
+	}
+}
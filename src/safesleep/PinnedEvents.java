@@ -0,0 +1,75 @@
+package safesleep;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Counts the times virtual threads pin their carrier threads while blocking,
+ * from the JVM's own jdk.VirtualThreadPinned events, by streaming them from
+ * Flight Recorder. The package is built for Java 8, so the recording stream
+ * (Java 14 on) is reached by reflection.
+ */
+final class PinnedEvents {
+	private static final String EVENT = "jdk.VirtualThreadPinned";
+
+	private final Object stream;
+	private final AtomicLong count = new AtomicLong(0);
+
+	private PinnedEvents(Object stream) {
+		this.stream = stream;
+	}
+
+	/**
+	 * Starts counting pinning events, however briefly the carrier was pinned
+	 *
+	 * @return The counter, or null if the JVM has no virtual threads or no
+	 *         Flight Recorder to stream from
+	 */
+	static PinnedEvents start() {
+		if (!VirtualThreads.isAvailable())
+			return null;
+		try {
+			Class<?> type = Class.forName("jdk.jfr.consumer.RecordingStream");
+			Object stream = type.getConstructor().newInstance();
+			PinnedEvents events = new PinnedEvents(stream);
+			// By default only pinning of 20 ms or more is recorded
+			Object settings = type.getMethod("enable", String.class).invoke(
+					stream, EVENT);
+			Class.forName("jdk.jfr.EventSettings")
+					.getMethod("withThreshold", Duration.class)
+					.invoke(settings, Duration.ZERO);
+			final AtomicLong count = events.count;
+			type.getMethod("onEvent", String.class, Consumer.class).invoke(
+					stream, EVENT, new Consumer<Object>() {
+						@Override
+						public void accept(Object event) {
+							count.incrementAndGet();
+						}
+					});
+			type.getMethod("startAsync").invoke(stream);
+			return events;
+		} catch (Exception e) {
+			// Flight Recorder isn't there, or isn't allowed
+			return null;
+		}
+	}
+
+	/**
+	 * Stops counting, once every event recorded so far has been counted
+	 *
+	 * @return The number of pinning events
+	 */
+	long stop() {
+		try {
+			Class<?> type = stream.getClass();
+			// stop() waits for the events still in flight; close() doesn't
+			type.getMethod("stop").invoke(stream);
+			type.getMethod("close").invoke(stream);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not stop the recording", e);
+		}
+		return count.get();
+	}
+}
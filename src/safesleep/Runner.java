@@ -1,224 +1,321 @@
 package safesleep;
 
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Benchmarks how far sleeps overshoot their target, for every way of sleeping
+ * in the package, over a range of intervals and numbers of threads sleeping
+ * at once, on platform threads and on virtual threads where the JVM has them.
+ * <br/>
+ * Each case warms up, then records the overshoot of every sleep for a fixed
+ * time and reports its p50, p99, p99.9 and max, since it is the tail that
+ * makes a control loop miss its tick, along with the CPU the process used.
+ * The results are printed as a table, and written to a CSV or JSON file too
+ * if one is named, for comparing runs. <br/>
+ * Usage: Runner [results.csv|results.json] [ms per case]
+ */
 public class Runner {
-	private static final int NUM_TESTS = 10;
-	private static final long TEST_LENGTH = 1000L;
-	private static final long SLEEP_INTERVAL_1 = 5L;
-	private static final long SLEEP_INTERVAL_2 = 10L;
-	private static final long SLEEP_INTERVAL_3 = 15L;
-	private static final long SLEEP_INTERVAL_4 = 20L;
+	private static final long[] INTERVALS_MILLIS = { 1, 5, 10, 20 };
+	private static final int[] SLEEPERS = { 1, 16, 256 };
+	private static final long WARMUP_MILLIS = 200;
+	private static final long DEFAULT_MEASURE_MILLIS = 1000;
+
+	/** A way of sleeping */
+	private enum Strategy {
+		/** Thread.sleep(), for comparison */
+		THREAD_SLEEP,
+		/** SafeSleep.sleep() in MONITOR mode */
+		MONITOR,
+		/** SafeSleep.sleep() in PARK mode */
+		PARK,
+		/** SafeSleep.sleepNanos() at each precision */
+		COARSE, BALANCED, PRECISE, ADAPTIVE,
+		/** The shared TimerWheel */
+		WHEEL;
+
+		/** Makes the global SafeSleep settings right for this strategy */
+		void setUp() {
+			SafeSleep.setTimerWheel(null);
+			SafeSleep.setSleepMode(this == PARK ? SafeSleep.SleepMode.PARK
+					: SafeSleep.SleepMode.MONITOR);
+			// Start calibrating now, so it's done during the warmup
+			if (this == ADAPTIVE)
+				SafeSleep.getCalibrator();
+		}
+
+		void sleep(long millis) throws InterruptedException {
+			switch (this) {
+			case THREAD_SLEEP:
+				Thread.sleep(millis);
+				break;
+			case MONITOR:
+			case PARK:
+				SafeSleep.sleep(millis);
+				break;
+			case COARSE:
+				SafeSleep.sleepNanos(millis * 1000000L,
+						SafeSleep.Precision.COARSE);
+				break;
+			case BALANCED:
+				SafeSleep.sleepNanos(millis * 1000000L,
+						SafeSleep.Precision.BALANCED);
+				break;
+			case PRECISE:
+				SafeSleep.sleepNanos(millis * 1000000L,
+						SafeSleep.Precision.PRECISE);
+				break;
+			case ADAPTIVE:
+				SafeSleep.sleepNanos(millis * 1000000L,
+						SafeSleep.Precision.ADAPTIVE);
+				break;
+			case WHEEL:
+				TimerWheel.shared().sleepNanos(millis * 1000000L);
+				break;
+			}
+		}
+	}
+
+	/** The overshoot statistics of one case, in nanoseconds */
+	private static class Result {
+		final Strategy strategy;
+		final boolean virtual;
+		final long intervalMillis;
+		final int sleepers;
+		final int samples;
+		final long mean;
+		final long p50;
+		final long p99;
+		final long p999;
+		final long max;
+		/** Process CPU time as a percentage of one core, or -1 if unknown */
+		final double cpuPercent;
+
+		Result(Strategy strategy, boolean virtual, long intervalMillis,
+				int sleepers, long[] overshoots, double cpuPercent) {
+			this.strategy = strategy;
+			this.virtual = virtual;
+			this.intervalMillis = intervalMillis;
+			this.sleepers = sleepers;
+			this.cpuPercent = cpuPercent;
+			Arrays.sort(overshoots);
+			samples = overshoots.length;
+			long sum = 0;
+			for (long overshoot : overshoots)
+				sum += overshoot;
+			mean = samples == 0 ? 0 : sum / samples;
+			p50 = percentile(overshoots, 0.5);
+			p99 = percentile(overshoots, 0.99);
+			p999 = percentile(overshoots, 0.999);
+			max = samples == 0 ? 0 : overshoots[samples - 1];
+		}
+
+		private static long percentile(long[] sorted, double fraction) {
+			if (sorted.length == 0)
+				return 0;
+			int index = (int) Math.ceil(fraction * sorted.length) - 1;
+			return sorted[Math.max(index, 0)];
+		}
+
+		String threads() {
+			return virtual ? "virtual" : "platform";
+		}
+	}
 
 	/**
-	 * @param args
-	 * @throws InterruptedException
-	 * @throws ExecutionException
+	 * One thread sleeping over and over, keeping the overshoot of each sleep
+	 * made while measuring
 	 */
-	public static void main(String[] args) throws InterruptedException,
-			ExecutionException {
-		ExecutorService executor = Executors.newCachedThreadPool();
-
-		Control control1 = new Control(SLEEP_INTERVAL_1);
-		Control control2 = new Control(SLEEP_INTERVAL_2);
-		Control control3 = new Control(SLEEP_INTERVAL_3);
-		Control control4 = new Control(SLEEP_INTERVAL_4);
-		SafeSleeper sleeper1 = new SafeSleeper(SLEEP_INTERVAL_1);
-		SafeSleeper sleeper2 = new SafeSleeper(SLEEP_INTERVAL_2);
-		SafeSleeper sleeper3 = new SafeSleeper(SLEEP_INTERVAL_3);
-		SafeSleeper sleeper4 = new SafeSleeper(SLEEP_INTERVAL_4);
-
-		FutureTask<Long> task1;
-		FutureTask<Long> task2;
-		FutureTask<Long> task3;
-		FutureTask<Long> task4;
-
-		long control1Results = 0;
-		long control2Results = 0;
-		long control3Results = 0;
-		long control4Results = 0;
-		long sleeper1Results = 0;
-		long sleeper2Results = 0;
-		long sleeper3Results = 0;
-		long sleeper4Results = 0;
-		
-		System.out.println("Benchmarking SafeSleeper...");
-		System.out.println("Running control:");
-		for (int i = 0; i < NUM_TESTS; ++i) {
-			String idx = String.valueOf(i + 1);
-			System.out.print(idx);
-			for (int k = 0; k < 5 - idx.length(); ++k)
-				System.out.print('.');
-			if ((i + 1) % 10 == 0)
-				System.out.println();
-			control1.reset();
-			control2.reset();
-			control3.reset();
-			control4.reset();
-
-			task1 = new FutureTask<Long>(control1);
-			task2 = new FutureTask<Long>(control2);
-			task3 = new FutureTask<Long>(control3);
-			task4 = new FutureTask<Long>(control4);
-			executor.execute(task1);
-			executor.execute(task2);
-			executor.execute(task3);
-			executor.execute(task4);
-
-			Thread.sleep(TEST_LENGTH);
-
-			control1.stop();
-			control2.stop();
-			control3.stop();
-			control4.stop();
-
-			control1Results += task1.get();
-			control2Results += task2.get();
-			control3Results += task3.get();
-			control4Results += task4.get();
+	private static class Sleeper implements Runnable {
+		private final Strategy strategy;
+		private final long millis;
+		private final CountDownLatch done;
+		private long[] overshoots = new long[64];
+		private int count = 0;
+
+		private static volatile boolean measuring = false;
+		private static volatile boolean stop = false;
+
+		Sleeper(Strategy strategy, long millis, CountDownLatch done) {
+			this.strategy = strategy;
+			this.millis = millis;
+			this.done = done;
+		}
+
+		@Override
+		public void run() {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+			try {
+				while (!stop) {
+					long before = System.nanoTime();
+					strategy.sleep(millis);
+					long overshoot = System.nanoTime() - before - nanos;
+					if (measuring && !stop)
+						record(overshoot);
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				done.countDown();
+			}
 		}
-		control1Results /= NUM_TESTS;
-		control2Results /= NUM_TESTS;
-		control3Results /= NUM_TESTS;
-		control4Results /= NUM_TESTS;
-
-		System.out.println("\nRunning SafeSleep:");
-
-		for (int i = 0; i < NUM_TESTS; ++i) {
-			String idx = String.valueOf(i + 1);
-			System.out.print(idx);
-			for (int k = 0; k < 5 - idx.length(); ++k)
-				System.out.print('.');
-			if ((i + 1) % 10 == 0)
-				System.out.println();
-			sleeper1.reset();
-			sleeper2.reset();
-			sleeper3.reset();
-			sleeper4.reset();
-
-			task1 = new FutureTask<Long>(sleeper1);
-			task2 = new FutureTask<Long>(sleeper2);
-			task3 = new FutureTask<Long>(sleeper3);
-			task4 = new FutureTask<Long>(sleeper4);
-			executor.execute(task1);
-			executor.execute(task2);
-			executor.execute(task3);
-			executor.execute(task4);
-
-			Thread.sleep(TEST_LENGTH);
-
-			sleeper1.stop();
-			sleeper2.stop();
-			sleeper3.stop();
-			sleeper4.stop();
-
-			sleeper1Results += task1.get();
-			sleeper2Results += task2.get();
-			sleeper3Results += task3.get();
-			sleeper4Results += task4.get();
+
+		private void record(long overshoot) {
+			if (count == overshoots.length)
+				overshoots = Arrays.copyOf(overshoots, count * 2);
+			overshoots[count++] = overshoot;
 		}
-		sleeper1Results /= NUM_TESTS;
-		sleeper2Results /= NUM_TESTS;
-		sleeper3Results /= NUM_TESTS;
-		sleeper4Results /= NUM_TESTS;
-
-		System.out.println("\nTests completed.");
-		System.out.println("Results: ");
-		System.out.println("  Interval 1: " + SLEEP_INTERVAL_1 + " ms");
-		System.out.println("  Interval 2: " + SLEEP_INTERVAL_2 + " ms");
-		System.out.println("  Interval 3: " + SLEEP_INTERVAL_3 + " ms");
-		System.out.println("  Interval 4: " + SLEEP_INTERVAL_4 + " ms");
-		System.out.println();
-		System.out.println("  Average runtime for control1: " + control1Results
-				+ " nanoseconds");
-		System.out.println("  Average runtime for control2: " + control2Results
-				+ " nanoseconds");
-		System.out.println("  Average runtime for control3: " + control3Results
-				+ " nanoseconds");
-		System.out.println("  Average runtime for control4: " + control4Results
-				+ " nanoseconds");
-		System.out.println();
-		System.out.println("  Average runtime for sleeper1: " + sleeper1Results
-				+ " nanoseconds");
-		System.out.println("  Average runtime for sleeper2: " + sleeper2Results
-				+ " nanoseconds");
-		System.out.println("  Average runtime for sleeper3: " + sleeper3Results
-				+ " nanoseconds");
-		System.out.println("  Average runtime for sleeper4: " + sleeper4Results
-				+ " nanoseconds");
-		executor.shutdown();
 	}
-}
 
-abstract class SleepTest implements Callable<Long> {
-	protected volatile boolean stop = false;
-	protected final long sleepPeriod;
+	public static void main(String[] args) throws InterruptedException,
+			IOException {
+		String file = args.length > 0 ? args[0] : null;
+		long measureMillis = args.length > 1 ? Long.parseLong(args[1])
+				: DEFAULT_MEASURE_MILLIS;
+		boolean[] kinds = VirtualThreads.isAvailable() ? new boolean[] {
+				false, true } : new boolean[] { false };
+
+		System.out.println("Benchmarking sleep overshoot: " + WARMUP_MILLIS
+				+ " ms warmup, " + measureMillis + " ms measurement per case"
+				+ (VirtualThreads.isAvailable() ? ""
+						: " (no virtual threads before Java 21)"));
+		System.out.println(String.format("%-12s %-8s %6s %8s %8s %9s %9s %9s "
+				+ "%9s %9s %6s", "strategy", "threads", "ms", "sleepers",
+				"samples", "mean us", "p50 us", "p99 us", "p99.9 us", "max us",
+				"cpu %"));
+		List<Result> results = new ArrayList<Result>();
+		for (boolean virtual : kinds)
+			for (Strategy strategy : Strategy.values())
+				for (long millis : INTERVALS_MILLIS)
+					for (int sleepers : SLEEPERS) {
+						Result result = run(strategy, virtual, millis,
+								sleepers, measureMillis);
+						results.add(result);
+						print(result);
+					}
+		SafeSleep.setSleepMode(SafeSleep.SleepMode.MONITOR);
+		System.out.println("Sleep calibration: " + SafeSleep.getCalibrator());
 
-	public SleepTest(long sleepPeriod) {
-		this.sleepPeriod = sleepPeriod;
+		if (file != null) {
+			PrintWriter out = new PrintWriter(new FileWriter(file));
+			try {
+				if (file.endsWith(".json"))
+					writeJson(out, results);
+				else
+					writeCsv(out, results);
+			} finally {
+				out.close();
+			}
+			System.out.println("Results written to " + file);
+		}
 	}
 
-	public void stop() {
-		this.stop = true;
+	private static Result run(Strategy strategy, boolean virtual,
+			long millis, int count, long measureMillis)
+			throws InterruptedException {
+		strategy.setUp();
+		CountDownLatch done = new CountDownLatch(count);
+		Sleeper[] sleepers = new Sleeper[count];
+		Sleeper.measuring = false;
+		Sleeper.stop = false;
+		for (int i = 0; i < count; ++i) {
+			sleepers[i] = new Sleeper(strategy, millis, done);
+			Thread thread = virtual ? VirtualThreads.newThread(sleepers[i])
+					: new Thread(sleepers[i], "sleeper-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Thread.sleep(WARMUP_MILLIS);
+		long cpuBefore = processCpuNanos();
+		long before = System.nanoTime();
+		Sleeper.measuring = true;
+		Thread.sleep(measureMillis);
+		Sleeper.stop = true;
+		long elapsed = System.nanoTime() - before;
+		long cpuAfter = processCpuNanos();
+		done.await();
+
+		int samples = 0;
+		for (Sleeper sleeper : sleepers)
+			samples += sleeper.count;
+		long[] overshoots = new long[samples];
+		int at = 0;
+		for (Sleeper sleeper : sleepers) {
+			System.arraycopy(sleeper.overshoots, 0, overshoots, at,
+					sleeper.count);
+			at += sleeper.count;
+		}
+		double cpuPercent = cpuBefore < 0 || cpuAfter < 0 ? -1
+				: 100.0 * (cpuAfter - cpuBefore) / elapsed;
+		return new Result(strategy, virtual, millis, count, overshoots,
+				cpuPercent);
 	}
 
-	public void reset() {
-		this.stop = false;
+	/**
+	 * @return The CPU time used by the whole process, in nanoseconds, or -1
+	 *         if the JVM doesn't say
+	 */
+	private static long processCpuNanos() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean)
+			return ((com.sun.management.OperatingSystemMXBean) os)
+					.getProcessCpuTime();
+		return -1;
 	}
-}
 
-class Control extends SleepTest {
-	public Control(long sleepPeriod) {
-		super(sleepPeriod);
+	private static void print(Result result) {
+		System.out.println(String.format("%-12s %-8s %6d %8d %8d %9.1f %9.1f "
+				+ "%9.1f %9.1f %9.1f %6.1f", result.strategy, result.threads(),
+				result.intervalMillis, result.sleepers, result.samples,
+				result.mean / 1000.0, result.p50 / 1000.0,
+				result.p99 / 1000.0, result.p999 / 1000.0,
+				result.max / 1000.0, result.cpuPercent));
 	}
 
-	public Long call() {
-		try {
-			long timeBefore = 0, timeAfter = 0, sum = 0, n = 0;
-			while (!stop) {
-				timeBefore = System.nanoTime();
-				Thread.sleep(sleepPeriod);
-				timeAfter = System.nanoTime();
-				sum += (timeAfter - timeBefore);
-				++n;
-			}
-			if (n != 0) {
-				sum /= n;
-				return sum;
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		return -1L;
+	/**
+	 * @return The percentage with a decimal point whatever the locale, so the
+	 *         results files parse anywhere
+	 */
+	private static String formatPercent(double percent) {
+		return String.format(Locale.ROOT, "%.1f", percent);
 	}
-}
 
-class SafeSleeper extends SleepTest {
-	public SafeSleeper(long sleepPeriod) {		
-		super(sleepPeriod);
+	private static void writeCsv(PrintWriter out, List<Result> results) {
+		out.println("strategy,threads,interval_ms,sleepers,samples,mean_ns,"
+				+ "p50_ns,p99_ns,p999_ns,max_ns,cpu_percent");
+		for (Result result : results)
+			out.println(result.strategy + "," + result.threads() + ","
+					+ result.intervalMillis + "," + result.sleepers + ","
+					+ result.samples + "," + result.mean + "," + result.p50
+					+ "," + result.p99 + "," + result.p999 + "," + result.max
+					+ "," + formatPercent(result.cpuPercent));
 	}
 
-	public Long call() {
-		try {
-			long timeBefore = 0, timeAfter = 0, sum = 0, n = 0;
-			while (!stop) {
-				timeBefore = System.nanoTime();
-				SafeSleep.sleep(sleepPeriod);
-				timeAfter = System.nanoTime();
-				sum += (timeAfter - timeBefore);
-				++n;
-			}
-			if (n != 0) {
-				sum /= n;
-				return sum;
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	private static void writeJson(PrintWriter out, List<Result> results) {
+		out.println("[");
+		for (int i = 0; i < results.size(); ++i) {
+			Result result = results.get(i);
+			out.print("  {\"strategy\": \"" + result.strategy
+					+ "\", \"threads\": \"" + result.threads()
+					+ "\", \"interval_ms\": " + result.intervalMillis
+					+ ", \"sleepers\": " + result.sleepers
+					+ ", \"samples\": " + result.samples + ", \"mean_ns\": "
+					+ result.mean + ", \"p50_ns\": " + result.p50
+					+ ", \"p99_ns\": " + result.p99 + ", \"p999_ns\": "
+					+ result.p999 + ", \"max_ns\": " + result.max
+					+ ", \"cpu_percent\": "
+					+ formatPercent(result.cpuPercent) + "}");
+			out.println(i < results.size() - 1 ? "," : "");
 		}
-		return -1L;
+		out.println("]");
 	}
-}
\ No newline at end of file
+}
@@ -1,10 +1,101 @@
 package safesleep;
 
-/** Thread-safe sleep */
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread-safe sleep <br/>
+ * {@link #sleep(long)} sleeps for at least the given number of milliseconds,
+ * but wakes whenever the OS timer gets round to it, which can be a good
+ * fraction of a millisecond late. {@link #sleepNanos(long)} and
+ * {@link #sleepUntil(long)} time the sleep with System.nanoTime() instead,
+ * parking for the bulk of it and seeing out the last stretch, the spin
+ * window, awake, so they land within tens of microseconds of the target.
+ * {@link Precision#ADAPTIVE} sleeps size the window to the timer slack the
+ * {@link SleepCalibrator} has measured on this host. <br/>
+ * Given a {@link TimerWheel} with {@link #setTimerWheel(TimerWheel)}, sleeps
+ * wait on the wheel rather than each on a timer of its own, so any number of
+ * sleeping threads cost one timer thread between them. <br/>
+ * In {@link SleepMode#PARK} mode {@link #sleep(long)} parks rather than
+ * waiting on a monitor, so it is safe to call from virtual threads. <br/>
+ * Given a clock other than the system one with {@link #setClock(Clock)},
+ * every sleep just sleeps on that clock, in its time.
+ */
 public class SafeSleep {
+	/** How the nanosecond sleeps trade precision against CPU time */
+	public enum Precision {
+		/**
+		 * Park for the whole sleep. Costs no CPU, but wakes as late as the OS
+		 * timer slack makes it.
+		 */
+		COARSE,
+		/**
+		 * Park, then yield until the deadline for the spin window. Other
+		 * threads still get the CPU while waiting out the window.
+		 */
+		BALANCED,
+		/**
+		 * Park, then busy-wait until the deadline for the spin window. The
+		 * most precise, but takes a whole core for the window.
+		 */
+		PRECISE,
+		/**
+		 * Park until the calibrated margin before the deadline, then yield
+		 * until the deadline. The margin is what the {@link SleepCalibrator}
+		 * has learned the OS timer usually overshoots by, so the sleep is
+		 * nearly as precise as BALANCED while spending only as long awake as
+		 * this host needs. Each sleep feeds the overshoot of its park back to
+		 * the calibrator.
+		 */
+		ADAPTIVE
+	};
+
+	/** How {@link SafeSleep#sleep(long)} blocks */
+	public enum SleepMode {
+		/**
+		 * Wait on a monitor of its own, timed by System.currentTimeMillis().
+		 * A virtual thread waiting on a monitor pins its carrier thread for
+		 * the whole sleep.
+		 */
+		MONITOR,
+		/**
+		 * Park, timed by System.nanoTime(). Allocates nothing, and a virtual
+		 * thread gives up its carrier thread while parked.
+		 */
+		PARK
+	};
+
+	/**
+	 * Default time before the deadline at which to stop parking, in
+	 * nanoseconds. Generously above the usual Linux timer slack of 50us.
+	 */
+	public static final long DEFAULT_SPIN_WINDOW_NANOS = 200000;
+
+	private static volatile Precision defaultPrecision = Precision.BALANCED;
+	private static volatile long spinWindowNanos = DEFAULT_SPIN_WINDOW_NANOS;
+	private static volatile SleepMode sleepMode = SleepMode.MONITOR;
+	/** If not null, sleeps wait on this rather than on a timer each */
+	private static volatile TimerWheel timerWheel = null;
+	private static volatile Clock clock = Clock.system();
+	/** Sizes the spin window of adaptive sleeps; created on first use */
+	private static volatile SleepCalibrator calibrator = null;
+
 	public static void sleep(long millis) throws InterruptedException {
 		if (millis == 0)
 			return;
+		Clock clock = SafeSleep.clock;
+		if (clock != Clock.system()) {
+			clock.sleepUntil(clock.nanoTime() + millis * 1000000L);
+			return;
+		}
+		TimerWheel wheel = timerWheel;
+		if (wheel != null) {
+			wheel.sleepNanos(millis * 1000000L);
+			return;
+		}
+		if (sleepMode == SleepMode.PARK) {
+			parkUntil(System.nanoTime() + millis * 1000000L);
+			return;
+		}
 		Object waiter = new Object();
 		synchronized (waiter) {
 			long timeBefore = System.currentTimeMillis();
@@ -17,4 +108,270 @@ public class SafeSleep {
 			} while (timePassed < millis);
 		}
 	}
+
+	/**
+	 * Sleeps for at least the given time, with the default precision
+	 *
+	 * @param nanos
+	 *            The time to sleep for, in nanoseconds
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public static void sleepNanos(long nanos) throws InterruptedException {
+		sleepUntil(clock.nanoTime() + nanos, defaultPrecision, spinWindowNanos);
+	}
+
+	/**
+	 * Sleeps for at least the given time
+	 *
+	 * @param nanos
+	 *            The time to sleep for, in nanoseconds
+	 * @param precision
+	 *            How to trade precision against CPU time
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public static void sleepNanos(long nanos, Precision precision)
+			throws InterruptedException {
+		sleepUntil(clock.nanoTime() + nanos, precision, spinWindowNanos);
+	}
+
+	/**
+	 * Sleeps until a point in time, with the default precision. Sleeping
+	 * until absolute deadlines, each a fixed period after the last, keeps a
+	 * loop at a steady rate however long each pass takes.
+	 *
+	 * @param deadlineNanos
+	 *            The {@link #getClock() clock} time to sleep until. Returns at
+	 *            once if it has already passed.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public static void sleepUntil(long deadlineNanos)
+			throws InterruptedException {
+		sleepUntil(deadlineNanos, defaultPrecision, spinWindowNanos);
+	}
+
+	/**
+	 * Sleeps until a point in time
+	 *
+	 * @param deadlineNanos
+	 *            The {@link #getClock() clock} time to sleep until. Returns at
+	 *            once if it has already passed.
+	 * @param precision
+	 *            How to trade precision against CPU time
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public static void sleepUntil(long deadlineNanos, Precision precision)
+			throws InterruptedException {
+		sleepUntil(deadlineNanos, precision, spinWindowNanos);
+	}
+
+	/**
+	 * Sleeps until a point in time
+	 *
+	 * @param deadlineNanos
+	 *            The {@link #getClock() clock} time to sleep until. Returns at
+	 *            once if it has already passed.
+	 * @param precision
+	 *            How to trade precision against CPU time
+	 * @param spinWindowNanos
+	 *            How long before the deadline to stop parking, in nanoseconds.
+	 *            Ignored for {@link Precision#COARSE}, and for
+	 *            {@link Precision#ADAPTIVE}, which uses the calibrated margin.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public static void sleepUntil(long deadlineNanos, Precision precision,
+			long spinWindowNanos) throws InterruptedException {
+		Clock clock = SafeSleep.clock;
+		if (clock != Clock.system()) {
+			clock.sleepUntil(deadlineNanos);
+			return;
+		}
+		SleepCalibrator calibrator = null;
+		if (precision == Precision.ADAPTIVE) {
+			calibrator = getCalibrator();
+			spinWindowNanos = calibrator.getMarginNanos();
+		}
+		long parkDeadline = precision == Precision.COARSE ? deadlineNanos
+				: deadlineNanos - spinWindowNanos;
+		TimerWheel wheel = timerWheel;
+		if (wheel != null) {
+			// The wheel wakes up to a tick late, so unless that is good
+			// enough, leave it a tick early and park the rest as usual
+			wheel.sleepUntil(precision == Precision.COARSE ? deadlineNanos
+					: parkDeadline - wheel.getTickNanos());
+		}
+		// Park for the bulk of the sleep
+		boolean parked = parkDeadline - System.nanoTime() > 0;
+		parkUntil(parkDeadline);
+		// Only a park straight on the OS timer says anything about its slack
+		if (calibrator != null && parked && wheel == null)
+			calibrator.record(System.nanoTime() - parkDeadline);
+		// See out the rest awake, rather than trusting the OS timer with it
+		while (deadlineNanos - System.nanoTime() > 0) {
+			if (precision != Precision.PRECISE)
+				Thread.yield();
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Parks until a point in time. Spurious wake-ups just park again.
+	 *
+	 * @param deadlineNanos
+	 *            The System.nanoTime() to park until
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while parked
+	 */
+	private static void parkUntil(long deadlineNanos)
+			throws InterruptedException {
+		long remaining;
+		while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(SafeSleep.class, remaining);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Sets how {@link #sleep(long)} blocks. Has no effect while sleeps wait
+	 * on a timer wheel, which parks anyway.
+	 *
+	 * @param mode
+	 *            The new sleep mode
+	 */
+	public static void setSleepMode(SleepMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException("Sleep mode must not be null");
+		sleepMode = mode;
+	}
+
+	/**
+	 * @return How {@link #sleep(long)} blocks
+	 */
+	public static SleepMode getSleepMode() {
+		return sleepMode;
+	}
+
+	/**
+	 * Sets the precision used by the nanosecond sleeps when none is given
+	 *
+	 * @param precision
+	 *            The new default precision
+	 */
+	public static void setDefaultPrecision(Precision precision) {
+		if (precision == null)
+			throw new IllegalArgumentException("Precision must not be null");
+		defaultPrecision = precision;
+	}
+
+	/**
+	 * @return The precision used by the nanosecond sleeps when none is given
+	 */
+	public static Precision getDefaultPrecision() {
+		return defaultPrecision;
+	}
+
+	/**
+	 * Sets how long before the deadline the nanosecond sleeps stop parking
+	 * when no spin window is given. A window shorter than the OS timer slack
+	 * gains little over {@link Precision#COARSE}; a longer one costs more
+	 * CPU.
+	 *
+	 * @param nanos
+	 *            The new spin window, in nanoseconds
+	 */
+	public static void setSpinWindowNanos(long nanos) {
+		if (nanos < 0)
+			throw new IllegalArgumentException(
+					"Spin window must not be negative");
+		spinWindowNanos = nanos;
+	}
+
+	/**
+	 * @return How long before the deadline the nanosecond sleeps stop parking
+	 *         when no spin window is given, in nanoseconds
+	 */
+	public static long getSpinWindowNanos() {
+		return spinWindowNanos;
+	}
+
+	/**
+	 * Makes every sleep wait on a timer wheel, such as
+	 * {@link TimerWheel#shared()}, rather than on a timer of its own.
+	 * {@link Precision#COARSE} sleeps then wake up to a tick late; the others
+	 * leave the wheel a tick early and park the rest of the way as usual.
+	 *
+	 * @param wheel
+	 *            The wheel to sleep on, or null to park each sleep on its own
+	 *            timer
+	 */
+	public static void setTimerWheel(TimerWheel wheel) {
+		timerWheel = wheel;
+	}
+
+	/**
+	 * @return The wheel sleeps wait on, or null if each parks on its own timer
+	 */
+	public static TimerWheel getTimerWheel() {
+		return timerWheel;
+	}
+
+	/**
+	 * Sets the clock sleeps are timed by. With anything but
+	 * {@link Clock#system()}, such as a {@link VirtualClock}, every sleep
+	 * just sleeps on the clock, and the deadlines given to the sleepUntil
+	 * methods are in its time.
+	 *
+	 * @param clock
+	 *            The new clock
+	 */
+	public static void setClock(Clock clock) {
+		if (clock == null)
+			throw new IllegalArgumentException("Clock must not be null");
+		SafeSleep.clock = clock;
+	}
+
+	/**
+	 * @return The clock sleeps are timed by
+	 */
+	public static Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Sets the calibrator that sizes the spin window of
+	 * {@link Precision#ADAPTIVE} sleeps
+	 *
+	 * @param calibrator
+	 *            The new calibrator
+	 */
+	public static void setCalibrator(SleepCalibrator calibrator) {
+		if (calibrator == null)
+			throw new IllegalArgumentException("Calibrator must not be null");
+		SafeSleep.calibrator = calibrator;
+	}
+
+	/**
+	 * Gets the calibrator that sizes the spin window of
+	 * {@link Precision#ADAPTIVE} sleeps, which is
+	 * {@link SleepCalibrator#shared()} unless another has been set. Its
+	 * {@link SleepCalibrator#getCalibration() calibration} shows what it has
+	 * learned.
+	 *
+	 * @return The calibrator
+	 */
+	public static SleepCalibrator getCalibrator() {
+		SleepCalibrator calibrator = SafeSleep.calibrator;
+		if (calibrator == null) {
+			// Calibrates in the background, so doesn't hold up this sleep
+			calibrator = SleepCalibrator.shared();
+			SafeSleep.calibrator = calibrator;
+		}
+		return calibrator;
+	}
 }
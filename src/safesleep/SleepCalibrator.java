@@ -0,0 +1,325 @@
+package safesleep;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Learns how late parking wakes up on this host, so sleeps can wake early by
+ * just that much and see out the rest awake. <br/>
+ * A calibration parks a number of times for a short probe period and
+ * measures the overshoot of each park. It also takes in the overshoots
+ * recently seen by {@link SafeSleep.Precision#ADAPTIVE} sleeps themselves,
+ * so it follows the timer slack the application is actually getting. The
+ * margin to wake early by is a high percentile of the overshoot, capped at
+ * {@link #MAX_MARGIN_NANOS}. <br/>
+ * A calibrator created with a constructor calibrates once when created, and
+ * again periodically on a background thread if started with
+ * {@link #startBackground(long)}. The {@link #shared() shared} calibrator
+ * instead starts out with {@link SafeSleep#DEFAULT_SPIN_WINDOW_NANOS} as its
+ * margin and makes its first calibration on the background thread, so no
+ * sleep has to wait for it. The latest results are available from
+ * {@link #getCalibration()}.
+ */
+public class SleepCalibrator {
+	/** Default number of probe parks per calibration */
+	public static final int DEFAULT_PROBES = 50;
+	/** Default length of each probe park, in nanoseconds */
+	public static final long DEFAULT_PROBE_NANOS = 1000000;
+	/** Default time between background calibrations, in milliseconds */
+	public static final long DEFAULT_PERIOD_MILLIS = 10000;
+	/**
+	 * Largest margin used, in nanoseconds, so a host with a bad tail doesn't
+	 * turn every sleep into a busy-wait
+	 */
+	public static final long MAX_MARGIN_NANOS = 1000000;
+	/** The percentile of overshoot used as the margin */
+	private static final double MARGIN_PERCENTILE = 0.9;
+	/** How many of the latest overshoots seen by sleeps are kept */
+	private static final int RECENT_CAPACITY = 256;
+
+	/** The results of one calibration, in nanoseconds */
+	public static final class Calibration {
+		private final int samples;
+		private final long mean;
+		private final long p50;
+		private final long p90;
+		private final long p99;
+		private final long max;
+		private final long margin;
+		private final long takenAtMillis;
+
+		/**
+		 * A stand-in used until the first calibration, with no samples and
+		 * the given margin
+		 */
+		Calibration(long margin) {
+			samples = 0;
+			mean = 0;
+			p50 = 0;
+			p90 = 0;
+			p99 = 0;
+			max = 0;
+			this.margin = margin;
+			takenAtMillis = System.currentTimeMillis();
+		}
+
+		Calibration(long[] overshoots) {
+			Arrays.sort(overshoots);
+			samples = overshoots.length;
+			long sum = 0;
+			for (long overshoot : overshoots)
+				sum += overshoot;
+			mean = samples == 0 ? 0 : sum / samples;
+			p50 = percentile(overshoots, 0.5);
+			p90 = percentile(overshoots, 0.9);
+			p99 = percentile(overshoots, 0.99);
+			max = samples == 0 ? 0 : overshoots[samples - 1];
+			margin = Math.min(percentile(overshoots, MARGIN_PERCENTILE),
+					MAX_MARGIN_NANOS);
+			takenAtMillis = System.currentTimeMillis();
+		}
+
+		private static long percentile(long[] sorted, double fraction) {
+			if (sorted.length == 0)
+				return 0;
+			int index = (int) Math.ceil(fraction * sorted.length) - 1;
+			return Math.max(sorted[Math.max(index, 0)], 0);
+		}
+
+		/**
+		 * @return The number of overshoots measured
+		 */
+		public int getSamples() {
+			return samples;
+		}
+
+		/**
+		 * @return The mean overshoot
+		 */
+		public long getMeanNanos() {
+			return mean;
+		}
+
+		/**
+		 * @return The median overshoot
+		 */
+		public long getP50Nanos() {
+			return p50;
+		}
+
+		/**
+		 * @return The 90th percentile overshoot
+		 */
+		public long getP90Nanos() {
+			return p90;
+		}
+
+		/**
+		 * @return The 99th percentile overshoot
+		 */
+		public long getP99Nanos() {
+			return p99;
+		}
+
+		/**
+		 * @return The largest overshoot
+		 */
+		public long getMaxNanos() {
+			return max;
+		}
+
+		/**
+		 * @return How long before a deadline adaptive sleeps stop parking
+		 */
+		public long getMarginNanos() {
+			return margin;
+		}
+
+		/**
+		 * @return The System.currentTimeMillis() of the calibration
+		 */
+		public long getTakenAtMillis() {
+			return takenAtMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "samples=" + samples + " mean=" + mean + "ns p50=" + p50
+					+ "ns p90=" + p90 + "ns p99=" + p99 + "ns max=" + max
+					+ "ns margin=" + margin + "ns";
+		}
+	}
+
+	private static SleepCalibrator shared = null;
+
+	private final int probes;
+	private final long probeNanos;
+	private volatile Calibration calibration;
+	private volatile long calibrations = 0;
+
+	/** The latest overshoots seen by sleeps, as a ring */
+	private final AtomicLongArray recent = new AtomicLongArray(RECENT_CAPACITY);
+	private final AtomicLong recentCount = new AtomicLong(0);
+
+	private Thread background = null;
+
+	/**
+	 * Creates a calibrator with the default probes, and calibrates it
+	 */
+	public SleepCalibrator() {
+		this(DEFAULT_PROBES, DEFAULT_PROBE_NANOS);
+	}
+
+	/**
+	 * Creates a calibrator, and calibrates it
+	 *
+	 * @param probes
+	 *            The number of probe parks per calibration
+	 * @param probeNanos
+	 *            The length of each probe park, in nanoseconds
+	 */
+	public SleepCalibrator(int probes, long probeNanos) {
+		this(probes, probeNanos, true);
+	}
+
+	private SleepCalibrator(int probes, long probeNanos, boolean calibrateNow) {
+		if (probes <= 0 || probeNanos <= 0)
+			throw new IllegalArgumentException("Probes must be positive");
+		this.probes = probes;
+		this.probeNanos = probeNanos;
+		if (calibrateNow)
+			calibrate();
+		else
+			calibration = new Calibration(SafeSleep.DEFAULT_SPIN_WINDOW_NANOS);
+	}
+
+	/**
+	 * Gets the calibrator shared by {@link SafeSleep}, creating it, and
+	 * starting it calibrating in the background at once and then every
+	 * {@link #DEFAULT_PERIOD_MILLIS}, on first use. Returns straight away;
+	 * until the first calibration is done the margin is
+	 * {@link SafeSleep#DEFAULT_SPIN_WINDOW_NANOS}.
+	 *
+	 * @return The shared calibrator
+	 */
+	public static synchronized SleepCalibrator shared() {
+		if (shared == null) {
+			shared = new SleepCalibrator(DEFAULT_PROBES, DEFAULT_PROBE_NANOS,
+					false);
+			shared.startBackground(DEFAULT_PERIOD_MILLIS);
+		}
+		return shared;
+	}
+
+	/**
+	 * Measures the overshoot of parking now, along with the overshoots
+	 * recently seen by sleeps, and makes the result the current calibration.
+	 * Takes the probes' worth of time, so is best left to the background
+	 * thread once the calibrator is up.
+	 *
+	 * @return The new calibration
+	 */
+	public synchronized Calibration calibrate() {
+		long count = recentCount.get();
+		int taken = (int) Math.min(count, RECENT_CAPACITY);
+		long[] overshoots = new long[probes + taken];
+		for (int i = 0; i < probes; ++i) {
+			long deadline = System.nanoTime() + probeNanos;
+			long remaining;
+			while ((remaining = deadline - System.nanoTime()) > 0)
+				LockSupport.parkNanos(this, remaining);
+			overshoots[i] = System.nanoTime() - deadline;
+		}
+		for (int i = 0; i < taken; ++i)
+			overshoots[probes + i] = recent
+					.get((int) ((count - 1 - i) % RECENT_CAPACITY));
+		Calibration result = new Calibration(overshoots);
+		calibration = result;
+		calibrations++;
+		return result;
+	}
+
+	/**
+	 * Notes the overshoot of a park made by a sleep, for the next
+	 * calibration to take in. Allocates nothing.
+	 *
+	 * @param overshootNanos
+	 *            How late the park woke, in nanoseconds
+	 */
+	void record(long overshootNanos) {
+		long index = recentCount.getAndIncrement();
+		recent.set((int) (index % RECENT_CAPACITY), overshootNanos);
+	}
+
+	/**
+	 * @return The latest calibration
+	 */
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	/**
+	 * @return How long before a deadline adaptive sleeps stop parking, in
+	 *         nanoseconds
+	 */
+	public long getMarginNanos() {
+		return calibration.margin;
+	}
+
+	/**
+	 * @return The number of calibrations made so far, not counting the
+	 *         stand-in the shared calibrator starts with
+	 */
+	public long getCalibrations() {
+		return calibrations;
+	}
+
+	/**
+	 * Starts a daemon thread recalibrating periodically, replacing any
+	 * already running. If the calibrator hasn't calibrated yet, the thread
+	 * does so first, straight away.
+	 *
+	 * @param periodMillis
+	 *            The time between calibrations, in milliseconds
+	 */
+	public synchronized void startBackground(final long periodMillis) {
+		if (periodMillis <= 0)
+			throw new IllegalArgumentException("Period must be positive");
+		stopBackground();
+		background = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (calibrations == 0)
+						calibrate();
+					while (!Thread.currentThread().isInterrupted()) {
+						Thread.sleep(periodMillis);
+						calibrate();
+					}
+				} catch (InterruptedException e) {
+					// Stopped
+				}
+			}
+		}, "sleep-calibrator");
+		background.setDaemon(true);
+		background.start();
+	}
+
+	/**
+	 * Stops the background recalibration, if it is running. The latest
+	 * calibration stays in use.
+	 */
+	public synchronized void stopBackground() {
+		if (background != null) {
+			background.interrupt();
+			background = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "calibrations=" + getCalibrations() + " " + getCalibration();
+	}
+}
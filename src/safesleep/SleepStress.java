@@ -0,0 +1,156 @@
+package safesleep;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many threads sleeping with {@link SafeSleep#sleep(long)} at once, on
+ * virtual threads where the JVM has them (Java 21 on), and checks that: <br/>
+ * - no sleep returned early, <br/>
+ * - no sleeper pinned its carrier thread, going by the JVM's own
+ * jdk.VirtualThreadPinned events where Flight Recorder is there to count
+ * them, <br/>
+ * - on virtual threads, the sleepers slept side by side, taking little longer
+ * than one sleeper alone, rather than queueing for carrier threads, and <br/>
+ * - interrupting a sleeper ends its sleep. <br/>
+ * Run with -Djdk.tracePinnedThreads=full to have the JVM print any pinning as
+ * it happens. Exits with status 1 if a check fails. <br/>
+ * Usage: SleepStress [sleepers] [sleeps each] [sleep ms] [monitor|park|wheel]
+ */
+public class SleepStress {
+	private static final int DEFAULT_SLEEPERS = 20000;
+	private static final int DEFAULT_SLEEPS = 10;
+	private static final long DEFAULT_SLEEP_MILLIS = 10;
+	/**
+	 * The run counts as side by side if it takes less than this many times
+	 * one sleeper's sleeps, plus STARTUP_MILLIS for getting them all going.
+	 * Sleepers pinning their carriers would queue for them, and the JVM only
+	 * makes up for that with a few hundred extra carriers, so take far
+	 * longer.
+	 */
+	private static final long SLOWDOWN_BOUND = 3;
+	private static final long STARTUP_MILLIS = 2000;
+	/** Stack size for platform thread sleepers, which need next to none */
+	private static final long PLATFORM_STACK_SIZE = 64 * 1024;
+
+	public static void main(String[] args) throws InterruptedException {
+		int sleepers = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_SLEEPERS;
+		final int sleeps = args.length > 1 ? Integer.parseInt(args[1])
+				: DEFAULT_SLEEPS;
+		final long millis = args.length > 2 ? Long.parseLong(args[2])
+				: DEFAULT_SLEEP_MILLIS;
+		String mode = args.length > 3 ? args[3] : "park";
+		if (mode.equals("wheel"))
+			SafeSleep.setTimerWheel(TimerWheel.shared());
+		else
+			SafeSleep.setSleepMode(SafeSleep.SleepMode.valueOf(mode
+					.toUpperCase()));
+		// sleep() in MONITOR mode is timed in whole milliseconds, so may come
+		// up to one short by System.nanoTime()
+		final long tolerance = mode.equals("monitor") ? 1000000 : 0;
+
+		System.out.println("Sleepers: " + sleepers + " "
+				+ (VirtualThreads.isAvailable() ? "virtual" : "platform")
+				+ " threads, each sleeping " + sleeps + " x " + millis
+				+ " ms, mode " + mode);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(sleepers);
+		final AtomicLong early = new AtomicLong(0);
+		final AtomicLong failed = new AtomicLong(0);
+		final AtomicLong worstLate = new AtomicLong(0);
+		Runnable sleeper = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					start.await();
+					long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+					long late = 0;
+					for (int i = 0; i < sleeps; ++i) {
+						long before = System.nanoTime();
+						SafeSleep.sleep(millis);
+						long slept = System.nanoTime() - before;
+						if (slept + tolerance < nanos)
+							early.incrementAndGet();
+						late = Math.max(late, slept - nanos);
+					}
+					long worst;
+					while (late > (worst = worstLate.get())
+							&& !worstLate.compareAndSet(worst, late))
+						;
+				} catch (InterruptedException e) {
+					failed.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		for (int i = 0; i < sleepers; ++i)
+			newThread(sleeper).start();
+		PinnedEvents pinning = PinnedEvents.start();
+		long before = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- before);
+		long pinned = pinning == null ? 0 : pinning.stop();
+		long alone = sleeps * millis;
+		long bound = alone * SLOWDOWN_BOUND + STARTUP_MILLIS;
+
+		// Platform threads have no carriers to queue for, and thousands of
+		// them can take far longer than the bound just to get scheduled
+		boolean sideBySide = elapsed <= bound
+				|| !VirtualThreads.isAvailable();
+		boolean interruptible = checkInterrupt();
+		boolean passed = early.get() == 0 && failed.get() == 0 && pinned == 0
+				&& sideBySide && interruptible;
+		System.out.println("Took " + elapsed + " ms against " + alone
+				+ " ms for one sleeper alone (bound " + bound + " ms)");
+		System.out.println("Pinned carriers: "
+				+ (pinning == null ? "not counted" : String.valueOf(pinned)));
+		System.out.println("Early wake-ups: " + early + ", failed sleepers: "
+				+ failed + ", worst oversleep: "
+				+ TimeUnit.NANOSECONDS.toMicros(worstLate.get()) + " us");
+		System.out.println("Interrupt ends a sleep: " + interruptible);
+		System.out.println(passed ? "PASS" : "FAIL");
+		if (!passed)
+			System.exit(1);
+	}
+
+	/**
+	 * @return true if interrupting a long sleep ends it with an
+	 *         InterruptedException
+	 */
+	private static boolean checkInterrupt() throws InterruptedException {
+		final boolean[] interrupted = { false };
+		Thread thread = newThread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SafeSleep.sleep(60000);
+				} catch (InterruptedException e) {
+					interrupted[0] = true;
+				}
+			}
+		});
+		thread.start();
+		Thread.sleep(50);
+		thread.interrupt();
+		thread.join(1000);
+		return interrupted[0];
+	}
+
+	/**
+	 * @return A new virtual thread if the JVM has them, or a platform thread
+	 *         with a small stack if not
+	 */
+	private static Thread newThread(Runnable task) {
+		if (VirtualThreads.isAvailable())
+			return VirtualThreads.newThread(task);
+		Thread thread = new Thread(null, task, "sleeper", PLATFORM_STACK_SIZE);
+		thread.setDaemon(true);
+		return thread;
+	}
+}
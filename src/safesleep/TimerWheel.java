@@ -0,0 +1,391 @@
+package safesleep;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel: one ticker thread wakes any number of sleeping
+ * threads and runs timeouts, so many periodic sleepers cost one timer between
+ * them rather than one each. <br/>
+ * Time is cut into ticks. Each timeout is hashed by the tick it falls due in
+ * onto one of a ring of slots, each a doubly linked list with its own lock,
+ * so adding and cancelling a timeout take constant time and only contend
+ * with timeouts in the same slot. Every tick the ticker walks one slot,
+ * firing the timeouts due in that tick and leaving those due on later laps
+ * of the wheel. Timeouts fire on the first tick at or after their deadline,
+ * so up to a tick late, plus however late the ticker itself wakes. <br/>
+ * Threads sleeping on the wheel reuse one timeout each, so sleeping
+ * allocates nothing after a thread's first sleep. The ticker only ticks
+ * while something is waiting on the wheel.
+ */
+public class TimerWheel {
+	/** Default tick length, in nanoseconds */
+	public static final long DEFAULT_TICK_NANOS = 1000000;
+	/** Default number of slots, making one lap of the wheel about half a second */
+	public static final int DEFAULT_SLOTS = 512;
+
+	private static TimerWheel shared = null;
+
+	/**
+	 * Something waiting on the wheel: either a sleeping thread, which is
+	 * woken, or a task, which is run on the ticker thread
+	 */
+	public static class Timeout {
+		private final TimerWheel wheel;
+		private final Runnable task;
+		private final Thread thread;
+		private long deadline;
+		/** The tick the timeout falls due in */
+		private long tick;
+		/** The slot the timeout is in, or null if it isn't in one */
+		private volatile Slot slot = null;
+		private Timeout prev = null;
+		private Timeout next = null;
+		private volatile boolean expired = false;
+
+		private Timeout(TimerWheel wheel, Runnable task, Thread thread) {
+			this.wheel = wheel;
+			this.task = task;
+			this.thread = thread;
+		}
+
+		/**
+		 * Takes the timeout off the wheel, if it hasn't fired yet
+		 *
+		 * @return true if the timeout was cancelled before firing
+		 */
+		public boolean cancel() {
+			return wheel.remove(this);
+		}
+
+		/**
+		 * @return true once the timeout has fired
+		 */
+		public boolean isExpired() {
+			return expired;
+		}
+
+		/**
+		 * @return The System.nanoTime() the timeout is due at
+		 */
+		public long getDeadline() {
+			return deadline;
+		}
+	}
+
+	/** A slot's timeouts; the slot itself is the lock guarding them */
+	private static final class Slot {
+		Timeout head = null;
+	}
+
+	private final long tickNanos;
+	private final Slot[] slots;
+	private final int mask;
+	/** The System.nanoTime() of tick 0 */
+	private final long start;
+	/** Every tick up to and including this one has been walked */
+	private volatile long processedTick = 0;
+	/** Timeouts added and not yet fired or cancelled */
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private volatile boolean shutDown = false;
+	private final Thread ticker;
+
+	private final ThreadLocal<Timeout> sleepers = new ThreadLocal<Timeout>() {
+		@Override
+		protected Timeout initialValue() {
+			return new Timeout(TimerWheel.this, null, Thread.currentThread());
+		}
+	};
+
+	/**
+	 * Creates a wheel with the default tick length and number of slots
+	 */
+	public TimerWheel() {
+		this(DEFAULT_TICK_NANOS, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param tickNanos
+	 *            The tick length, in nanoseconds. Timeouts fire up to a tick
+	 *            late.
+	 * @param slots
+	 *            The minimum number of slots. This is rounded up to the next
+	 *            power of 2. Timeouts more than a lap of the wheel away share
+	 *            slots with nearer ones, so are walked past once a lap.
+	 */
+	public TimerWheel(long tickNanos, int slots) {
+		if (tickNanos <= 0)
+			throw new IllegalArgumentException("Tick length must be positive");
+		if (slots < 2)
+			slots = 2;
+		int size = Integer.highestOneBit(slots - 1) << 1;
+		this.tickNanos = tickNanos;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; ++i)
+			this.slots[i] = new Slot();
+		mask = size - 1;
+		start = System.nanoTime();
+		ticker = new Thread("timer-wheel") {
+			@Override
+			public void run() {
+				runTicker();
+			}
+		};
+		ticker.setDaemon(true);
+		ticker.start();
+	}
+
+	/**
+	 * @return A wheel with the default tick length and number of slots shared
+	 *         by the whole program, created on first use
+	 */
+	public static synchronized TimerWheel shared() {
+		if (shared == null)
+			shared = new TimerWheel();
+		return shared;
+	}
+
+	/**
+	 * Sleeps until a point in time, waking on the first tick at or after it
+	 *
+	 * @param deadlineNanos
+	 *            The System.nanoTime() to sleep until. Returns at once if it
+	 *            has already passed.
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public void sleepUntil(long deadlineNanos) throws InterruptedException {
+		long remaining = deadlineNanos - System.nanoTime();
+		if (remaining <= 0)
+			return;
+		if (!shutDown) {
+			Timeout sleeper = sleepers.get();
+			sleeper.deadline = deadlineNanos;
+			sleeper.expired = false;
+			add(sleeper);
+			if (shutDown && remove(sleeper)) {
+				// Added after the wheel was emptied for good
+				sleeper.expired = true;
+			}
+			// Spurious wake-ups just park again
+			while (!sleeper.expired) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					if (!remove(sleeper)) {
+						// It is firing right now; let it finish before the
+						// timeout is reused
+						while (!sleeper.expired)
+							Thread.yield();
+					}
+					throw new InterruptedException();
+				}
+			}
+		}
+		// Only a shut down wheel wakes anyone early, so sleep out the rest
+		while ((remaining = deadlineNanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, remaining);
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Sleeps for at least the given time, waking on the first tick after it
+	 *
+	 * @param nanos
+	 *            The time to sleep for, in nanoseconds
+	 * @throws InterruptedException
+	 *             If the thread is interrupted while sleeping
+	 */
+	public void sleepNanos(long nanos) throws InterruptedException {
+		sleepUntil(System.nanoTime() + nanos);
+	}
+
+	/**
+	 * Runs a task on the ticker thread once a delay has passed. The task
+	 * holds up every other timeout while it runs, so it should be short.
+	 *
+	 * @param task
+	 *            The task to run
+	 * @param delayNanos
+	 *            The delay, in nanoseconds
+	 * @return The timeout, which can be cancelled
+	 * @throws IllegalStateException
+	 *             If the wheel has been shut down
+	 */
+	public Timeout schedule(Runnable task, long delayNanos) {
+		if (task == null)
+			throw new IllegalArgumentException("Task must not be null");
+		if (shutDown)
+			throw new IllegalStateException("Timer wheel has been shut down");
+		Timeout timeout = new Timeout(this, task, null);
+		timeout.deadline = System.nanoTime() + delayNanos;
+		add(timeout);
+		if (shutDown && remove(timeout))
+			throw new IllegalStateException("Timer wheel has been shut down");
+		return timeout;
+	}
+
+	/**
+	 * Stops the ticker. Everything still on the wheel fires at once: sleeping
+	 * threads sleep out the rest of their time by themselves, and tasks run
+	 * early.
+	 */
+	public void shutdown() {
+		shutDown = true;
+		LockSupport.unpark(ticker);
+	}
+
+	/**
+	 * @return The tick length, in nanoseconds
+	 */
+	public long getTickNanos() {
+		return tickNanos;
+	}
+
+	/**
+	 * @return The number of timeouts waiting on the wheel
+	 */
+	public int getPendingCount() {
+		return Math.max(pending.get(), 0);
+	}
+
+	/**
+	 * Hashes a timeout into the slot for the tick it falls due in, or the
+	 * next tick to be walked if that has already gone
+	 */
+	private void add(Timeout timeout) {
+		// Counted first, so the ticker is awake before the timeout is due
+		if (pending.getAndIncrement() == 0)
+			LockSupport.unpark(ticker);
+		long tick = (timeout.deadline - start + tickNanos - 1) / tickNanos;
+		while (true) {
+			Slot slot = slots[(int) (tick & mask)];
+			synchronized (slot) {
+				// The ticker marks a tick walked while holding its slot, so
+				// once we hold the slot we know whether it is too late
+				if (tick > processedTick) {
+					timeout.tick = tick;
+					timeout.prev = null;
+					timeout.next = slot.head;
+					if (slot.head != null)
+						slot.head.prev = timeout;
+					slot.head = timeout;
+					timeout.slot = slot;
+					return;
+				}
+			}
+			tick = processedTick + 1;
+		}
+	}
+
+	/**
+	 * @return true if the timeout was taken off the wheel before it fired
+	 */
+	private boolean remove(Timeout timeout) {
+		while (true) {
+			Slot slot = timeout.slot;
+			if (slot == null)
+				return false;
+			synchronized (slot) {
+				if (timeout.slot != slot)
+					continue;
+				unlink(slot, timeout);
+			}
+			pending.decrementAndGet();
+			return true;
+		}
+	}
+
+	private static void unlink(Slot slot, Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slot.head = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = null;
+	}
+
+	private void runTicker() {
+		while (!shutDown) {
+			if (pending.get() <= 0) {
+				// Nothing to wait for; add() unparks us
+				LockSupport.park(this);
+				continue;
+			}
+			long next = processedTick + 1;
+			long remaining = start + next * tickNanos - System.nanoTime();
+			if (remaining > 0) {
+				LockSupport.parkNanos(this, remaining);
+				continue;
+			}
+			long now = (System.nanoTime() - start) / tickNanos;
+			if (now - processedTick > slots.length) {
+				// After idling, one lap visits every slot, and everything in
+				// them is due by now
+				processedTick = now - slots.length;
+			}
+			expire(processedTick + 1);
+		}
+		// Empty every slot
+		long first = processedTick + 1;
+		for (long tick = first; tick < first + slots.length; ++tick)
+			expire(Long.MAX_VALUE, tick);
+	}
+
+	/**
+	 * Walks a tick's slot, firing every timeout due by then
+	 */
+	private void expire(long tick) {
+		expire(tick, tick);
+	}
+
+	/**
+	 * @param due
+	 *            Timeouts due in this tick or earlier fire
+	 * @param tick
+	 *            The tick to walk the slot of
+	 */
+	private void expire(long due, long tick) {
+		Slot slot = slots[(int) (tick & mask)];
+		Timeout fired = null;
+		synchronized (slot) {
+			processedTick = tick;
+			Timeout timeout = slot.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.tick <= due) {
+					unlink(slot, timeout);
+					// Chain the fired timeouts together to fire outside the
+					// lock
+					timeout.next = fired;
+					fired = timeout;
+				}
+				timeout = next;
+			}
+		}
+		while (fired != null) {
+			// A woken sleeper may reuse its timeout straight away, so read it
+			// before letting it go
+			Timeout next = fired.next;
+			Thread thread = fired.thread;
+			Runnable task = fired.task;
+			fired.next = null;
+			pending.decrementAndGet();
+			fired.expired = true;
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			} else {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			fired = next;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package safesleep;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A clock whose time stands still while anything is running, and jumps
+ * straight to the earliest deadline as soon as every thread taking part is
+ * waiting on the clock. <br/>
+ * Threads take part by being {@link #register(Thread) registered}, and must
+ * then do all their waiting (sleeps, pauses, waiting on each other) through
+ * the clock, and wake each other with {@link #unpark(Thread)}. A registered
+ * thread blocked some other way, such as on a monitor or a join, looks busy
+ * to the clock, so time won't move until it stops being blocked. Threads
+ * that haven't registered can still sleep on the clock, but time won't wait
+ * for them while they run. With nobody registered, every sleep ends at once.
+ * <br/>
+ * As time only moves when everything is waiting, a scenario sees the same
+ * times on every run however loaded the machine is, and takes only as long
+ * as its computation.
+ */
+public class VirtualClock extends Clock {
+	/** A thread's dealings with the clock, guarded by the lock */
+	private static final class Waiter {
+		final Thread thread;
+		boolean registered = false;
+		/** Set while parked on the clock; polled by the thread itself */
+		volatile boolean parked = false;
+		/** Set while in the queue of deadlines */
+		boolean timed = false;
+		long deadline;
+		/** Orders waiters with the same deadline by when they parked */
+		long sequence;
+		boolean permit = false;
+
+		Waiter(Thread thread) {
+			this.thread = thread;
+		}
+	}
+
+	private static final Comparator<Waiter> BY_DEADLINE = new Comparator<Waiter>() {
+		@Override
+		public int compare(Waiter a, Waiter b) {
+			if (a.deadline != b.deadline)
+				return a.deadline - b.deadline < 0 ? -1 : 1;
+			return a.sequence < b.sequence ? -1 : a.sequence == b.sequence ? 0
+					: 1;
+		}
+	};
+
+	private final Object lock = new Object();
+	private volatile long now;
+	private final Map<Thread, Waiter> waiters = new HashMap<Thread, Waiter>();
+	private final PriorityQueue<Waiter> deadlines = new PriorityQueue<Waiter>(
+			16, BY_DEADLINE);
+	private int participants = 0;
+	private int parkedParticipants = 0;
+	private long nextSequence = 0;
+
+	/**
+	 * Creates a clock starting at time 0
+	 */
+	public VirtualClock() {
+		this(0);
+	}
+
+	/**
+	 * @param startNanos
+	 *            The time to start at
+	 */
+	public VirtualClock(long startNanos) {
+		now = startNanos;
+	}
+
+	@Override
+	public long nanoTime() {
+		return now;
+	}
+
+	@Override
+	public void parkUntil(Object blocker, long deadlineNanos) {
+		await(blocker, true, deadlineNanos);
+	}
+
+	@Override
+	public void park(Object blocker) {
+		await(blocker, false, 0);
+	}
+
+	@Override
+	public void unpark(Thread thread) {
+		if (thread == null)
+			return;
+		synchronized (lock) {
+			Waiter waiter = waiterFor(thread);
+			if (waiter.parked) {
+				wake(waiter);
+				LockSupport.unpark(thread);
+			} else {
+				waiter.permit = true;
+			}
+		}
+	}
+
+	@Override
+	public void register(Thread thread) {
+		synchronized (lock) {
+			Waiter waiter = waiterFor(thread);
+			if (!waiter.registered) {
+				waiter.registered = true;
+				++participants;
+				if (waiter.parked)
+					++parkedParticipants;
+			}
+		}
+	}
+
+	@Override
+	public void deregister(Thread thread) {
+		synchronized (lock) {
+			Waiter waiter = waiters.get(thread);
+			if (waiter == null || !waiter.registered)
+				return;
+			waiter.registered = false;
+			--participants;
+			if (waiter.parked)
+				--parkedParticipants;
+			else if (!waiter.permit)
+				waiters.remove(thread);
+			// The others may have been waiting on us alone
+			advance();
+		}
+	}
+
+	/**
+	 * @return The number of threads time waits for
+	 */
+	public int getParticipants() {
+		synchronized (lock) {
+			return participants;
+		}
+	}
+
+	private void await(Object blocker, boolean hasDeadline, long deadline) {
+		Waiter waiter;
+		synchronized (lock) {
+			waiter = waiterFor(Thread.currentThread());
+			if (waiter.permit) {
+				waiter.permit = false;
+				return;
+			}
+			if (hasDeadline && deadline - now <= 0)
+				return;
+			waiter.parked = true;
+			if (waiter.registered)
+				++parkedParticipants;
+			if (hasDeadline) {
+				waiter.deadline = deadline;
+				waiter.sequence = nextSequence++;
+				waiter.timed = true;
+				deadlines.add(waiter);
+			}
+			advance();
+		}
+		while (waiter.parked) {
+			LockSupport.park(blocker);
+			if (Thread.currentThread().isInterrupted()) {
+				synchronized (lock) {
+					if (waiter.parked)
+						wake(waiter);
+				}
+			}
+		}
+		if (!waiter.registered) {
+			synchronized (lock) {
+				// Don't keep threads that only passed through
+				if (!waiter.registered && !waiter.parked && !waiter.permit)
+					waiters.remove(waiter.thread);
+			}
+		}
+	}
+
+	/**
+	 * Marks a waiter as no longer parked. Called holding the lock.
+	 */
+	private void wake(Waiter waiter) {
+		waiter.parked = false;
+		if (waiter.timed) {
+			deadlines.remove(waiter);
+			waiter.timed = false;
+		}
+		if (waiter.registered)
+			--parkedParticipants;
+	}
+
+	/**
+	 * If every participant is parked, moves time on to the earliest deadline
+	 * and wakes everyone due by then. Called holding the lock.
+	 */
+	private void advance() {
+		if (parkedParticipants < participants || deadlines.isEmpty())
+			return;
+		long first = deadlines.peek().deadline;
+		if (first - now > 0)
+			now = first;
+		while (!deadlines.isEmpty() && deadlines.peek().deadline - now <= 0) {
+			Waiter waiter = deadlines.poll();
+			waiter.timed = false;
+			wake(waiter);
+			LockSupport.unpark(waiter.thread);
+		}
+	}
+
+	/**
+	 * Called holding the lock
+	 */
+	private Waiter waiterFor(Thread thread) {
+		Waiter waiter = waiters.get(thread);
+		if (waiter == null) {
+			waiter = new Waiter(thread);
+			waiters.put(thread, waiter);
+		}
+		return waiter;
+	}
+
+	@Override
+	public String toString() {
+		return "virtual clock at " + now + " ns";
+	}
+}
@@ -0,0 +1,54 @@
+package safesleep;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads where the JVM has them (Java 21 on). The package is
+ * built for Java 8, so they are reached by reflection.
+ */
+final class VirtualThreads {
+	/** Thread.ofVirtual(), or null if the JVM doesn't have virtual threads */
+	private static Object builder = null;
+	/** Thread.Builder.unstarted(Runnable) */
+	private static Method unstarted = null;
+
+	static {
+		try {
+			Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+			unstarted = Class.forName("java.lang.Thread$Builder").getMethod(
+					"unstarted", Runnable.class);
+			builder = ofVirtual;
+		} catch (Exception e) {
+			// Before Java 21: there are only platform threads
+		}
+	}
+
+	private VirtualThreads() {
+	}
+
+	/**
+	 * @return true if the JVM has virtual threads
+	 */
+	static boolean isAvailable() {
+		return builder != null;
+	}
+
+	/**
+	 * @param task
+	 *            What the thread runs
+	 * @return A new, unstarted virtual thread
+	 * @throws IllegalStateException
+	 *             If the JVM doesn't have virtual threads
+	 */
+	static Thread newThread(Runnable task) {
+		if (builder == null)
+			throw new IllegalStateException(
+					"Virtual threads need Java 21 or later");
+		try {
+			return (Thread) unstarted.invoke(builder, task);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not create a virtual thread",
+					e);
+		}
+	}
+}